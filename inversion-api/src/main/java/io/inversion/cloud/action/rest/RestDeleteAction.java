@@ -24,6 +24,7 @@ import java.util.Set;
 
 import io.inversion.cloud.model.Action;
 import io.inversion.cloud.model.ApiException;
+import io.inversion.cloud.model.Db;
 import io.inversion.cloud.model.JSArray;
 import io.inversion.cloud.model.JSNode;
 import io.inversion.cloud.model.Request;
@@ -39,6 +40,29 @@ import io.inversion.cloud.utils.Utils;
 
 public class RestDeleteAction extends Action<RestDeleteAction>
 {
+   /**
+    * The where functions a query string may use to be pushed down
+    * to {@link Db#deleteWhere(Collection, List, int)}
+    */
+   static final String[] PUSHDOWN_FUNCTIONS = new String[]{"eq", "ne", "n", "nn", "like", "sw", "ew", "lt", "le", "gt", "ge", "in", "out", "w", "wo", "emp", "nemp"};
+
+   /**
+    * When true, deletes that can be expressed as where filters on the collection's 
+    * own properties are sent straight to {@link Db#deleteWhere(Collection, List, int)} 
+    * instead of resolving the keys with repeated GETs.  
+    * <p>
+    * IMPORTANT the pushed down delete does not run through the GET endpoint's
+    * actions, so only turn this on when GET does not further restrict which
+    * rows the caller may see.
+    */
+   protected boolean pushdown  = false;
+
+   /**
+    * If greater than 0, pushed down deletes remove at most this many rows per 
+    * statement, committing each chunk, to bound how long locks are held.
+    */
+   protected int     chunkSize = 0;
+
    public RestDeleteAction()
    {
       this(null);
@@ -190,6 +214,15 @@ public class RestDeleteAction extends Action<RestDeleteAction>
 
       }
 
+      if (pushdown)
+      {
+         deleted = deleteWhere(collection, query);
+         if (deleted > -1)
+            return deleted;
+
+         deleted = 0;
+      }
+
       String url = collectionUrl + "?" + query + "&page=1&pageSize=100&includes=href";
 
       Set alreadyDeleted = new HashSet();
@@ -229,4 +262,73 @@ public class RestDeleteAction extends Action<RestDeleteAction>
 
       return deleted;
    }
+
+   /**
+    * @return the number of rows deleted or -1 if the query could not be pushed down
+    */
+   protected int deleteWhere(Collection collection, Term query) throws Exception
+   {
+      if (!isPushdownFilter(collection, query))
+         return -1;
+
+      List<Term> terms = new ArrayList(collection.getDb().mapToColumns(collection, query.copy()));
+      return collection.getDb().deleteWhere(collection, terms, chunkSize);
+   }
+
+   /**
+    * Only where filters comparing the collection's own properties to literal 
+    * values are pushed down, anything else, including reserved params such
+    * as 'limit' or dotted relationship paths, falls back to selecting the keys.
+    */
+   protected boolean isPushdownFilter(Collection collection, Term term)
+   {
+      if (term.hasToken("_key"))
+         return term.size() > 1 && collection.getIndex(term.getToken(0)) != null;
+
+      if (term.hasToken("and", "or", "not"))
+      {
+         for (Term child : term.getTerms())
+         {
+            if (child.isLeaf() || !isPushdownFilter(collection, child))
+               return false;
+         }
+         return term.size() > 0;
+      }
+
+      if (!term.hasToken(PUSHDOWN_FUNCTIONS) || term.size() == 0)
+         return false;
+
+      Term col = term.getTerm(0);
+      if (!col.isLeaf() || col.isQuoted() || collection.findProperty(col.getToken()) == null)
+         return false;
+
+      for (Term child : term.getTerms())
+      {
+         if (!child.isLeaf())
+            return false;
+      }
+      return true;
+   }
+
+   public boolean isPushdown()
+   {
+      return pushdown;
+   }
+
+   public RestDeleteAction withPushdown(boolean pushdown)
+   {
+      this.pushdown = pushdown;
+      return this;
+   }
+
+   public int getChunkSize()
+   {
+      return chunkSize;
+   }
+
+   public RestDeleteAction withChunkSize(int chunkSize)
+   {
+      this.chunkSize = chunkSize;
+      return this;
+   }
 }
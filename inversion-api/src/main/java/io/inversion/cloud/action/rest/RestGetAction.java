@@ -16,20 +16,33 @@
  */
 package io.inversion.cloud.action.rest;
 
-import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.collections4.KeyValue;
-import org.apache.commons.collections4.ListValuedMap;
 import org.apache.commons.collections4.keyvalue.DefaultKeyValue;
 import org.apache.commons.collections4.map.MultiKeyMap;
-import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
 
 import io.inversion.cloud.model.Action;
 import io.inversion.cloud.model.Api;
@@ -39,6 +52,7 @@ import io.inversion.cloud.model.Db;
 import io.inversion.cloud.model.Index;
 import io.inversion.cloud.model.JSArray;
 import io.inversion.cloud.model.JSNode;
+import io.inversion.cloud.model.JSRows;
 import io.inversion.cloud.model.Relationship;
 import io.inversion.cloud.model.Request;
 import io.inversion.cloud.model.Response;
@@ -50,15 +64,32 @@ import io.inversion.cloud.rql.Page;
 import io.inversion.cloud.rql.Parser;
 import io.inversion.cloud.rql.Term;
 import io.inversion.cloud.service.Chain;
+import io.inversion.cloud.service.Context;
 import io.inversion.cloud.utils.Rows;
 import io.inversion.cloud.utils.Rows.Row;
 import io.inversion.cloud.utils.Utils;
 
 public class RestGetAction extends Action<RestGetAction>
 {
+   static final String    EXPAND_BUDGET        = RestGetAction.class.getName() + ".expandBudget";
+
+   static ExecutorService sharedExpandExecutor = null;
 
    protected int maxRows        = 100;
 
+   /**
+    * The maximum number of threads, including the request thread, that may 
+    * run relationship expansion queries for a single request.  Set to 1 to
+    * run every expansion query on the request thread.
+    */
+   protected int             expandThreads  = 4;
+
+   /**
+    * Runs concurrent expansion queries.  Defaults to a shared bounded pool
+    * that runs tasks on the submitting thread when it is saturated.
+    */
+   protected ExecutorService expandExecutor = null;
+
    /**
     * These params are specifically NOT passed to the Query for parsing.  These are either dirty worlds like sql injection tokens or the are used by actions themselves 
     */
@@ -206,6 +237,9 @@ public class RestGetAction extends Action<RestGetAction>
          if (foundRows >= 0)
          {
             res.withFoundRows(foundRows);
+
+            if (results.getFoundRowsType() != null)
+               res.withMeta("foundRowsType", results.getFoundRowsType());
          }
 
          if (results.size() > 0)
@@ -221,6 +255,10 @@ public class RestGetAction extends Action<RestGetAction>
                      String toStrip = nextTerm.getToken();
                      next = stripTerms(next, toStrip);
 
+                     //-- a cursor picks up where this page ended, an offset would skip past it
+                     if ("after".equalsIgnoreCase(toStrip))
+                        next = stripTerms(next, "offset", "page", "pageNum");
+
                      if (next.indexOf("?") < 0)
                         next += "?";
                      if (!next.endsWith("?"))
@@ -359,110 +397,204 @@ public class RestGetAction extends Action<RestGetAction>
 
       if (results.size() > 0)
       {
-
-         for (int i = 0; i < results.size(); i++)
+         if (collection == null)
          {
-            //convert the map into a JSMap
-            Map<String, Object> row = results.getRow(i);
+            for (int i = 0; i < results.size(); i++)
+            {
+               //convert the map into a JSMap
+               results.setRow(i, new JSNode(results.getRow(i)));
+            }
+            exclude(results.getRows());
+         }
+         else
+         {
+            RowMapper mapper = new RowMapper(collection);
 
-            if (collection == null)
+            Set expands = Chain.peek().mergeEndpointActionParamsConfig("expands");
+            Set includes = Chain.peek().mergeEndpointActionParamsConfig("includes");
+            Set excludes = Chain.peek().mergeEndpointActionParamsConfig("excludes");
+
+            if (expands.isEmpty() && includes.isEmpty() && excludes.isEmpty())
             {
-               JSNode node = new JSNode(row);
-               results.setRow(i, node);
+               //-- nothing is going to restructure the documents so the rows
+               //-- can be serialized straight to the output.  They are only
+               //-- turned into JSNodes if another action asks for them.
+               results.withRows(new JSRows(results.getRows(), mapper).rowList());
             }
             else
             {
-               JSNode node = new JSNode();
-               results.setRow(i, node);
+               for (int i = 0; i < results.size(); i++)
+               {
+                  results.setRow(i, mapper.toNode(results.getRow(i)));
+               }
+               expand(req, collection, results.getRows(), expands, null, null);
+               exclude(results.getRows());
+            }
+         }
 
-               String entityKey = req.getCollection().encodeKey(row);
+      } // end if results.size() > 0
 
-               if (!Utils.empty(entityKey))
-               {
-                  //------------------------------------------------
-                  //next turn all relationships into links that will 
-                  //retrieve the related entities
-                  for (Relationship rel : collection.getRelationships())
-                  {
-                     String link = null;
-                     if (rel.isOneToMany())
-                     {
-                        Index foreignKey = rel.getFkIndex1();
-                        String fkval = Collection.encodeKey(row, rel.getFkIndex1());
+      //------------------------------------------------
+      //the "next" params come from the db encoded with db col names
+      //have to convert them to their attribute equivalents
+      for (Term term : ((List<Term>) results.getNext()))
+      {
+         mapToAttributes(collection, term);
+      }
 
-                        if (fkval != null)
-                        {
-                           link = Chain.buildLink(rel.getRelated(), fkval.toString(), null);
-                        }
-                     }
-                     else
-                     {
-                        link = Chain.buildLink(req.getCollection(), entityKey, rel.getName());
-                     }
-                     node.put(rel.getName(), link);
-                  }
+      return results;
+   }
 
-                  //------------------------------------------------
-                  // finally make sure the entity key is encoded as
-                  // the href
-                  String href = node.getString("href");
-                  if (Utils.empty(href))
-                  {
-                     href = Chain.buildLink(collection, entityKey, null);
-                     node.putFirst("href", href);
-                  }
-               }
+   /**
+    * Maps db rows for a Collection into their JSON representation: an href,
+    * links for each Relationship, the Collection's Properties by json name
+    * and finally any extra columns the db returned.
+    * <p>
+    * Column to json name mappings and link prefixes are worked out once
+    * when the mapper is created instead of once for every row.
+    */
+   protected static class RowMapper implements JSRows.Mapper
+   {
+      protected final Collection           collection;
+      protected final String               selfLink;
 
-               //------------------------------------------------
-               //copy over defined attributes first, if the select returned 
-               //extra columns they will be copied over last
-               for (Property attr : collection.getProperties())
-               {
-                  String attrName = attr.getJsonName();
-                  String colName = attr.getColumnName();
+      protected final Relationship[]       rels;
+      protected final String[]             relLinks;
 
-                  boolean rowHas = row.containsKey(colName);
-                  if (entityKey != null || rowHas)
-                  {
-                     //-- if the entityKey was null don't create
-                     //-- empty props for fields that were not 
-                     //-- returned from the db
-                     Object val = row.remove(colName);
-                     if (!node.containsKey(attrName))
-                        node.put(attrName, val);
-                  }
-               }
+      protected final String[]             columns;
+      protected final String[]             jsonNames;
+      protected final boolean[]            linkNames;
+
+      protected final Set<String>          columnSet   = new TreeSet(String.CASE_INSENSITIVE_ORDER);
+      protected final Set<String>          relNameSet  = new TreeSet(String.CASE_INSENSITIVE_ORDER);
+      protected final Map<String, Integer> jsonNameMap = new TreeMap(String.CASE_INSENSITIVE_ORDER);
+
+      public RowMapper(Collection collection)
+      {
+         this.collection = collection;
+         this.selfLink = Chain.buildLink(collection, null, null);
+
+         List<Relationship> relList = new ArrayList();
+         for (Relationship rel : collection.getRelationships())
+         {
+            //-- the entity href always wins over a relationship with the same name
+            if (!"href".equalsIgnoreCase(rel.getName()))
+               relList.add(rel);
+         }
+         rels = relList.toArray(new Relationship[relList.size()]);
+         relLinks = new String[rels.length];
+         for (int i = 0; i < rels.length; i++)
+         {
+            relNameSet.add(rels[i].getName());
+            relLinks[i] = rels[i].isOneToMany() ? Chain.buildLink(rels[i].getRelated(), null, null) : selfLink;
+         }
+
+         List<Property> props = collection.getProperties();
+         columns = new String[props.size()];
+         jsonNames = new String[props.size()];
+         linkNames = new boolean[props.size()];
+         for (int i = 0; i < props.size(); i++)
+         {
+            columns[i] = props.get(i).getColumnName();
+            jsonNames[i] = props.get(i).getJsonName();
+            linkNames[i] = "href".equalsIgnoreCase(jsonNames[i]) || relNameSet.contains(jsonNames[i]);
+
+            columnSet.add(columns[i]);
+            if (!jsonNameMap.containsKey(jsonNames[i]))
+               jsonNameMap.put(jsonNames[i], i);
+         }
+      }
+
+      @Override
+      public JSNode newNode()
+      {
+         return collection.newNode();
+      }
 
-               //------------------------------------------------
-               // next, if the db returned extra columns that 
-               // are not mapped to attributes, just straight copy them
-               for (String key : row.keySet())
+      public JSNode toNode(Map row)
+      {
+         final JSNode node = newNode();
+         try
+         {
+            map(row, new JSRows.Fields()
                {
-                  if (!key.equalsIgnoreCase("href") && !node.containsKey(key))
+                  @Override
+                  public void field(String name, Object value)
                   {
-                     Object value = row.get(key);
-                     node.put(key, value);
+                     node.put(name, value);
                   }
-               }
+               });
+         }
+         catch (Exception ex)
+         {
+            Utils.rethrow(ex);
+         }
+         return node;
+      }
 
+      @Override
+      public void map(Map row, JSRows.Fields fields) throws Exception
+      {
+         String entityKey = collection.encodeKey(row);
+         boolean links = !Utils.empty(entityKey);
+
+         if (links)
+         {
+            fields.field("href", selfLink + "/" + entityKey);
+
+            for (int i = 0; i < rels.length; i++)
+            {
+               Relationship rel = rels[i];
+               String link = null;
+               if (rel.isOneToMany())
+               {
+                  String fkval = Collection.encodeKey(row, rel.getFkIndex1());
+                  if (fkval != null)
+                     link = Utils.empty(fkval) ? relLinks[i] : relLinks[i] + "/" + fkval;
+               }
+               else
+               {
+                  link = relLinks[i] + "/" + entityKey + "/" + rel.getName();
+               }
+               fields.field(rel.getName(), link);
             }
+         }
 
+         //------------------------------------------------
+         //copy over defined attributes first, if the select returned 
+         //extra columns they will be copied over last
+         for (int i = 0; i < columns.length; i++)
+         {
+            if (links && linkNames[i])
+               continue;
+
+            //-- if the entityKey was null don't create
+            //-- empty props for fields that were not 
+            //-- returned from the db
+            if (entityKey != null || row.containsKey(columns[i]))
+            {
+               Integer first = jsonNameMap.get(jsonNames[i]);
+               if (first == i)
+                  fields.field(jsonNames[i], row.get(columns[i]));
+            }
          }
-         if (collection != null)
-            expand(req, collection, results.getRows(), null, null, null);
-         exclude(results.getRows());
 
-      } // end if results.size() > 0
+         //------------------------------------------------
+         // next, if the db returned extra columns that 
+         // are not mapped to attributes, just straight copy them
+         for (Object key : row.keySet())
+         {
+            String name = key.toString();
+            if (columnSet.contains(name) || name.equalsIgnoreCase("href") || (links && relNameSet.contains(name)))
+               continue;
 
-      //------------------------------------------------
-      //the "next" params come from the db encoded with db col names
-      //have to convert them to their attribute equivalents
-      for (Term term : ((List<Term>) results.getNext()))
-      {
-         mapToAttributes(collection, term);
-      }
+            Integer attr = jsonNameMap.get(name);
+            if (attr != null && (entityKey != null || row.containsKey(columns[attr])))
+               continue;
 
-      return results;
+            fields.field(name, row.get(name));
+         }
+      }
    }
 
    public void exclude(List<JSNode> nodes)
@@ -518,8 +650,13 @@ public class RestGetAction extends Action<RestGetAction>
     * which could mean hundreds and hundreds of queries per document.  This should
     * result in number of queries proportional to the number of expands terms that does
     * not increase with the number of results at any level of the expansion.
+    * <p>
+    * The document is expanded one level at a time.  The key lookups and 
+    * the fetches for every relationship on a level do not depend on each 
+    * other so they are run concurrently, up to <code>expandThreads</code> 
+    * at a time per request.  Key lists longer than the Db's relatedMax are 
+    * split across multiple queries.
     */
-
    protected void expand(Request request, Collection collection, List<JSNode> parentObjs, Set expands, String expandsPath, MultiKeyMap pkCache) throws Exception
    {
       if (parentObjs.size() == 0)
@@ -531,159 +668,103 @@ public class RestGetAction extends Action<RestGetAction>
       if (expandsPath == null)
          expandsPath = "";
 
-      for (Relationship rel : collection.getRelationships())
-      {
-         boolean shouldExpand = shouldExpand(expands, expandsPath, rel);
-
-         //System.out.println("should expand " + Chain.getDepth() + " -> " + rel + " -> " + shouldExpand);
+      List<Expansion> level = expansions(expands, expandsPath, collection, parentObjs);
 
-         if (shouldExpand)
+      if (level.size() > 0 && pkCache == null)
+      {
+         //------------------------------------------------
+         // pkCache is used to make nested document expansion efficient
+         //
+         // the pkCache is used to map requested entities back to the right 
+         // objects on the recursion stack and to keep track of entities
+         // so you don't waste time requerying for things you have 
+         // already retrieved.
+         pkCache = new MultiKeyMap();
+
+         for (JSNode node : parentObjs)
          {
-            if (pkCache == null)
-            {
-               //------------------------------------------------
-               // pkCache is used to make nested document expansion efficient
-               //
-               // the pkCache is used to map requested entities back to the right 
-               // objects on the recursion stack and to keep track of entities
-               // so you don't waste time requerying for things you have 
-               // already retrieved.
-               pkCache = new MultiKeyMap()
-                  {
-                     //               public Object put(Object key1, Object key2, Object value)
-                     //               {
-                     //                  System.out.println("PUTPUTPUTPUTPUTPUTPUTPUT:  " + key1 + ", " + key2);
-                     //                  return super.put(key1, key2, value);
-                     //               }
-                     //
-                     //               public Object get(Object key1, Object key2)
-                     //               {
-                     //                  Object value =  super.get(key1, key2);
-                     //                  String str = (value + "").replace("\r", "").replace("\n", "");
-                     //                  System.out.println("GETGETGETGETGETGETGETGET: " + key1 + ", " + key2 + " -> " + value);
-                     //                  return value;
-                     //               }
-                  };
-
-               for (JSNode node : parentObjs)
-               {
-                  pkCache.put(collection, getEntityKey(node), node);
-               }
-            }
+            pkCache.put(collection, getEntityKey(node), node);
+         }
+      }
 
-            //ONE_TO_MANY - Player.locationId -> Location.id
-            //MANY_TO_ONE - Location.id <- Player.locationId  
-            //MANY_TO_MANY, ex going from Category(id)->CategoryBooks(categoryId, bookId)->Book(id)
+      while (level.size() > 0)
+      {
+         //-- pair up the parent keys with the keys of the related entities
+         List<Callable<List<KeyValue>>> keyQueries = new ArrayList();
+         for (Expansion expansion : level)
+         {
+            expansion.keyQueries = queryRelatedKeys(expansion, keyQueries);
+         }
 
-            final Collection relatedCollection = rel.getRelated();
-            //            Column toMatchCol = null;
-            //            Column toRetrieveCol = null;
+         List<List<KeyValue>> keyResults = invokeAll(keyQueries);
 
-            Index idxToMatch = null;
-            Index idxToRetrieve = null;
-            List<KeyValue> relatedEks = null;
+         //-- fetch the related entities that have not already been retrieved
+         List<Callable<List<JSNode>>> fetches = new ArrayList();
+         Map<Collection, Set<String>> claimed = new HashMap();
+         int next = 0;
+         for (Expansion expansion : level)
+         {
+            for (int i = 0; i < expansion.keyQueries; i++)
+               expansion.relatedEks.addAll(keyResults.get(next++));
 
-            if (rel.isOneToMany())
+            final Collection relatedCollection = expansion.rel.getRelated();
+            Set<String> claimedEks = claimed.get(relatedCollection);
+            if (claimedEks == null)
             {
-               idxToMatch = collection.getPrimaryIndex();
-               idxToRetrieve = rel.getFkIndex1();
-
-               //NOTE: expands() is only getting the paired up related keys.  For a ONE_TO_MANY
-               //relationship that data is already in the parent object you are trying to expand
-               //so we don't need to query the db to find those relationships as we do for the 
-               //MANY_TO relationships.
-               //
-               //However if you were to comment out the following block, the output of the algorithm
-               //would be exactly the same you would just end up running an extra db query
-
-               List cols = new ArrayList();
-               //idxToMatch.getColumns().forEach(c -> cols.add(c.getName()));
-               //idxToRetrieve.getColumns().forEach(c -> cols.add(c.getName()));
-
-               cols.addAll(idxToMatch.getColumnNames());
-               cols.addAll(idxToRetrieve.getColumnNames());
-
-               relatedEks = new ArrayList();
-               for (JSNode parentObj : parentObjs)
-               {
-                  String parentEk = getEntityKey(parentObj);
-                  String childEk = parentObj.getString(rel.getName());
-                  if (childEk != null)
-                  {
-                     childEk = getEntityKey(childEk);
-                     relatedEks.add(new DefaultKeyValue(parentEk, childEk));
-                  }
-               }
+               claimedEks = new HashSet();
+               claimed.put(relatedCollection, claimedEks);
             }
-            else if (rel.isManyToOne())
-            {
-               //               idxToMatch = rel.getFkIndex1();
-               //               idxToRetrieve = rel.getRelated().getTable().getPrimaryIndex();//Entity().getKey().getColumn();
-
-               idxToMatch = rel.getFkIndex1();
-               idxToRetrieve = rel.getRelated().getPrimaryIndex();
 
-            }
-            else if (rel.isManyToMany())
+            List<String> unfetchedChildEks = new ArrayList();
+            for (KeyValue<String, String> row : expansion.relatedEks)
             {
-               idxToMatch = rel.getFkIndex1();
-               idxToRetrieve = rel.getFkIndex2();
+               String relatedEk = row.getValue();
+               if (!pkCache.containsKey(relatedCollection, relatedEk) && claimedEks.add(relatedEk))
+               {
+                  unfetchedChildEks.add(relatedEk);
+               }
             }
 
-            if (relatedEks == null)
+            expansion.fetches = 0;
+            for (final List<String> chunk : chunk(unfetchedChildEks, relatedCollection.getDb().getRelatedMax()))
             {
-               List toMatchEks = new ArrayList();
-               for (JSNode parentObj : parentObjs)
-               {
-                  String parentEk = getEntityKey(parentObj);
-                  if (!toMatchEks.contains(parentEk))
+               final String childPath = expandPath(expansion.path, expansion.rel.getName());
+               fetches.add(new Callable<List<JSNode>>()
                   {
-                     if (parentObj.get(rel.getName()) instanceof JSArray)
-                        throw new ApiException(Status.SC_500_INTERNAL_SERVER_ERROR, "Algorithm implementation error...this relationship seems to have already been expanded.");
-
-                     toMatchEks.add(parentEk);
-
-                     if (rel.isOneToMany())
+                     @Override
+                     public List<JSNode> call() throws Exception
                      {
-                        parentObj.remove(rel.getName());
+                        return fetch(relatedCollection, chunk, childPath);
                      }
-                     else
-                     {
-                        parentObj.put(rel.getName(), new JSArray());
-                     }
-                  }
-               }
-               relatedEks = getRelatedKeys(idxToMatch, idxToRetrieve, toMatchEks);
+                  });
+               expansion.fetches += 1;
             }
+         }
 
-            List unfetchedChildEks = new ArrayList();
-            ListValuedMap<String, String> fkCache = new ArrayListValuedHashMap<>();
+         List<List<JSNode>> fetchResults = invokeAll(fetches);
 
-            for (KeyValue<String, String> row : relatedEks)
-            {
-               //the values in the many_to_many link table may have different names than the target columns so you have to 
-               //use the index not the name to build the child entity key.
-
-               String parentEk = row.getKey();
-               String relatedEk = row.getValue();
-
-               fkCache.put(relatedEk, parentEk);
+         //-- stitch the related entities into their parents and line up the next level
+         List<Expansion> nextLevel = new ArrayList();
+         next = 0;
+         for (Expansion expansion : level)
+         {
+            Relationship rel = expansion.rel;
+            Collection relatedCollection = rel.getRelated();
 
-               if (!pkCache.containsKey(relatedCollection, relatedEk))
-               {
-                  unfetchedChildEks.add(relatedEk);
-               }
+            List<JSNode> newChildObjs = new ArrayList();
+            for (int i = 0; i < expansion.fetches; i++)
+            {
+               List<JSNode> nodes = fetchResults.get(next++);
+               if (nodes != null)
+                  newChildObjs.addAll(cache(pkCache, relatedCollection, nodes));
             }
 
-            //this recursive call populates the pkCache
-            List<JSNode> newChildObjs = recursiveGet(pkCache, relatedCollection, unfetchedChildEks, expandPath(expandsPath, rel.getName()));
-
-            for (KeyValue<String, String> row : relatedEks)
+            for (KeyValue<String, String> row : expansion.relatedEks)
             {
                String parentEk = row.getKey();
                String relatedEk = row.getValue();
 
-               JSNode parentObj = (JSNode) pkCache.get(collection, parentEk);
+               JSNode parentObj = (JSNode) pkCache.get(expansion.collection, parentEk);
                JSNode childObj = (JSNode) pkCache.get(relatedCollection, relatedEk);
 
                if (rel.isOneToMany())
@@ -701,12 +782,241 @@ public class RestGetAction extends Action<RestGetAction>
 
             if (newChildObjs.size() > 0)
             {
-               expand(request, relatedCollection, newChildObjs, expands, expandPath(expandsPath, rel.getName()), pkCache);
+               nextLevel.addAll(expansions(expands, expandPath(expansion.path, rel.getName()), relatedCollection, newChildObjs));
             }
          }
+         level = nextLevel;
       }
    }
 
+   /**
+    * One relationship of one level of the document being expanded.
+    */
+   protected static class Expansion
+   {
+      protected Collection     collection = null;
+      protected List<JSNode>   parentObjs = null;
+      protected Relationship   rel        = null;
+      protected String         path       = null;
+
+      protected List<KeyValue> relatedEks = new ArrayList();
+      protected int            keyQueries = 0;
+      protected int            fetches    = 0;
+
+      public Expansion(Collection collection, List<JSNode> parentObjs, Relationship rel, String path)
+      {
+         this.collection = collection;
+         this.parentObjs = parentObjs;
+         this.rel = rel;
+         this.path = path;
+      }
+   }
+
+   protected List<Expansion> expansions(Set expands, String expandsPath, Collection collection, List<JSNode> parentObjs)
+   {
+      List<Expansion> expansions = new ArrayList();
+      for (Relationship rel : collection.getRelationships())
+      {
+         if (shouldExpand(expands, expandsPath, rel))
+            expansions.add(new Expansion(collection, parentObjs, rel, expandsPath));
+      }
+      return expansions;
+   }
+
+   /**
+    * Prepares the parent objects to receive the related entities and adds 
+    * the queries needed to pair the parent keys up with the related keys 
+    * to <code>queries</code>.
+    * 
+    * @return the number of queries added
+    */
+   protected int queryRelatedKeys(Expansion expansion, List<Callable<List<KeyValue>>> queries) throws Exception
+   {
+      //ONE_TO_MANY - Player.locationId -> Location.id
+      //MANY_TO_ONE - Location.id <- Player.locationId  
+      //MANY_TO_MANY, ex going from Category(id)->CategoryBooks(categoryId, bookId)->Book(id)
+
+      Relationship rel = expansion.rel;
+
+      Index idxToMatch = null;
+      Index idxToRetrieve = null;
+
+      if (rel.isOneToMany())
+      {
+         //NOTE: expands() is only getting the paired up related keys.  For a ONE_TO_MANY
+         //relationship that data is already in the parent object you are trying to expand
+         //so we don't need to query the db to find those relationships as we do for the 
+         //MANY_TO relationships.
+         //
+         //However if you were to query for them anyway, the output of the algorithm
+         //would be exactly the same you would just end up running an extra db query
+
+         for (JSNode parentObj : expansion.parentObjs)
+         {
+            String parentEk = getEntityKey(parentObj);
+            String childEk = parentObj.getString(rel.getName());
+            if (childEk != null)
+            {
+               childEk = getEntityKey(childEk);
+               expansion.relatedEks.add(new DefaultKeyValue(parentEk, childEk));
+            }
+         }
+         return 0;
+      }
+      else if (rel.isManyToOne())
+      {
+         idxToMatch = rel.getFkIndex1();
+         idxToRetrieve = rel.getRelated().getPrimaryIndex();
+      }
+      else if (rel.isManyToMany())
+      {
+         idxToMatch = rel.getFkIndex1();
+         idxToRetrieve = rel.getFkIndex2();
+      }
+
+      Set<String> toMatchEks = new LinkedHashSet();
+      for (JSNode parentObj : expansion.parentObjs)
+      {
+         String parentEk = getEntityKey(parentObj);
+         if (toMatchEks.add(parentEk))
+         {
+            if (parentObj.get(rel.getName()) instanceof JSArray)
+               throw new ApiException(Status.SC_500_INTERNAL_SERVER_ERROR, "Algorithm implementation error...this relationship seems to have already been expanded.");
+
+            parentObj.put(rel.getName(), new JSArray());
+         }
+      }
+
+      final Index match = idxToMatch;
+      final Index retrieve = idxToRetrieve;
+      List<List<String>> chunks = chunk(new ArrayList(toMatchEks), idxToRetrieve.getCollection().getDb().getRelatedMax());
+      for (final List<String> chunk : chunks)
+      {
+         queries.add(new Callable<List<KeyValue>>()
+            {
+               @Override
+               public List<KeyValue> call() throws Exception
+               {
+                  return getRelatedKeys(match, retrieve, chunk);
+               }
+            });
+      }
+      return chunks.size();
+   }
+
+   protected static <T> List<List<T>> chunk(List<T> list, int size)
+   {
+      if (size < 1 || list.size() <= size)
+         return list.isEmpty() ? Collections.EMPTY_LIST : Collections.singletonList(list);
+
+      List<List<T>> chunks = new ArrayList();
+      for (int i = 0; i < list.size(); i += size)
+         chunks.add(list.subList(i, Math.min(list.size(), i + size)));
+      return chunks;
+   }
+
+   /**
+    * Runs <code>tasks</code> using at most <code>expandThreads</code> 
+    * threads per request, including the calling thread, and returns 
+    * their results in order.  Tasks that do not get a thread from the 
+    * request's budget are run on the calling thread.
+    */
+   protected <T> List<T> invokeAll(List<Callable<T>> tasks) throws Exception
+   {
+      Semaphore budget = tasks.size() > 1 ? getExpandBudget() : null;
+
+      List<Future<T>> futures = new ArrayList();
+      for (int i = 0; i < tasks.size(); i++)
+      {
+         Future<T> future = null;
+
+         //-- the last task is always run here as this thread would otherwise just be waiting
+         if (budget != null && i < tasks.size() - 1 && budget.tryAcquire())
+            future = submit(tasks.get(i), budget);
+
+         futures.add(future);
+      }
+
+      //-- every task is waited on, even after a failure, so no 
+      //-- forked work is still running when the request ends
+      List<T> results = new ArrayList();
+      Throwable error = null;
+      for (int i = 0; i < tasks.size(); i++)
+      {
+         T result = null;
+         try
+         {
+            Future<T> future = futures.get(i);
+            if (future != null)
+               result = future.get();
+            else if (error == null)
+               result = tasks.get(i).call();
+         }
+         catch (ExecutionException ex)
+         {
+            error = error != null ? error : ex.getCause();
+         }
+         catch (Exception ex)
+         {
+            error = error != null ? error : ex;
+         }
+         results.add(result);
+      }
+
+      if (error != null)
+         Utils.rethrow(error);
+
+      return results;
+   }
+
+   protected <T> Future<T> submit(Callable<T> task, final Semaphore budget)
+   {
+      final Callable<T> forked = Context.current().wrap(task);
+      try
+      {
+         return getExpandExecutor().submit(new Callable<T>()
+            {
+               @Override
+               public T call() throws Exception
+               {
+                  try
+                  {
+                     return forked.call();
+                  }
+                  finally
+                  {
+                     budget.release();
+                  }
+               }
+            });
+      }
+      catch (RejectedExecutionException ex)
+      {
+         budget.release();
+         return null;
+      }
+   }
+
+   /**
+    * @return the Semaphore that limits the number of threads, in addition to the request thread, expanding this request or null if expansion is not concurrent
+    */
+   protected Semaphore getExpandBudget()
+   {
+      if (expandThreads < 2)
+         return null;
+
+      Context context = Context.current();
+      Semaphore budget = (Semaphore) context.get(EXPAND_BUDGET);
+      if (budget == null)
+      {
+         budget = new Semaphore(expandThreads - 1);
+         Semaphore existing = (Semaphore) context.putIfAbsent(EXPAND_BUDGET, budget);
+         if (existing != null)
+            budget = existing;
+      }
+      return budget;
+   }
+
    protected List<KeyValue> getRelatedKeys(Index idxToMatch, Index idxToRetrieve, List<String> toMatchEks) throws Exception
    {
       if (idxToMatch.getCollection() != idxToRetrieve.getCollection())
@@ -739,15 +1049,29 @@ public class RestGetAction extends Action<RestGetAction>
    }
 
    protected List<JSNode> recursiveGet(MultiKeyMap pkCache, Collection collection, java.util.Collection entityKeys, String expandsPath) throws Exception
+   {
+      List<JSNode> nodes = fetch(collection, entityKeys, expandsPath);
+      if (nodes == null)
+         return null;
+
+      return cache(pkCache, collection, nodes);
+   }
+
+   /**
+    * Retrieves the entities identified by <code>entityKeys</code> with any 
+    * nested params for <code>expandsPath</code> applied.  
+    * 
+    * @return the entities or null if the caller is not allowed to see them
+    */
+   protected List<JSNode> fetch(Collection collection, java.util.Collection entityKeys, String expandsPath) throws Exception
    {
       if (entityKeys.size() == 0)
          return Collections.EMPTY_LIST;
 
-      String url = Chain.buildLink(collection, Utils.implode(",", entityKeys), null);
-
       //--
       //-- Nested param support
       //TODO: don't remember the use case here.  need to find and make a test case
+      Map<String, String> nestedParams = new LinkedHashMap();
       Map<String, String> params = Chain.peek().getRequest().getParams();
       String lcPath = expandsPath.toLowerCase();
       for (String key : params.keySet())
@@ -757,20 +1081,13 @@ public class RestGetAction extends Action<RestGetAction>
          if (reservedParams.contains(lcKey))
             continue;
 
-         if (lcKey.matches(".*\\b" + lcPath.replace(".", "\\.") + ".*"))
+         if (indexOfWord(lcKey, lcPath, 0) > -1)
          {
-            String value = params.get(key);
-            lcKey = key.replaceAll("\\b" + (lcPath + "\\."), "");
-
-            if (url.indexOf("?") < 0)
-               url += "?";
-            url += URLEncoder.encode(lcKey, "UTF-8");
-            if (!Utils.empty(value))
-               url += "=" + URLEncoder.encode(value, "UTF-8");
+            nestedParams.put(stripWord(key, lcPath + "."), params.get(key));
          }
       }
 
-      Response res = Chain.peek().getEngine().get(url);
+      Response res = Chain.peek().getEngine().include(collection, Utils.implode(",", entityKeys), nestedParams);
       int sc = res.getStatusCode();
       if (sc == 401 || sc == 403)//unauthorized || forbidden
          return null;
@@ -788,20 +1105,60 @@ public class RestGetAction extends Action<RestGetAction>
       }
       else if (sc == 200)
       {
-         List<JSNode> nodes = (List<JSNode>) res.data().asList();
+         return (List<JSNode>) res.data().asList();
+      }
 
-         for (JSNode node : nodes)
-         {
-            Object entityKey = getEntityKey((JSNode) node);
-            if (pkCache.containsKey(collection, entityKey))
-               throw new ApiException(Status.SC_500_INTERNAL_SERVER_ERROR, "FIX ME IF FOUND.  Algorithm Implementation Error");
+      throw new ApiException(Status.SC_500_INTERNAL_SERVER_ERROR, "Unknow repose code \"" + sc + "\" or body type from nested query.");
+   }
 
-            pkCache.put(collection, entityKey, node);
-         }
-         return nodes;
+   protected List<JSNode> cache(MultiKeyMap pkCache, Collection collection, List<JSNode> nodes)
+   {
+      for (JSNode node : nodes)
+      {
+         Object entityKey = getEntityKey((JSNode) node);
+         if (pkCache.containsKey(collection, entityKey))
+            throw new ApiException(Status.SC_500_INTERNAL_SERVER_ERROR, "FIX ME IF FOUND.  Algorithm Implementation Error");
+
+         pkCache.put(collection, entityKey, node);
       }
+      return nodes;
+   }
 
-      throw new ApiException(Status.SC_500_INTERNAL_SERVER_ERROR, "Unknow repose code \"" + sc + "\" or body type from nested query.");
+   /**
+    * @return the index of <code>word</code> in <code>str</code> where it starts on a word boundary or -1
+    */
+   static int indexOfWord(String str, String word, int fromIndex)
+   {
+      for (int idx = str.indexOf(word, fromIndex); idx > -1; idx = str.indexOf(word, idx + 1))
+      {
+         if (idx == 0 || !isWordChar(str.charAt(idx - 1)) || !isWordChar(word.charAt(0)))
+            return idx;
+      }
+      return -1;
+   }
+
+   /**
+    * @return <code>str</code> with every occurrence of <code>word</code> that starts on a word boundary removed
+    */
+   static String stripWord(String str, String word)
+   {
+      if (word.length() == 0)
+         return str;
+
+      StringBuilder buff = new StringBuilder();
+      int start = 0;
+      for (int idx = indexOfWord(str, word, 0); idx > -1; idx = indexOfWord(str, word, start))
+      {
+         buff.append(str, start, idx);
+         start = idx + word.length();
+      }
+      buff.append(str, start, str.length());
+      return buff.toString();
+   }
+
+   static boolean isWordChar(char c)
+   {
+      return Character.isLetterOrDigit(c) || c == '_';
    }
 
    public int getMaxRows()
@@ -815,6 +1172,52 @@ public class RestGetAction extends Action<RestGetAction>
       return this;
    }
 
+   public int getExpandThreads()
+   {
+      return expandThreads;
+   }
+
+   public RestGetAction withExpandThreads(int expandThreads)
+   {
+      this.expandThreads = expandThreads;
+      return this;
+   }
+
+   public ExecutorService getExpandExecutor()
+   {
+      ExecutorService executor = expandExecutor;
+      if (executor == null)
+         executor = getSharedExpandExecutor();
+      return executor;
+   }
+
+   public RestGetAction withExpandExecutor(ExecutorService expandExecutor)
+   {
+      this.expandExecutor = expandExecutor;
+      return this;
+   }
+
+   static synchronized ExecutorService getSharedExpandExecutor()
+   {
+      if (sharedExpandExecutor == null)
+      {
+         int maxThreads = Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+         sharedExpandExecutor = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue(), new ThreadFactory()
+            {
+               AtomicInteger count = new AtomicInteger(0);
+
+               @Override
+               public Thread newThread(Runnable r)
+               {
+                  Thread t = new Thread(r, "inversion-expand-" + count.incrementAndGet());
+                  t.setDaemon(true);
+                  return t;
+               }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+      }
+      return sharedExpandExecutor;
+   }
+
    //-------------------------------------------------------------------------------------
    //-------------------------------------------------------------------------------------
    //-Static Utils -----------------------------------------------------------------------
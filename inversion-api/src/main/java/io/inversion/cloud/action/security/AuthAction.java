@@ -20,12 +20,13 @@ import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.bind.annotation.adapters.HexBinaryAdapter;
 
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.collections4.map.LRUMap;
 
 import com.auth0.jwt.JWT;
 import com.auth0.jwt.JWTCreator;
@@ -48,24 +49,35 @@ import io.inversion.cloud.utils.Utils;
 
 public class AuthAction extends Action<AuthAction>
 {
-   long                       sessionExp              = 1000 * 60 * 30; //30 minute default timeput
-   long                       sessionUpdate           = 1000 * 10;      //update a session every 10s to prevent spamming the cache with every request
-   protected int              sessionMax              = 10000;
+   long                                 sessionExp              = 1000 * 60 * 30; //30 minute default timeput
+   long                                 sessionUpdate           = 1000 * 10;      //update a session every 10s to prevent spamming the cache with every request
+   protected int                        sessionMax              = 10000;
 
-   protected int              failedMax               = 10;
-   protected int              failedExp               = 1000 * 60 * 10; //10 minute timeout for failed password attemtps
+   protected int                        failedMax               = 10;
+   protected int                        failedExp               = 1000 * 60 * 10; //10 minute timeout for failed password attemtps
 
-   protected String           collection              = null;
+   protected String                     collection              = null;
 
-   protected String           authenticatedPerm       = null;           // apply this perm to all authenticated users, allows ACL to target all authenticated users
+   protected String                     authenticatedPerm       = null;           // apply this perm to all authenticated users, allows ACL to target all authenticated users
 
-   protected AuthSessionCache sessionCache            = null;
+   protected AuthSessionCache           sessionCache            = null;
 
-   protected UserDao          dao                     = null;
+   /**
+    * Verified bearer tokens are cached until they expire so that clients
+    * resending the same token skip the HMAC check and claim parsing.
+    * Tokens without an "exp" claim are cached for jwtCacheExp millis.
+    */
+   protected int                        jwtCacheMax             = 10000;
+   protected long                       jwtCacheExp             = 1000 * 60 * 5;
+   protected ConcurrentAuthSessionCache jwtCache                = null;
+
+   protected Map<String, JWTVerifier>   jwtVerifiers            = new ConcurrentHashMap();
 
-   protected boolean          shouldTrackRequestTimes = true;
+   protected UserDao                    dao                     = null;
 
-   protected String           salt                    = "CHANGE_ME";
+   protected boolean                    shouldTrackRequestTimes = true;
+
+   protected String                     salt                    = "CHANGE_ME";
 
    public AuthAction()
    {
@@ -81,7 +93,10 @@ public class AuthAction extends Action<AuthAction>
          synchronized (this)
          {
             if (sessionCache == null)
-               sessionCache = new LRUAuthSessionCache(sessionMax);
+               sessionCache = new ConcurrentAuthSessionCache(sessionMax, sessionExp);
+
+            if (jwtCache == null && jwtCacheMax > 0)
+               jwtCache = new ConcurrentAuthSessionCache(jwtCacheMax, jwtCacheExp);
          }
       }
 
@@ -137,25 +152,41 @@ public class AuthAction extends Action<AuthAction>
          else if (token != null && token.toLowerCase().startsWith("bearer "))
          {
             token = token.substring(token.indexOf(" ") + 1, token.length()).trim();
-            DecodedJWT jwt = null;
-            for (String secret : getJwtSecrets())
+
+            String jwtKey = null;
+            if (jwtCache != null)
             {
-               try
-               {
-                  JWTVerifier verifier = JWT.require(Algorithm.HMAC256(secret)).acceptLeeway(1).build();
-                  //this will throw an exception if the signatures don't match
-                  jwt = verifier.verify(token);
-                  break;
-               }
-               catch (Exception ex)
+               jwtKey = accountCode + "." + apiCode + "." + tenantCode + "." + tokenHash(token);
+               user = jwtCache.get(jwtKey);
+            }
+
+            if (user == null)
+            {
+               DecodedJWT jwt = null;
+               for (String secret : getJwtSecrets())
                {
+                  try
+                  {
+                     //this will throw an exception if the signatures don't match
+                     jwt = getJwtVerifier(secret).verify(token);
+                     break;
+                  }
+                  catch (Exception ex)
+                  {
+                  }
                }
 
                if (jwt == null)
                   throw new ApiException(Status.SC_401_UNAUTHORIZED);
-            }
 
-            user = createUserFromValidJwt(jwt);
+               user = createUserFromValidJwt(jwt);
+
+               if (jwtCache != null)
+               {
+                  long expires = jwt.getExpiresAt() != null ? jwt.getExpiresAt().getTime() : now + jwtCacheExp;
+                  jwtCache.put(jwtKey, user, expires);
+               }
+            }
          }
       }
 
@@ -361,6 +392,36 @@ public class AuthAction extends Action<AuthAction>
       }
    }
 
+   /**
+    * Verifiers are immutable so one is built per secret and reused.
+    */
+   JWTVerifier getJwtVerifier(String secret) throws Exception
+   {
+      JWTVerifier verifier = jwtVerifiers.get(secret);
+      if (verifier == null)
+      {
+         verifier = JWT.require(Algorithm.HMAC256(secret)).acceptLeeway(1).build();
+         jwtVerifiers.put(secret, verifier);
+      }
+      return verifier;
+   }
+
+   /**
+    * The jwt cache is keyed by a hash so raw tokens are not held in memory.
+    */
+   static String tokenHash(String token)
+   {
+      try
+      {
+         MessageDigest digest = MessageDigest.getInstance("SHA-256");
+         return Base64.encodeBase64String(digest.digest(token.getBytes("UTF-8")));
+      }
+      catch (Exception ex)
+      {
+         throw new RuntimeException(ex);
+      }
+   }
+
    User createUserFromValidJwt(DecodedJWT jwt)
    {
       User user = new User();
@@ -559,12 +620,34 @@ public class AuthAction extends Action<AuthAction>
       return this;
    }
 
+   public AuthSessionCache getSessionCache()
+   {
+      return sessionCache;
+   }
+
    public AuthAction withSessionCache(AuthSessionCache sessionCache)
    {
       this.sessionCache = sessionCache;
       return this;
    }
 
+   public AuthAction withJwtCacheMax(int jwtCacheMax)
+   {
+      this.jwtCacheMax = jwtCacheMax;
+      return this;
+   }
+
+   public AuthAction withJwtCacheExp(long jwtCacheExp)
+   {
+      this.jwtCacheExp = jwtCacheExp;
+      return this;
+   }
+
+   public ConcurrentAuthSessionCache getJwtCache()
+   {
+      return jwtCache;
+   }
+
    public AuthAction withShouldTrackRequestTimes(boolean shouldTrackRequestTimes)
    {
       this.shouldTrackRequestTimes = shouldTrackRequestTimes;
@@ -594,36 +677,6 @@ public class AuthAction extends Action<AuthAction>
       return Utils.findSysEnvPropStr(getCollectionName() + ".salt", salt);
    }
 
-   class LRUAuthSessionCache implements AuthSessionCache
-   {
-      LRUMap map;
-
-      public LRUAuthSessionCache(int sessionMax)
-      {
-         super();
-         this.map = new LRUMap(sessionMax);;
-      }
-
-      @Override
-      public User get(String sessionKey)
-      {
-         return (User) map.get(sessionKey);
-      }
-
-      @Override
-      public void put(String sessionKey, User user)
-      {
-         map.put(sessionKey, user);
-      }
-
-      @Override
-      public void remove(String sessionKey)
-      {
-         map.remove(sessionKey);
-      }
-
-   }
-
    public static interface UserDao
    {
       User getUser(String username, String accountCode, String apiCode, String tenantCode) throws Exception;
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2015-2019 Rocket Partners, LLC
+ * https://github.com/inversion-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.inversion.cloud.action.security;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.inversion.cloud.model.User;
+
+/**
+ * The default in process AuthSessionCache.
+ *
+ * Gets are a lock free ConcurrentHashMap lookup.  Each entry expires
+ * <code>ttl</code> millis after it was last put or read so an active
+ * session stays alive and an idle one times out.  Entries put with an
+ * explicit expiration time do not slide.
+ *
+ * When the cache grows past <code>maxSize</code> one thread at a time sweeps
+ * it, first dropping expired entries and then the least recently read entries
+ * until the cache is back under 90% of <code>maxSize</code>.  Other threads never
+ * wait on the sweep.
+ */
+public class ConcurrentAuthSessionCache implements AuthSessionCache
+{
+   protected int                maxSize     = 10000;
+   protected long               ttl         = 1000 * 60 * 30;
+
+   protected Map<String, Entry> entries     = new ConcurrentHashMap();
+
+   protected AtomicBoolean      evicting    = new AtomicBoolean(false);
+
+   protected AtomicLong         hits        = new AtomicLong(0);
+   protected AtomicLong         misses      = new AtomicLong(0);
+   protected AtomicLong         evictions   = new AtomicLong(0);
+   protected AtomicLong         expirations = new AtomicLong(0);
+
+   public ConcurrentAuthSessionCache()
+   {
+
+   }
+
+   public ConcurrentAuthSessionCache(int maxSize, long ttl)
+   {
+      withMaxSize(maxSize);
+      withTtl(ttl);
+   }
+
+   @Override
+   public User get(String sessionKey)
+   {
+      if (sessionKey == null)
+         return null;
+
+      Entry entry = entries.get(sessionKey);
+      if (entry != null)
+      {
+         long now = System.currentTimeMillis();
+         if (now < entry.expires)
+         {
+            entry.accessed = now;
+            if (entry.sliding)
+               entry.expires = now + ttl;
+            hits.incrementAndGet();
+            return entry.user;
+         }
+
+         if (entries.remove(sessionKey, entry))
+            expirations.incrementAndGet();
+      }
+
+      misses.incrementAndGet();
+      return null;
+   }
+
+   @Override
+   public void put(String sessionKey, User user)
+   {
+      put(sessionKey, user, ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE, ttl > 0);
+   }
+
+   /**
+    * Puts an entry that expires at <code>expires</code> instead of after the ttl
+    */
+   public void put(String sessionKey, User user, long expires)
+   {
+      put(sessionKey, user, expires, false);
+   }
+
+   protected void put(String sessionKey, User user, long expires, boolean sliding)
+   {
+      if (sessionKey == null || user == null)
+         return;
+
+      long now = System.currentTimeMillis();
+      Entry entry = new Entry(user, now, expires, sliding);
+      entries.put(sessionKey, entry);
+
+      if (entries.size() > maxSize)
+         evict(now, entry);
+   }
+
+   @Override
+   public void remove(String sessionKey)
+   {
+      if (sessionKey != null)
+         entries.remove(sessionKey);
+   }
+
+   /**
+    * Drops expired entries and then entries not read within ever
+    * shorter cutoffs until the cache is back under 90% of maxSize.
+    * <code>keep</code> is the entry that was just put.
+    */
+   protected void evict(long now, Entry keep)
+   {
+      if (!evicting.compareAndSet(false, true))
+         return;
+
+      try
+      {
+         int target = (int) (maxSize * .9);
+
+         for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();)
+         {
+            if (now >= it.next().expires)
+            {
+               it.remove();
+               expirations.incrementAndGet();
+            }
+         }
+
+         long cutoff = ttl > 0 ? ttl : 1000 * 60 * 60;
+         while (entries.size() > target && cutoff > 0)
+         {
+            cutoff = cutoff / 2;
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext() && entries.size() > target;)
+            {
+               if (it.next().accessed < now - cutoff)
+               {
+                  it.remove();
+                  evictions.incrementAndGet();
+               }
+            }
+         }
+
+         for (Iterator<Entry> it = entries.values().iterator(); it.hasNext() && entries.size() > target;)
+         {
+            if (it.next() != keep)
+            {
+               it.remove();
+               evictions.incrementAndGet();
+            }
+         }
+      }
+      finally
+      {
+         evicting.set(false);
+      }
+   }
+
+   public void clear()
+   {
+      entries.clear();
+   }
+
+   public int size()
+   {
+      return entries.size();
+   }
+
+   public long getHits()
+   {
+      return hits.get();
+   }
+
+   public long getMisses()
+   {
+      return misses.get();
+   }
+
+   public double getHitRate()
+   {
+      long hits = this.hits.get();
+      long total = hits + misses.get();
+      return total == 0 ? 0 : (double) hits / total;
+   }
+
+   /**
+    * @return the number of entries dropped to stay under maxSize
+    */
+   public long getEvictions()
+   {
+      return evictions.get();
+   }
+
+   /**
+    * @return the number of entries dropped because they were past their ttl
+    */
+   public long getExpirations()
+   {
+      return expirations.get();
+   }
+
+   public int getMaxSize()
+   {
+      return maxSize;
+   }
+
+   public ConcurrentAuthSessionCache withMaxSize(int maxSize)
+   {
+      this.maxSize = maxSize;
+      return this;
+   }
+
+   public long getTtl()
+   {
+      return ttl;
+   }
+
+   /**
+    * @param ttl millis after the last put or read that an entry expires, 0 or less for never
+    */
+   public ConcurrentAuthSessionCache withTtl(long ttl)
+   {
+      this.ttl = ttl;
+      return this;
+   }
+
+   protected static class Entry
+   {
+      final User    user;
+      final boolean sliding;
+      volatile long expires;
+      volatile long accessed;
+
+      Entry(User user, long now, long expires, boolean sliding)
+      {
+         this.user = user;
+         this.accessed = now;
+         this.expires = expires;
+         this.sliding = sliding;
+      }
+   }
+}
@@ -16,8 +16,11 @@
  */
 package io.inversion.cloud.action.security;
 
-import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.inversion.cloud.model.Action;
 import io.inversion.cloud.model.JSNode;
@@ -26,31 +29,47 @@ import io.inversion.cloud.model.Response;
 import io.inversion.cloud.model.Status;
 
 /**
- * Provides a blank or client specific request rate limit of <code>limitRequests</code> per 
- * <code>limitMinutes</code>.  
- * 
- * Endpoint/Action configurations override limitMinutes,limitRequests,limitToken so that
- * an Endpoint/Action can customize rates to fit their needs.  
- * 
- * NOTICE 
- * There is intentionally no concurrency control on this class
- * other than using Hashtables instead of HashMaps.
- * The net result of no concurrency control should be limited
- * to a slightly leaky system that may allow more hits than 
- * configured.  In exchange, we don't have to worry about 
- * synchronization performance.
- *    
- * 
+ * Provides a blank or client specific request rate limit of <code>limitUserHits</code>
+ * and/or <code>limitTotalHits</code> per <code>limitMinutes</code>.
+ *
+ * Endpoint/Action configurations override limitMinutes,limitUserHits,limitTotalHits so that
+ * an Endpoint/Action can customize rates to fit their needs.
+ *
+ * Limits are enforced over a sliding window with the generic cell rate algorithm
+ * (GCRA).  Each client is a single AtomicLong holding the time at which its
+ * next hit would be "on schedule", so a hit is a lock free compare and set,
+ * a client may burst up to its full limit and then gets one more hit every
+ * <code>limitMinutes / limitUserHits</code>.  Rejected requests get a 429 with
+ * a Retry-After header of the seconds until the next hit would be allowed.
+ *
+ * The client table holds at most <code>maxClients</code> entries.  Clients
+ * that have earned back their full limit are indistinguishable from new
+ * clients and are dropped first, after that the least recently seen clients
+ * are dropped.
+ *
+ * Set a {@link RateLimitStore} to share the counters across instances.  The
+ * local client table is not used when there is a store.
+ *
  * @author wells
  *
  */
 public class RateLimitAction extends Action<RateLimitAction>
 {
-   protected int       limitMinutes   = 1;
-   protected int       limitUserHits  = -1;
-   protected int       limitTotalHits = -1;
+   protected int            limitMinutes   = 1;
+   protected int            limitUserHits  = -1;
+   protected int            limitTotalHits = -1;
 
-   Map<String, Bucket> buckets        = new Hashtable();
+   /**
+    * The most clients to track per rate configuration
+    */
+   protected int            maxClients     = 100000;
+
+   /**
+    * Optional shared counters, when null hits are counted in this JVM
+    */
+   protected RateLimitStore store          = null;
+
+   Map<String, Bucket>      buckets        = new ConcurrentHashMap();
 
    @Override
    public void run(Request req, Response res) throws Exception
@@ -59,106 +78,234 @@ public class RateLimitAction extends Action<RateLimitAction>
       int limitUserHits = req.getChain().getConfig("limitUserHits", this.limitUserHits);
       int limitTotalHits = req.getChain().getConfig("limitTotalHits", this.limitTotalHits);
 
-      String bucketKey = new StringBuffer(limitMinutes).append("-").append(limitUserHits).append("-").append(limitTotalHits).toString();
+      String bucketKey = limitMinutes + "-" + limitUserHits + "-" + limitTotalHits;
 
       String clientId = req.getRemoteAddr();
+      if (clientId == null)
+         clientId = "unknown";
 
-      //this one handler can handle different rate configurations 
+      //this one handler can handle different rate configurations
       //such as 100 hits per minutes or or 10000 hits per 5 minutes
       Bucket bucket = buckets.get(bucketKey);
       if (bucket == null)
       {
-         bucket = new Bucket(limitMinutes, limitUserHits, limitTotalHits);
-         buckets.put(bucketKey, bucket);
+         bucket = new Bucket(bucketKey, limitMinutes, limitUserHits, limitTotalHits, maxClients, store);
+         Bucket existing = ((ConcurrentHashMap<String, Bucket>) buckets).putIfAbsent(bucketKey, bucket);
+         if (existing != null)
+            bucket = existing;
       }
 
-      if (!bucket.hit(clientId))
+      long wait = bucket.hit(clientId, System.currentTimeMillis());
+      if (wait > 0)
       {
          JSNode error = new JSNode("error", Status.SC_429_TOO_MANY_REQUESTS, "message", "slow down your request rate");
          res.withJson(error);
          res.withStatus(Status.SC_429_TOO_MANY_REQUESTS);
+         res.withHeader("Retry-After", Long.toString((wait + 999) / 1000));
 
          req.getChain().cancel();
       }
    }
 
-   class Bucket
+   public int getLimitMinutes()
+   {
+      return limitMinutes;
+   }
+
+   public RateLimitAction withLimitMinutes(int limitMinutes)
+   {
+      this.limitMinutes = limitMinutes;
+      return this;
+   }
+
+   public int getLimitUserHits()
+   {
+      return limitUserHits;
+   }
+
+   public RateLimitAction withLimitUserHits(int limitUserHits)
+   {
+      this.limitUserHits = limitUserHits;
+      return this;
+   }
+
+   public int getLimitTotalHits()
+   {
+      return limitTotalHits;
+   }
+
+   public RateLimitAction withLimitTotalHits(int limitTotalHits)
+   {
+      this.limitTotalHits = limitTotalHits;
+      return this;
+   }
+
+   public int getMaxClients()
+   {
+      return maxClients;
+   }
+
+   public RateLimitAction withMaxClients(int maxClients)
+   {
+      this.maxClients = maxClients;
+      return this;
+   }
+
+   public RateLimitStore getStore()
+   {
+      return store;
+   }
+
+   public RateLimitAction withStore(RateLimitStore store)
+   {
+      this.store = store;
+      buckets.clear();
+      return this;
+   }
+
+   /**
+    * The limits for one rate configuration.
+    */
+   static class Bucket
    {
-      int              limitMillies   = 0;
-      int              limitUserHits  = 0;
-      int              limitTotalHits = 0;
+      final String                    key;
+      final long                      windowMillis;
+      final long                      userInterval;
+      final long                      totalInterval;
+      final int                       maxClients;
+      final RateLimitStore            store;
 
-      long             resetAt        = 0;
-      Map<String, Num> userHits       = new Hashtable();
-      int              totalHits      = 0;
+      final Map<String, Client>       clients  = new ConcurrentHashMap();
+      final AtomicLong                totalTat = new AtomicLong(0);
+      final AtomicBoolean             evicting = new AtomicBoolean(false);
 
-      Bucket(int limitMinutes, int limitUserHits, int limitTotalHits)
+      Bucket(String key, int limitMinutes, int limitUserHits, int limitTotalHits, int maxClients, RateLimitStore store)
       {
-         this.limitMillies = limitMinutes * 60000;
-         this.limitUserHits = limitUserHits;
-         this.limitTotalHits = limitTotalHits;
+         this.key = key;
+         this.windowMillis = limitMinutes * 60000L;
+         this.userInterval = limitUserHits > 0 ? Math.max(1, windowMillis / limitUserHits) : 0;
+         this.totalInterval = limitTotalHits > 0 ? Math.max(1, windowMillis / limitTotalHits) : 0;
+         this.maxClients = maxClients;
+         this.store = store;
       }
 
-      boolean hit(String clientId)
+      /**
+       * @return 0 if the hit is allowed otherwise the millis until it would be
+       */
+      long hit(String clientId, long now)
       {
-         if (expired())
-            reset();
-
-         if (limitTotalHits >= 0)
+         if (store != null)
          {
-            synchronized (this)
+            if (userInterval > 0)
             {
-               totalHits += -1;
+               long wait = store.hit(key + ":" + clientId, userInterval, windowMillis, now);
+               if (wait > 0)
+                  return wait;
             }
 
-            if (totalHits > limitTotalHits)
-               return false;
+            if (totalInterval > 0)
+               return store.hit(key + ":*", totalInterval, windowMillis, now);
+
+            return 0;
          }
 
-         if (limitUserHits > 0)
+         if (userInterval > 0)
          {
-            Num num = userHits.get(clientId);
-            if (num == null)
+            Client client = clients.get(clientId);
+            if (client == null)
             {
-               num = new Num();
-               userHits.put(clientId, num);
+               client = new Client();
+               Client existing = ((ConcurrentHashMap<String, Client>) clients).putIfAbsent(clientId, client);
+               if (existing != null)
+                  client = existing;
+               else if (clients.size() > maxClients)
+                  evict(now);
             }
+            client.lastHit = now;
 
-            num.inc();
-
-            if (num.val() > limitUserHits)
-               return false;
+            long wait = hit(client.tat, userInterval, now);
+            if (wait > 0)
+               return wait;
          }
-         return true;
-      }
 
-      boolean expired()
-      {
-         return resetAt < System.currentTimeMillis() - limitMillies;
+         if (totalInterval > 0)
+            return hit(totalTat, totalInterval, now);
+
+         return 0;
       }
 
-      void reset()
+      /**
+       * GCRA: <code>tat</code> is the theoretical arrival time of the next hit.  A hit
+       * is allowed if pushing tat out by one interval keeps it within one window of now.
+       */
+      long hit(AtomicLong tat, long interval, long now)
       {
-         resetAt = System.currentTimeMillis();
-         totalHits = 0;
-         userHits.clear();
+         while (true)
+         {
+            long current = tat.get();
+            long next = Math.max(current, now) + interval;
+            long wait = next - now - windowMillis;
+            if (wait > 0)
+               return wait;
+
+            if (tat.compareAndSet(current, next))
+               return 0;
+         }
       }
 
-      class Num
+      /**
+       * Approximate LRU.  One thread at a time removes the clients that have
+       * recovered their full limit, then clients not seen within ever shorter
+       * cutoffs, until the table is back under 90% of <code>maxClients</code>.
+       */
+      void evict(long now)
       {
-         int num = 0;
+         if (!evicting.compareAndSet(false, true))
+            return;
 
-         void inc()
+         try
          {
-            num += 1;
-         }
+            int target = (int) (maxClients * .9);
+            long cutoff = windowMillis;
+
+            for (Iterator<Client> it = clients.values().iterator(); it.hasNext();)
+            {
+               if (it.next().tat.get() <= now)
+                  it.remove();
+            }
+
+            while (clients.size() > target && cutoff > 0)
+            {
+               cutoff = cutoff / 2;
+               for (Iterator<Client> it = clients.values().iterator(); it.hasNext() && clients.size() > target;)
+               {
+                  if (it.next().lastHit < now - cutoff)
+                     it.remove();
+               }
+            }
 
-         int val()
+            for (Iterator<Client> it = clients.values().iterator(); it.hasNext() && clients.size() > target;)
+            {
+               it.next();
+               it.remove();
+            }
+         }
+         finally
          {
-            return num;
+            evicting.set(false);
          }
       }
 
+      int size()
+      {
+         return clients.size();
+      }
+   }
+
+   static class Client
+   {
+      final AtomicLong tat     = new AtomicLong(0);
+      volatile long    lastHit = 0;
    }
 
 }
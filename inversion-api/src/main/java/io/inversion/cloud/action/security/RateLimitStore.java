@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2015-2019 Rocket Partners, LLC
+ * https://github.com/inversion-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.inversion.cloud.action.security;
+
+/**
+ * Holds the RateLimitAction counters somewhere other than the local JVM
+ * so that a limit can be shared by every instance behind a load balancer.
+ *
+ * Implementations must apply the same GCRA rule as RateLimitAction: a hit is
+ * allowed if <code>max(tat, now) + interval</code> is no more than
+ * <code>window</code> millis past <code>now</code>.
+ */
+public interface RateLimitStore
+{
+   /**
+    * @return 0 if the hit is allowed otherwise the millis until it would be
+    */
+   public long hit(String key, long interval, long window, long now);
+}
@@ -20,6 +20,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,6 +57,21 @@ public class Api
 
    protected transient List<EngineListener> listeners   = new ArrayList();
 
+   /**
+    * Lazily built from the endpoints and collections and discarded
+    * whenever either changes.
+    * @see #getRouter()
+    */
+   protected transient volatile Router      router      = null;
+
+   /**
+    * Memoized, pre-sorted action lists keyed by Endpoint and then by
+    * method and request path shape.  Cleared whenever an Action is
+    * added or an Action's methods, paths or order change.
+    * @see #getActions(Request)
+    */
+   protected transient Map<Endpoint, ActionCache> actionCache = new ConcurrentHashMap();
+
    public Api()
    {
    }
@@ -80,6 +97,8 @@ public class Api
 
          removeExcludes();
 
+         router = new Router(this);
+
          started = true;
 
          for (EngineListener listener : listeners)
@@ -178,6 +197,8 @@ public class Api
       if (coll.getApi() != this)
          coll.withApi(this);
 
+      resetRouter();
+
       return this;
    }
 
@@ -307,15 +328,96 @@ public class Api
 
          if (endpoint.getApi() != this)
             endpoint.withApi(this);
+
+         resetRouter();
       }
       return this;
    }
 
+   /**
+    * @return the routing table for the current endpoints and collections, building it if necessary
+    */
+   public Router getRouter()
+   {
+      Router router = this.router;
+      if (router == null)
+      {
+         router = new Router(this);
+         this.router = router;
+      }
+      return router;
+   }
+
+   /**
+    * Discards the current routing table so that it will be
+    * rebuilt on the next request.  This is called automatically
+    * when endpoints or collections are added or renamed.
+    */
+   public void resetRouter()
+   {
+      router = null;
+   }
+
    public List<Action> getActions()
    {
       return new ArrayList(actions);
    }
 
+   /**
+    * Finds the sorted list of Actions that should run for <code>req</code>.
+    * This is the Endpoint's own Actions that match the request subpath 
+    * plus any Api level Actions that match the request path.
+    * <p>
+    * Action matching only ever looks at the first N segments of a path, 
+    * where N is the longest include/exclude path of any candidate Action, 
+    * and at whether the path is longer than that.  Results are memoized on 
+    * that "path shape" so requests that only differ by entity key or 
+    * other trailing segments reuse the same list.
+    * 
+    * @param req a request that has already been routed to an Endpoint
+    * @return a new list of the Actions to run, in order
+    */
+   public List<Action> getActions(Request req)
+   {
+      Endpoint endpoint = req.getEndpoint();
+
+      ActionCache cache = actionCache.get(endpoint);
+      if (cache == null)
+      {
+         cache = new ActionCache(endpoint, actions);
+         actionCache.put(endpoint, cache);
+      }
+
+      String key = cache.key(req.getMethod(), req.getPath(), req.getSubpath());
+      List<Action> cached = cache.lists.get(key);
+      if (cached == null)
+      {
+         cached = endpoint.getActions(req);
+
+         for (Action a : actions)
+         {
+            if (a.matches(req.getMethod(), req.getPath()))
+               cached.add(a);
+         }
+         Collections.sort(cached);
+
+         if (cache.lists.size() < ActionCache.MAX_ENTRIES)
+            cache.lists.put(key, cached);
+      }
+
+      return new ArrayList(cached);
+   }
+
+   /**
+    * Discards all memoized action lists.  This is called automatically
+    * when Actions are added to the Api or an Endpoint or when an Action's
+    * methods, paths or order are changed.
+    */
+   public void resetActions()
+   {
+      actionCache.clear();
+   }
+
    public Api withActions(Action... actions)
    {
       for (Action action : actions)
@@ -332,6 +434,8 @@ public class Api
       if (action.getApi() != this)
          action.withApi(this);
 
+      resetActions();
+
       return this;
    }
 
@@ -448,4 +552,52 @@ public class Api
       return this;
    }
 
+
+   static class ActionCache
+   {
+      static final int                MAX_ENTRIES = 1000;
+
+      final int                       depth;
+      final Map<String, List<Action>> lists       = new ConcurrentHashMap();
+
+      ActionCache(Endpoint endpoint, List<Action> apiActions)
+      {
+         int depth = 0;
+         for (Action action : endpoint.getActions())
+            depth = Math.max(depth, depth(action));
+
+         for (Action action : apiActions)
+            depth = Math.max(depth, depth(action));
+
+         this.depth = depth;
+      }
+
+      static int depth(Rule rule)
+      {
+         int depth = 0;
+         for (Path path : (List<Path>) rule.includePaths)
+            depth = Math.max(depth, path.size());
+
+         for (Path path : (List<Path>) rule.excludePaths)
+            depth = Math.max(depth, path.size());
+
+         return depth;
+      }
+
+      String key(String method, Path path, Path subpath)
+      {
+         StringBuilder buff = new StringBuilder(method == null ? "" : method.toUpperCase());
+         shape(buff, path);
+         shape(buff, subpath);
+         return buff.toString();
+      }
+
+      void shape(StringBuilder buff, Path path)
+      {
+         int size = path.size();
+         buff.append('|').append(Math.min(size, depth + 1));
+         for (int i = 0; i < size && i < depth; i++)
+            buff.append('/').append(path.lc.get(i));
+      }
+   }
 }
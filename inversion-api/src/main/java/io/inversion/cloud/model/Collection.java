@@ -44,6 +44,18 @@ public class Collection extends Rule<Collection>
 
    protected boolean                 exclude           = false;
 
+   /**
+    * How the Db should compute the total row count for a page of this
+    * collection: 'exact', 'concurrent', 'cached', 'estimated' or 'off'.
+    * Null defers to the endpoint/action 'foundRows' config or the Db default.
+    */
+   protected String                  foundRows         = null;
+
+   /**
+    * Property name layouts shared by the JSNode rows of this collection
+    */
+   transient JSNode.Layout           layouts           = JSNode.Layout.newTree();
+
    public Collection()
    {
       super();
@@ -55,6 +67,16 @@ public class Collection extends Rule<Collection>
       withTableName(defaultName);
    }
 
+   /**
+    * @return an empty JSNode for a row of this collection that shares its property name layout with the other rows
+    */
+   public JSNode newNode()
+   {
+      JSNode node = new JSNode();
+      node.layout = layouts;
+      return node;
+   }
+
    /**
     * @return the linkTbl
     */
@@ -182,6 +204,10 @@ public class Collection extends Rule<Collection>
    public Collection withCollectionName(String name)
    {
       this.collectionName = name;
+
+      if (api != null)
+         api.resetRouter();
+
       return this;
    }
 
@@ -378,6 +404,17 @@ public class Collection extends Rule<Collection>
       return this;
    }
 
+   public String getFoundRows()
+   {
+      return foundRows;
+   }
+
+   public Collection withFoundRows(String foundRows)
+   {
+      this.foundRows = foundRows;
+      return this;
+   }
+
    public Relationship getRelationship(String name)
    {
       for (Relationship r : relationships)
@@ -448,6 +485,10 @@ public class Collection extends Rule<Collection>
       this.collectionAliases.clear();
       for (String alias : aliases)
          withAlias(alias);
+
+      if (api != null)
+         api.resetRouter();
+
       return this;
    }
 
@@ -455,6 +496,10 @@ public class Collection extends Rule<Collection>
    {
       if (!collectionAliases.contains(alias))
          collectionAliases.add(alias);
+
+      if (api != null)
+         api.resetRouter();
+
       return this;
    }
 
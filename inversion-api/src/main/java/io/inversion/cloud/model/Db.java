@@ -28,7 +28,9 @@ import org.slf4j.LoggerFactory;
 
 import io.inversion.cloud.rql.Term;
 import io.inversion.cloud.utils.Pluralizer;
+import io.inversion.cloud.utils.Rows;
 import io.inversion.cloud.utils.Rows.Row;
+import io.inversion.cloud.utils.Rows.RowIterator;
 import io.inversion.cloud.utils.Utils;
 
 public abstract class Db<T extends Db>
@@ -61,6 +63,12 @@ public abstract class Db<T extends Db>
 
    protected ArrayList<Collection> tables         = new ArrayList();
 
+   /**
+    * The maximum number of keys RestGetAction will put in a 
+    * single query when expanding relationships into this Db.
+    */
+   protected int                   relatedMax     = 500;
+
    public Db()
    {
    }
@@ -141,6 +149,27 @@ public abstract class Db<T extends Db>
     */
    public abstract Results<Row> select(Collection table, List<Term> queryTerms) throws Exception;
 
+   /**
+    * Finds all rows that match the supplied query terms returning them one at a
+    * time as they are read instead of as a fully materialized page.  Use this for 
+    * exports or other large reads that do not need to fit in memory.
+    * 
+    * The default implementation simply iterates over the results of 
+    * {@link #select(Collection, List)}.  Implementations that can stream
+    * results from the underlying data source should override this.
+    * 
+    * IMPORTANT callers must close() the returned iterator.
+    * 
+    * @param table
+    * @param queryTerms
+    * @return
+    * @throws Exception
+    */
+   public RowIterator selectIterator(Collection table, List<Term> queryTerms) throws Exception
+   {
+      return Rows.iterator(select(table, queryTerms));
+   }
+
    /**
     * Upserts the key/values pairs for each row into the underlying data source as a PATCH,
     * not as a full replacement.  Keys that are not supplied in the call but that exist in the row in 
@@ -180,6 +209,26 @@ public abstract class Db<T extends Db>
     */
    public abstract void delete(Collection table, List<Map<String, Object>> indexValues) throws Exception;
 
+   /**
+    * Deletes every row matching the query terms with a set based operation 
+    * instead of selecting the keys and then deleting them by key.
+    * 
+    * The default implementation returns -1 meaning the caller should 
+    * fall back to {@link #select(Collection, List)} and {@link #delete(Collection, List)}.
+    * Implementations that can delete by query should override this and
+    * also return -1 for any terms they can not push down.
+    * 
+    * @param table
+    * @param columnMappedTerms where filters only
+    * @param chunkSize if greater than 0 delete at most this many rows at a time to bound lock time
+    * @return the number of rows deleted or -1 if the terms could not be pushed down
+    * @throws Exception
+    */
+   public int deleteWhere(Collection table, List<Term> columnMappedTerms, int chunkSize) throws Exception
+   {
+      return -1;
+   }
+
    public void configDb() throws Exception
    {
       for (String key : includeTables.keySet())
@@ -727,4 +776,15 @@ public abstract class Db<T extends Db>
       return (T) this;
    }
 
+   public int getRelatedMax()
+   {
+      return relatedMax;
+   }
+
+   public T withRelatedMax(int relatedMax)
+   {
+      this.relatedMax = relatedMax;
+      return (T) this;
+   }
+
 }
@@ -123,6 +123,12 @@ public class Endpoint extends Rule<Endpoint>
       {
          this.api = api;
          api.withEndpoint(this);
+
+         for (Action action : actions)
+         {
+            if (action.getApi() != api)
+               action.withApi(api);
+         }
       }
       return this;
    }
@@ -169,6 +175,9 @@ public class Endpoint extends Rule<Endpoint>
 
       this.path = path;
 
+      if (api != null)
+         api.resetRouter();
+
       return this;
    }
 
@@ -226,6 +235,8 @@ public class Endpoint extends Rule<Endpoint>
       if (action.getApi() != getApi())
          action.withApi(getApi());
 
+      resetActions();
+
       return this;
    }
 
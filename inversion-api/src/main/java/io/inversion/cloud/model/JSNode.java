@@ -17,33 +17,53 @@
 package io.inversion.cloud.model;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 import io.inversion.cloud.utils.SimpleTokenizer;
 import io.inversion.cloud.utils.Utils;
 
 public class JSNode implements Map<String, Object>
 {
-   LinkedHashMap<String, Property> properties = new LinkedHashMap();
+   /**
+    * JsonFactory is thread safe and relatively expensive to create so a single instance is shared
+    */
+   static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET).disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+   static final Object[]    EMPTY_VALUES = new Object[0];
+
+   /**
+    * Property names live in a Layout.  Rows created by {@link Collection#newNode()}
+    * share their Layout with every other row of that Collection that had the
+    * same names added in the same order.  Other nodes, ex. parsed request
+    * bodies, get a private Layout.  Values are stored in the parallel
+    * <code>values</code> array so a node costs one array slot per property
+    * instead of a map entry, a Property and a lower cased copy of the key.
+    */
+   Layout                   layout       = Layout.EMPTY;
+   Object[]                 values       = EMPTY_VALUES;
 
    public JSNode()
    {
@@ -65,15 +85,30 @@ public class JSNode implements Map<String, Object>
 
    public void sortKeys()
    {
-      List<String> keys = new ArrayList(properties.keySet());
-      Collections.sort(keys);
+      int size = layout.size;
+      Integer[] order = new Integer[size];
+      for (int i = 0; i < size; i++)
+         order[i] = i;
 
-      LinkedHashMap<String, Property> newProps = new LinkedHashMap();
-      for (String key : keys)
+      final String[] names = layout.names;
+      Arrays.sort(order, new Comparator<Integer>()
+         {
+            @Override
+            public int compare(Integer a, Integer b)
+            {
+               return String.CASE_INSENSITIVE_ORDER.compare(names[a], names[b]);
+            }
+         });
+
+      String[] sortedNames = new String[size];
+      Object[] sortedValues = new Object[size];
+      for (int i = 0; i < size; i++)
       {
-         newProps.put(key, properties.get(key));
+         sortedNames[i] = names[order[i]];
+         sortedValues[i] = values[order[i]];
       }
-      properties = newProps;
+      layout = Layout.of(layout.root, sortedNames, size);
+      values = sortedValues;
    }
 
    public JSArray diff(JSNode diffAgainst)
@@ -641,11 +676,8 @@ public class JSNode implements Map<String, Object>
       if (name == null)
          return null;
 
-      Property p = getProperty(name.toString());
-      if (p != null)
-         return p.getValue();
-
-      return null;
+      int idx = layout.indexOf(name.toString());
+      return idx < 0 ? null : values[idx];
    }
 
    /**
@@ -657,22 +689,46 @@ public class JSNode implements Map<String, Object>
     */
    public Object putFirst(String name, Object value)
    {
-      LinkedHashMap<String, Property> temp = new LinkedHashMap();
+      removeProperty(name);
 
-      Property prop = temp.put(name.toLowerCase(), new Property(name, value));
+      int size = layout.size;
+      String[] names = new String[size + 1];
+      Object[] newValues = new Object[size + 1];
+      names[0] = name;
+      newValues[0] = value;
+      System.arraycopy(layout.names, 0, names, 1, size);
+      System.arraycopy(values, 0, newValues, 1, size);
 
-      this.properties.remove(name.toLowerCase());
-      temp.putAll(this.properties);
-      this.properties = temp;
+      layout = Layout.of(layout.root, names, size + 1);
+      values = newValues;
 
-      return prop;
+      return null;
    }
 
    @Override
    public Object put(String name, Object value)
    {
-      Property prop = properties.put(name.toLowerCase(), new Property(name, value));
-      return prop;
+      int idx = layout.indexOf(name);
+      if (idx > -1)
+      {
+         Property old = new Property(layout.names[idx], values[idx]);
+         if (!layout.names[idx].equals(name))
+         {
+            //-- the last put wins the case of the name
+            String[] names = Arrays.copyOf(layout.names, layout.size);
+            names[idx] = name;
+            layout = Layout.of(layout.root, names, names.length);
+         }
+         values[idx] = value;
+         return old;
+      }
+
+      layout = layout.with(name);
+      int size = layout.size;
+      if (size > values.length)
+         values = Arrays.copyOf(values, Math.max(8, values.length * 2));
+      values[size - 1] = value;
+      return null;
    }
 
    @Override
@@ -708,9 +764,14 @@ public class JSNode implements Map<String, Object>
       return this;
    }
 
+   /**
+    * @param name the case insensitive property name
+    * @return a snapshot of the named property or null
+    */
    public Property getProperty(String name)
    {
-      return properties.get(name.toLowerCase());
+      int idx = layout.indexOf(name);
+      return idx < 0 ? null : new Property(layout.names[idx], values[idx]);
    }
 
    @Override
@@ -719,7 +780,7 @@ public class JSNode implements Map<String, Object>
       if (name == null)
          return false;
 
-      return properties.containsKey(name.toString().toLowerCase());
+      return layout.indexOf(name.toString()) > -1;
    }
 
    @Override
@@ -735,32 +796,43 @@ public class JSNode implements Map<String, Object>
    @Override
    public Set<String> keySet()
    {
-      //properties.getKeySet contains the lower case versions.
       LinkedHashSet keys = new LinkedHashSet();
-      for (String key : properties.keySet())
-      {
-         Property p = properties.get(key);
-         keys.add(p.getName());
-      }
+      for (int i = 0; i < layout.size; i++)
+         keys.add(layout.names[i]);
+
       return keys;
    }
 
    public boolean hasProperty(String name)
    {
-      Property property = properties.get(name.toLowerCase());
-      return property != null;
+      return layout.indexOf(name) > -1;
    }
 
    public List<Property> getProperties()
    {
-      return new ArrayList(properties.values());
+      List<Property> props = new ArrayList(layout.size);
+      for (int i = 0; i < layout.size; i++)
+         props.add(new Property(layout.names[i], values[i]));
+
+      return props;
    }
 
    public Property removeProperty(String name)
    {
-      Property property = properties.get(name.toLowerCase());
-      if (property != null)
-         properties.remove(name.toLowerCase());
+      int idx = layout.indexOf(name);
+      if (idx < 0)
+         return null;
+
+      Property property = new Property(layout.names[idx], values[idx]);
+
+      int size = layout.size;
+      String[] names = new String[size - 1];
+      System.arraycopy(layout.names, 0, names, 0, idx);
+      System.arraycopy(layout.names, idx + 1, names, idx, size - idx - 1);
+      System.arraycopy(values, idx + 1, values, idx, size - idx - 1);
+      values[size - 1] = null;
+
+      layout = Layout.of(layout.root, names, size - 1);
 
       return property;
    }
@@ -815,13 +887,193 @@ public class JSNode implements Map<String, Object>
       }
    }
 
+   /**
+    * An ordered list of property names with case insensitive lookup.
+    * <p>
+    * Each Collection owns a tree of Layouts made by {@link #newTree()}: adding
+    * a name to a shared Layout returns the cached child Layout for that name
+    * so every row built with the same names in the same order points at the
+    * same instance.  Shared Layouts are never modified.  Once a Layout is too
+    * wide, has too many children, or its tree is too big, new names go into a
+    * private Layout that is owned and appended to in place by a single JSNode.
+    * <p>
+    * {@link #EMPTY} is not a tree, every name added to it goes into a private
+    * Layout, so keys from untrusted documents never reach a shared tree.
+    * <p>
+    * Lookups compare with String.equalsIgnoreCase and hash each char
+    * folded the same way so no lower cased key is ever allocated.
+    */
+   static final class Layout
+   {
+      static final int           MAX_SHARED_SIZE    = 256;
+      static final int           MAX_TRANSITIONS    = 64;
+      static final int           MAX_SHARED_LAYOUTS = 10000;
+      static final int           MAX_SCAN_SIZE      = 8;
+
+      static final Layout        EMPTY              = new Layout(false);
+
+      /**
+       * The EMPTY Layout or tree root that this Layout was built from
+       */
+      final Layout                            root;
+      final boolean                           shared;
+      final ConcurrentHashMap<String, Layout> transitions;
+
+      /**
+       * The number of shared Layouts in the tree, only set on a tree root
+       */
+      final AtomicInteger                     sharedLayouts;
+
+      String[]                                names;
+      int                                     size;
+      int[]                                   index;
+
+      Layout(boolean tree)
+      {
+         this.root = this;
+         this.names = new String[0];
+         this.shared = true;
+         this.transitions = tree ? new ConcurrentHashMap() : null;
+         this.sharedLayouts = tree ? new AtomicInteger() : null;
+      }
+
+      Layout(Layout root, String[] names, int size, boolean shared)
+      {
+         this.root = root;
+         this.names = names;
+         this.size = size;
+         this.shared = shared;
+         this.transitions = shared ? new ConcurrentHashMap() : null;
+         this.sharedLayouts = null;
+         reindex();
+      }
+
+      /**
+       * @return the root of a new, empty, shared Layout tree
+       */
+      static Layout newTree()
+      {
+         return new Layout(true);
+      }
+
+      /**
+       * @return the shared (when possible) Layout for the first <code>size</code> <code>names</code> in the tree of <code>root</code>
+       */
+      static Layout of(Layout root, String[] names, int size)
+      {
+         Layout layout = root;
+         for (int i = 0; i < size; i++)
+            layout = layout.with(names[i]);
+         return layout;
+      }
+
+      /**
+       * @return the index of the case insensitive <code>name</code> or -1
+       */
+      int indexOf(String name)
+      {
+         if (index == null)
+         {
+            for (int i = 0; i < size; i++)
+               if (name.equalsIgnoreCase(names[i]))
+                  return i;
+            return -1;
+         }
+
+         int mask = index.length - 1;
+         for (int slot = hash(name) & mask;; slot = (slot + 1) & mask)
+         {
+            int i = index[slot] - 1;
+            if (i < 0)
+               return -1;
+            if (name.equalsIgnoreCase(names[i]))
+               return i;
+         }
+      }
+
+      /**
+       * Callers must have already checked that <code>name</code> is not in this Layout.
+       *
+       * @return a Layout with <code>name</code> appended, which is <code>this</code> for a private Layout
+       */
+      Layout with(String name)
+      {
+         if (!shared)
+         {
+            if (size == names.length)
+               names = Arrays.copyOf(names, size * 2);
+            names[size++] = name;
+            if (index != null && size * 2 <= index.length)
+               put(index, size - 1);
+            else
+               reindex();
+            return this;
+         }
+
+         if (transitions != null)
+         {
+            Layout next = transitions.get(name);
+            if (next != null)
+               return next;
+
+            if (size < MAX_SHARED_SIZE && transitions.size() < MAX_TRANSITIONS && root.sharedLayouts.get() < MAX_SHARED_LAYOUTS)
+            {
+               String[] nextNames = Arrays.copyOf(names, size + 1);
+               nextNames[size] = name;
+               next = new Layout(root, nextNames, size + 1, true);
+
+               Layout existing = transitions.putIfAbsent(name, next);
+               if (existing != null)
+                  return existing;
+
+               root.sharedLayouts.incrementAndGet();
+               return next;
+            }
+         }
+
+         String[] nextNames = Arrays.copyOf(names, Math.max(8, size * 2));
+         nextNames[size] = name;
+         return new Layout(root, nextNames, size + 1, false);
+      }
+
+      void reindex()
+      {
+         if (size <= MAX_SCAN_SIZE)
+         {
+            index = null;
+            return;
+         }
+
+         index = new int[Integer.highestOneBit(size * 4)];
+         for (int i = 0; i < size; i++)
+            put(index, i);
+      }
+
+      void put(int[] index, int i)
+      {
+         int mask = index.length - 1;
+         int slot = hash(names[i]) & mask;
+         while (index[slot] != 0)
+            slot = (slot + 1) & mask;
+         index[slot] = i + 1;
+      }
+
+      static int hash(String name)
+      {
+         int h = 0;
+         for (int i = 0; i < name.length(); i++)
+            h = 31 * h + Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+         return h ^ (h >>> 16);
+      }
+   }
+
    public Map asMap()
    {
       Map map = new HashMap();
-      for (Property p : properties.values())
+      for (int i = 0; i < layout.size; i++)
       {
-         String name = p.name;
-         Object value = p.value;
+         String name = layout.names[i];
+         Object value = values[i];
 
          if (value instanceof JSArray)
          {
@@ -853,16 +1105,46 @@ public class JSNode implements Map<String, Object>
       return JSNode.toJson((JSNode) this, pretty, tolowercase);
    }
 
+   /**
+    * Serializes this node straight onto <code>out</code> so large documents
+    * do not have to be buffered as a String first.  The stream is flushed
+    * but not closed.
+    * 
+    * @param out the stream to write to
+    * @param pretty true if the output should be indented
+    * @throws IOException
+    */
+   public void writeJson(OutputStream out, boolean pretty) throws IOException
+   {
+      JsonGenerator json = JSON_FACTORY.createGenerator(out);
+      try
+      {
+         if (pretty)
+            json.useDefaultPrettyPrinter();
+
+         JSNode.writeNode(this, json, new HashSet(), false);
+         json.flush();
+      }
+      catch (IOException ex)
+      {
+         throw ex;
+      }
+      catch (Exception ex)
+      {
+         throw new IOException(ex);
+      }
+   }
+
    @Override
    public int size()
    {
-      return properties.size();
+      return layout.size;
    }
 
    @Override
    public boolean isEmpty()
    {
-      return properties.isEmpty();
+      return layout.size == 0;
    }
 
    @Override
@@ -871,8 +1153,8 @@ public class JSNode implements Map<String, Object>
       if (value == null)
          return false;
 
-      for (Property prop : properties.values())
-         if (value.equals(prop.getValue()))
+      for (int i = 0; i < layout.size; i++)
+         if (value.equals(values[i]))
             return true;
 
       return false;
@@ -881,7 +1163,8 @@ public class JSNode implements Map<String, Object>
    @Override
    public void clear()
    {
-      properties.clear();
+      layout = layout.root;
+      values = EMPTY_VALUES;
    }
 
    @Override
@@ -928,22 +1211,113 @@ public class JSNode implements Map<String, Object>
    {
       try
       {
-         ObjectMapper mapper = new ObjectMapper();
-         JsonNode rootNode = mapper.readValue(json, JsonNode.class);
+         return parseJson(JSON_FACTORY.createParser(json));
+      }
+      catch (Exception ex)
+      {
+         throw new RuntimeException("400 Bad Request: '" + json + "'");
+      }
+   }
 
-         Object parsed = JSNode.mapNode(rootNode);
-         return parsed;
+   public static Object parseJson(byte[] json)
+   {
+      try
+      {
+         return parseJson(JSON_FACTORY.createParser(json));
       }
       catch (Exception ex)
       {
-         String msg = "Error parsing JSON:" + ex.getMessage();
+         throw new RuntimeException("400 Bad Request: '" + new String(json) + "'");
+      }
+   }
 
-         if (!(ex instanceof JsonParseException))
-         {
-            msg += "\r\nSource:" + json;
-         }
+   /**
+    * Parses json from <code>json</code> without first reading it into a String.
+    * The stream is not closed.
+    * 
+    * @param json
+    * @return a JSNode, JSArray or, for scalar documents, the scalar value
+    */
+   public static Object parseJson(InputStream json)
+   {
+      try
+      {
+         return parseJson(JSON_FACTORY.createParser(json));
+      }
+      catch (Exception ex)
+      {
+         throw new RuntimeException("400 Bad Request: " + ex.getMessage());
+      }
+   }
 
-         throw new RuntimeException("400 Bad Request: '" + json + "'");
+   /**
+    * Reads tokens straight into JSNode/JSArray instances.  This used to 
+    * parse into a Jackson JsonNode tree first and then copy that tree.
+    */
+   static Object parseJson(JsonParser parser) throws IOException
+   {
+      try
+      {
+         JsonToken token = parser.nextToken();
+         if (token == null)
+            throw new JsonParseException(parser, "No content to parse");
+
+         return readValue(parser, token);
+      }
+      finally
+      {
+         parser.close();
+      }
+   }
+
+   static Object readValue(JsonParser parser, JsonToken token) throws IOException
+   {
+      if (token == null)
+         throw new JsonParseException(parser, "Unexpected end of input");
+
+      switch (token)
+      {
+         case START_OBJECT:
+            JSNode node = new JSNode();
+            while ((token = parser.nextToken()) != JsonToken.END_OBJECT)
+            {
+               if (token != JsonToken.FIELD_NAME)
+                  throw new JsonParseException(parser, "Expected a field name but found " + token);
+
+               String name = parser.getCurrentName();
+               node.put(name, readValue(parser, parser.nextToken()));
+            }
+            return node;
+
+         case START_ARRAY:
+            JSArray array = new JSArray();
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY)
+            {
+               array.add(readValue(parser, token));
+            }
+            return array;
+
+         case VALUE_STRING:
+            return parser.getText();
+
+         case VALUE_NUMBER_INT:
+         case VALUE_NUMBER_FLOAT:
+            return parser.getNumberValue();
+
+         case VALUE_TRUE:
+            return Boolean.TRUE;
+
+         case VALUE_FALSE:
+            return Boolean.FALSE;
+
+         case VALUE_NULL:
+            return null;
+
+         case VALUE_EMBEDDED_OBJECT:
+            return parser.getEmbeddedObject();
+
+         default:
+            throw new JsonParseException(parser, "Unexpected token " + token);
       }
    }
 
@@ -957,12 +1331,22 @@ public class JSNode implements Map<String, Object>
       return ((JSArray) JSNode.parseJson(json));
    }
 
+   public static JSNode parseJsonNode(InputStream json)
+   {
+      return ((JSNode) JSNode.parseJson(json));
+   }
+
+   public static JSArray parseJsonArray(InputStream json)
+   {
+      return ((JSArray) JSNode.parseJson(json));
+   }
+
    static String toJson(JSNode node, boolean pretty, boolean lowercaseNames)
    {
       try
       {
          ByteArrayOutputStream baos = new ByteArrayOutputStream();
-         JsonGenerator json = new JsonFactory().createGenerator(baos);
+         JsonGenerator json = JSON_FACTORY.createGenerator(baos);
          if (pretty)
             json.useDefaultPrettyPrinter();
 
@@ -980,6 +1364,12 @@ public class JSNode implements Map<String, Object>
 
    static void writeArrayNode(JSArray array, JsonGenerator json, HashSet visited, boolean lowercaseNames) throws Exception
    {
+      if (array instanceof JSRows && ((JSRows) array).isLazy())
+      {
+         ((JSRows) array).writeRows(json, visited, lowercaseNames);
+         return;
+      }
+
       json.writeStartArray();
       for (Object obj : array.asList())
       {
@@ -1031,55 +1421,6 @@ public class JSNode implements Map<String, Object>
       json.writeEndArray();
    }
 
-   static Object mapNode(JsonNode json)
-   {
-      if (json == null)
-         return null;
-
-      if (json.isNull())
-         return null;
-
-      if (json.isValueNode())
-      {
-         if (json.isNumber())
-            return json.numberValue();
-
-         if (json.isBoolean())
-            return json.booleanValue();
-
-         return json.asText();
-      }
-
-      if (json.isArray())
-      {
-         JSArray retVal = null;
-         retVal = new JSArray();
-
-         for (JsonNode child : json)
-         {
-            retVal.add(mapNode(child));
-         }
-
-         return retVal;
-      }
-      else if (json.isObject())
-      {
-         JSNode retVal = null;
-         retVal = new JSNode();
-
-         Iterator<String> it = json.fieldNames();
-         while (it.hasNext())
-         {
-            String field = it.next();
-            JsonNode value = json.get(field);
-            retVal.put(field, mapNode(value));
-         }
-         return retVal;
-      }
-
-      throw new RuntimeException("unparsable json:" + json);
-   }
-
    /**
     * @see https://stackoverflow.com/questions/14028716/how-to-remove-control-characters-from-java-string
     * @param str
@@ -1096,14 +1437,14 @@ public class JSNode implements Map<String, Object>
 
    static void writeNode(JSNode node, JsonGenerator json, HashSet visited, boolean lowercaseNames) throws Exception
    {
-      Property href = node.getProperty("href");
+      int href = node.layout.indexOf("href");
 
       if (visited.contains(node))
       {
          json.writeStartObject();
-         if (href != null)
+         if (href > -1)
          {
-            json.writeStringField("@link", href.getValue() + "");
+            json.writeStringField("@link", node.values[href] + "");
          }
 
          json.writeEndObject();
@@ -1119,82 +1460,86 @@ public class JSNode implements Map<String, Object>
 
       json.writeStartObject();
 
-      if (href != null)
-         json.writeStringField("href", href.getValue() + "");
+      if (href > -1)
+         json.writeStringField("href", node.values[href] + "");
 
-      for (String key : node.keySet())
+      for (int i = 0; i < node.layout.size; i++)
       {
-         Property p = node.getProperty(key);
-         if (p == href)
+         if (i == href)
             continue;
 
-         String name = p.getName();
-         Object value = p.getValue();
+         String name = node.layout.names[i];
+         Object value = node.values[i];
 
-         if (value == null)
-         {
-            json.writeNullField(name);
-         }
-         else if (value instanceof JSNode)
-         {
-            if (!lowercaseNames)
-               json.writeFieldName(name);
-            else
-               json.writeFieldName(name.toLowerCase());
+         writeField(json, name, value, visited, lowercaseNames);
+      }
+      json.writeEndObject();
+   }
 
-            writeNode((JSNode) value, json, visited, lowercaseNames);
-         }
-         else if (value instanceof Date)
-         {
-            json.writeStringField(name, Utils.formatDate((Date) value, "yyyy-MM-dd'T'HH:mmZ"));
-         }
-         else if (value instanceof BigDecimal)
-         {
-            json.writeNumberField(name, (BigDecimal) value);
-         }
-         else if (value instanceof Double)
-         {
-            json.writeNumberField(name, (Double) value);
-         }
-         else if (value instanceof Float)
-         {
-            json.writeNumberField(name, (Float) value);
-         }
-         else if (value instanceof Integer)
-         {
-            json.writeNumberField(name, (Integer) value);
-         }
-         else if (value instanceof Long)
-         {
-            json.writeNumberField(name, (Long) value);
-         }
-         else if (value instanceof BigDecimal)
-         {
-            json.writeNumberField(name, (BigDecimal) value);
-         }
-         else if (value instanceof BigInteger)
-         {
-            json.writeNumberField(name, ((BigInteger) value).intValue());
-         }
-         else if (value instanceof Boolean)
+   static void writeField(JsonGenerator json, String name, Object value, HashSet visited, boolean lowercaseNames) throws Exception
+   {
+      if (value == null)
+      {
+         json.writeNullField(name);
+      }
+      else if (value instanceof JSNode)
+      {
+         if (!lowercaseNames)
+            json.writeFieldName(name);
+         else
+            json.writeFieldName(name.toLowerCase());
+
+         writeNode((JSNode) value, json, visited, lowercaseNames);
+      }
+      else if (value instanceof Date)
+      {
+         json.writeStringField(name, Utils.formatDate((Date) value, "yyyy-MM-dd'T'HH:mmZ"));
+      }
+      else if (value instanceof BigDecimal)
+      {
+         json.writeNumberField(name, (BigDecimal) value);
+      }
+      else if (value instanceof Double)
+      {
+         json.writeNumberField(name, (Double) value);
+      }
+      else if (value instanceof Float)
+      {
+         json.writeNumberField(name, (Float) value);
+      }
+      else if (value instanceof Integer)
+      {
+         json.writeNumberField(name, (Integer) value);
+      }
+      else if (value instanceof Long)
+      {
+         json.writeNumberField(name, (Long) value);
+      }
+      else if (value instanceof BigDecimal)
+      {
+         json.writeNumberField(name, (BigDecimal) value);
+      }
+      else if (value instanceof BigInteger)
+      {
+         json.writeNumberField(name, ((BigInteger) value).intValue());
+      }
+      else if (value instanceof Boolean)
+      {
+         json.writeBooleanField(name, (Boolean) value);
+      }
+      else
+      {
+         String strVal = value + "";
+         if ("null".equals(strVal))
          {
-            json.writeBooleanField(name, (Boolean) value);
+            json.writeNullField(name);
          }
          else
          {
-            String strVal = value + "";
-            if ("null".equals(strVal))
-            {
-               json.writeNullField(name);
-            }
-            else
-            {
-               strVal = JSNode.encodeJson(strVal);
-               json.writeStringField(name, strVal);
-            }
+            strVal = JSNode.encodeJson(strVal);
+            json.writeStringField(name, strVal);
          }
       }
-      json.writeEndObject();
    }
    
    /**
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2015-2019 Rocket Partners, LLC
+ * https://github.com/inversion-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.inversion.cloud.model;
+
+import java.util.AbstractList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import io.inversion.cloud.utils.Utils;
+
+/**
+ * A JSArray of db rows that are only converted into JSNodes when
+ * something asks for them.
+ * <p>
+ * Serializing a JSRows writes each untouched row straight from the
+ * underlying Map through the {@link Mapper} without building a JSNode.
+ * Reading an element with get() materializes and remembers just that
+ * element so callers can still inspect or modify it.  Any structural
+ * change to the array (add, set, remove, iteration...) materializes
+ * every row and from then on this behaves exactly like a JSArray.
+ */
+public class JSRows extends JSArray
+{
+   protected List<? extends Map> rows   = null;
+   protected Mapper              mapper = null;
+   protected JSNode[]            nodes  = null;
+
+   public JSRows(List<? extends Map> rows, Mapper mapper)
+   {
+      this.rows = rows;
+      this.mapper = mapper;
+      this.nodes = new JSNode[rows.size()];
+   }
+
+   /**
+    * Converts a db row into the ordered properties of its JSON representation
+    */
+   public interface Mapper
+   {
+      void map(Map row, Fields fields) throws Exception;
+
+      /**
+       * @return the empty JSNode a row is materialized into
+       */
+      default JSNode newNode()
+      {
+         return new JSNode();
+      }
+   }
+
+   public interface Fields
+   {
+      void field(String name, Object value) throws Exception;
+   }
+
+   /**
+    * @return a List view of this array for APIs, such as Results, that work with Lists of rows
+    */
+   public RowList rowList()
+   {
+      return new RowList();
+   }
+
+   public class RowList extends AbstractList<JSNode>
+   {
+      public JSRows getArray()
+      {
+         return JSRows.this;
+      }
+
+      @Override
+      public JSNode get(int index)
+      {
+         return (JSNode) JSRows.this.get(index);
+      }
+
+      @Override
+      public JSNode set(int index, JSNode node)
+      {
+         return (JSNode) JSRows.this.set(index, node);
+      }
+
+      @Override
+      public int size()
+      {
+         return JSRows.this.size();
+      }
+   }
+
+   /**
+    * @return true if the rows have not been materialized into JSNodes
+    */
+   public boolean isLazy()
+   {
+      return rows != null;
+   }
+
+   protected JSNode node(int index)
+   {
+      JSNode node = nodes[index];
+      if (node == null)
+      {
+         final JSNode newNode = mapper.newNode();
+         try
+         {
+            mapper.map(rows.get(index), new Fields()
+               {
+                  @Override
+                  public void field(String name, Object value)
+                  {
+                     newNode.put(name, value);
+                  }
+               });
+         }
+         catch (Exception ex)
+         {
+            Utils.rethrow(ex);
+         }
+         node = newNode;
+         nodes[index] = node;
+      }
+      return node;
+   }
+
+   protected void materialize()
+   {
+      if (rows != null)
+      {
+         for (int i = 0; i < rows.size(); i++)
+            objects.add(node(i));
+
+         rows = null;
+         mapper = null;
+         nodes = null;
+      }
+   }
+
+   void writeRows(final JsonGenerator json, final HashSet visited, final boolean lowercaseNames) throws Exception
+   {
+      Fields fields = new Fields()
+         {
+            @Override
+            public void field(String name, Object value) throws Exception
+            {
+               if ("href".equalsIgnoreCase(name))
+                  json.writeStringField("href", value + "");
+               else
+                  JSNode.writeField(json, name, value, visited, lowercaseNames);
+            }
+         };
+
+      json.writeStartArray();
+      for (int i = 0; i < rows.size(); i++)
+      {
+         if (nodes[i] != null)
+         {
+            JSNode.writeNode(nodes[i], json, visited, lowercaseNames);
+         }
+         else
+         {
+            json.writeStartObject();
+            mapper.map(rows.get(i), fields);
+            json.writeEndObject();
+         }
+      }
+      json.writeEndArray();
+   }
+
+   @Override
+   public Object get(int index)
+   {
+      if (rows == null)
+         return super.get(index);
+
+      if (index >= rows.size())
+         return null;
+
+      return node(index);
+   }
+
+   @Override
+   public Set<String> keySet()
+   {
+      LinkedHashSet set = new LinkedHashSet();
+      for (int i = 0; i < size(); i++)
+      {
+         set.add(i + "");
+      }
+      return set;
+   }
+
+   @Override
+   public Object set(int index, Object o)
+   {
+      materialize();
+      return super.set(index, o);
+   }
+
+   @Override
+   public Object remove(int index)
+   {
+      materialize();
+      return super.remove(index);
+   }
+
+   @Override
+   public void addAll(JSArray array)
+   {
+      materialize();
+      super.addAll(array);
+   }
+
+   @Override
+   public void add(int index, Object object)
+   {
+      materialize();
+      super.add(index, object);
+   }
+
+   @Override
+   public void add(Object object)
+   {
+      materialize();
+      super.add(object);
+   }
+
+   @Override
+   public void setObject(int index, Object o)
+   {
+      materialize();
+      super.setObject(index, o);
+   }
+
+   @Override
+   public boolean contains(Object object)
+   {
+      materialize();
+      return super.contains(object);
+   }
+
+   @Override
+   public boolean isEmpty()
+   {
+      return rows != null ? rows.isEmpty() : super.isEmpty();
+   }
+
+   @Override
+   public void clear()
+   {
+      materialize();
+      super.clear();
+   }
+
+   @Override
+   public int size()
+   {
+      return rows != null ? rows.size() : super.size();
+   }
+
+   @Override
+   public int length()
+   {
+      return size();
+   }
+
+   @Override
+   public List asList()
+   {
+      materialize();
+      return super.asList();
+   }
+}
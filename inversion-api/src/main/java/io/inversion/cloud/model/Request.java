@@ -75,6 +75,12 @@ public class Request
       withBody(body);
    }
 
+   public Request(String method, Url url)
+   {
+      withMethod(method);
+      withUrl(url);
+   }
+
    public Request(Engine engine, String method, String url, Object body)
    {
       withEngine(engine);
@@ -185,6 +191,12 @@ public class Request
       return this;
    }
 
+   public Request withUrl(Url url)
+   {
+      this.url = url;
+      return this;
+   }
+
    public Request withMethod(String method)
    {
       this.method = method;
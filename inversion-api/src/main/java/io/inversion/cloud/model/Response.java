@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -51,6 +52,12 @@ public class Response
    protected JSNode                                 json              = new JSNode("meta", new JSNode("createdOn", Utils.formatIso8601(new Date())), "data", new JSArray());
    protected String                                 text              = null;
 
+   /**
+    * When true, the json document has not been rendered into <code>out</code>
+    * and should be serialized directly to the client via {@link #writeOutput(OutputStream)}.
+    */
+   protected boolean                                streaming         = false;
+
    protected String                                 fileName          = null;
    protected File                                   file              = null;
 
@@ -64,6 +71,15 @@ public class Response
    protected List<Change>                           changes           = new ArrayList();
    protected StringBuffer                           debug             = new StringBuffer();
 
+   /**
+    * When false, debug() and the debug half of out() are no-ops and the 
+    * debug buffer is released.  Engine sets this from Request.isDebug() 
+    * so debug/explain capture is free for normal requests.  The buffer is
+    * only ever replaced here, never lazily in debug(), because Actions may
+    * debug from several threads at once.
+    */
+   protected boolean                                debugEnabled      = true;
+
    public Response()
    {
 
@@ -187,10 +203,30 @@ public class Response
 
    public Response debug(Object... msgs)
    {
+      StringBuffer debug = this.debug;
+      if (!debugEnabled || debug == null)
+         return this;
+
       write(debug, msgs);
       return this;
    }
 
+   public boolean isDebugEnabled()
+   {
+      return debugEnabled;
+   }
+
+   public Response withDebugEnabled(boolean debugEnabled)
+   {
+      if (!debugEnabled)
+         debug = null;
+      else if (debug == null)
+         debug = new StringBuffer();
+
+      this.debugEnabled = debugEnabled;
+      return this;
+   }
+
    public Response out(Object... msgs)
    {
       debug(msgs);
@@ -206,9 +242,45 @@ public class Response
 
    public String getOutput()
    {
+      if (streaming && out.length() == 0 && json != null)
+         return json.toString();
+
       return out.toString();
    }
 
+   /**
+    * Writes the response body to <code>stream</code>.  Streaming 
+    * responses are serialized straight from the json document 
+    * without being buffered.
+    * 
+    * @param stream the stream to write to
+    * @return the number of bytes written or -1 if the response was streamed and the length is unknown
+    * @throws IOException
+    */
+   public long writeOutput(OutputStream stream) throws IOException
+   {
+      if (streaming && out.length() == 0 && json != null)
+      {
+         json.writeJson(stream, true);
+         return -1;
+      }
+
+      byte[] bytes = out.toString().getBytes();
+      stream.write(bytes);
+      return bytes.length;
+   }
+
+   public boolean isStreaming()
+   {
+      return streaming;
+   }
+
+   public Response withStreaming(boolean streaming)
+   {
+      this.streaming = streaming;
+      return this;
+   }
+
    public void dump()
    {
       System.out.println(getDebug());
@@ -216,7 +288,7 @@ public class Response
 
    public String getDebug()
    {
-      return debug.toString();
+      return debug != null ? debug.toString() : "";
    }
 
    public String getHeader(String key)
@@ -317,6 +389,13 @@ public class Response
 
    public Response withRecords(List records)
    {
+      JSArray data = data();
+      if (records instanceof JSRows.RowList && data != null && data.isEmpty())
+      {
+         //-- keeps the rows lazy so they can be serialized without becoming JSNodes
+         return withData(((JSRows.RowList) records).getArray());
+      }
+
       for (Object record : records)
          data().add(record);
       return this;
@@ -822,7 +901,7 @@ public class Response
    @Override
    public String toString()
    {
-      return debug.toString();
+      return getDebug();
    }
 
    @Override
@@ -26,12 +26,13 @@ import io.inversion.cloud.rql.Term;
 
 public class Results<M extends Map> implements Iterable<M>
 {
-   protected Query      query      = null;
-   protected List       rows       = new ArrayList();
-   protected List<Term> next       = new ArrayList();
-   protected int        foundRows  = -1;
-   protected String     debugQuery = null;
-   protected String     testQuery  = null;
+   protected Query      query         = null;
+   protected List       rows          = new ArrayList();
+   protected List<Term> next          = new ArrayList();
+   protected int        foundRows     = -1;
+   protected String     foundRowsType = null;
+   protected String     debugQuery    = null;
+   protected String     testQuery     = null;
 
    public Results(Query query)
    {
@@ -124,6 +125,21 @@ public class Results<M extends Map> implements Iterable<M>
       return this;
    }
 
+   /**
+    * @return how foundRows was computed when it is not an exact count of the
+    *         current data, ex. 'cached' or 'estimated', otherwise null
+    */
+   public String getFoundRowsType()
+   {
+      return foundRowsType;
+   }
+
+   public Results withFoundRowsType(String foundRowsType)
+   {
+      this.foundRowsType = foundRowsType;
+      return this;
+   }
+
    public boolean isDryRun()
    {
       return query.isDryRun();
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2015-2019 Rocket Partners, LLC
+ * https://github.com/inversion-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.inversion.cloud.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of an Api's Endpoints and Collections
+ * arranged so that request routing cost scales with the depth
+ * of the request path instead of with the size of the Api model.
+ *
+ * Endpoint paths are stored in a trie keyed on lower case path
+ * segments.  Endpoints whose path contains a wildcard segment
+ * (or has no path at all) hang off of the node of their longest
+ * literal prefix as a "wildcard branch" and are considered a
+ * candidate for every request that walks through that node.
+ * Candidates are still validated with Endpoint.matches() so
+ * method, include/exclude path and internal rules behave exactly
+ * as they would for a linear scan.
+ *
+ * Collections are indexed by lower case name and alias.
+ *
+ * Api builds a Router on startup and discards it whenever
+ * Endpoints or Collections are added or renamed, so a Router
+ * itself is never modified after construction and can be
+ * shared by any number of request threads.
+ *
+ * @see Api#getRouter()
+ */
+public class Router
+{
+   protected final Node                          root        = new Node();
+   protected final Map<String, List<Collection>> collections = new HashMap();
+
+   public Router(Api api)
+   {
+      List<Endpoint> endpoints = api.getEndpoints();
+      for (int i = 0; i < endpoints.size(); i++)
+      {
+         addEndpoint(i, endpoints.get(i));
+      }
+
+      for (Collection collection : api.getCollections())
+      {
+         addCollection(collection.collectionName, collection);
+
+         for (String alias : collection.getAliases())
+            addCollection(alias, collection);
+      }
+   }
+
+   /**
+    * Finds the Endpoint that matches the fewest leading
+    * segments of <code>parts</code>. When more than one Endpoint
+    * matches at the same depth, the one that comes first
+    * in the Api's Endpoint order wins.
+    *
+    * @param method the http method
+    * @param parts the request path segments with the api/tenant path already removed
+    * @return the matched Endpoint and the number of segments it consumed or null
+    */
+   public Route route(String method, List<String> parts)
+   {
+      Path remainingPath = new Path(parts);
+      List<Candidate> wildcards = new ArrayList();
+
+      Node node = root;
+      for (int i = 0; i <= parts.size(); i++)
+      {
+         if (node != null)
+            wildcards.addAll(node.wildcards);
+
+         List<Candidate> candidates = wildcards;
+         if (node != null && node.endpoints.size() > 0)
+         {
+            if (wildcards.isEmpty())
+            {
+               candidates = node.endpoints;
+            }
+            else
+            {
+               candidates = new ArrayList(node.endpoints);
+               candidates.addAll(wildcards);
+               Collections.sort(candidates);
+            }
+         }
+         else if (candidates.size() > 1)
+         {
+            Collections.sort(candidates);
+         }
+
+         if (candidates.size() > 0)
+         {
+            Path endpointPath = remainingPath.subpath(0, i);
+            Path collectionPath = remainingPath.subpath(i, remainingPath.size());
+            for (Candidate candidate : candidates)
+            {
+               if (candidate.endpoint.matches(method, endpointPath, collectionPath))
+                  return new Route(candidate.endpoint, endpointPath, i);
+            }
+         }
+
+         if (node != null && i < parts.size())
+            node = node.children.get(parts.get(i).toLowerCase());
+      }
+      return null;
+   }
+
+   /**
+    * Mirrors the two pass collection resolution that used to be
+    * done inline by Engine: Collections with include/exclude paths
+    * that match the endpoint path are preferred over Collections
+    * that are not scoped to any path.
+    *
+    * @param method the http method
+    * @param endpointPath the path of the matched Endpoint
+    * @param collectionKey the url collection segment
+    * @return the Collection with the given name or alias that should service the request
+    */
+   public Collection findCollection(String method, Path endpointPath, String collectionKey)
+   {
+      if (collectionKey == null)
+         return null;
+
+      List<Collection> named = collections.get(collectionKey.toLowerCase());
+      if (named == null)
+         return null;
+
+      for (Collection collection : named)
+      {
+         if ((collection.getIncludePaths().size() > 0 || collection.getExcludePaths().size() > 0) //
+               && collection.matches(method, endpointPath))
+            return collection;
+      }
+
+      for (Collection collection : named)
+      {
+         if (collection.getIncludePaths().size() == 0 && collection.getExcludePaths().size() == 0)
+            return collection;
+      }
+
+      return null;
+   }
+
+   void addEndpoint(int order, Endpoint endpoint)
+   {
+      Candidate candidate = new Candidate(order, endpoint);
+      Path path = endpoint.getPath();
+
+      Node node = root;
+      if (path != null)
+      {
+         for (int i = 0; i < path.size(); i++)
+         {
+            String part = path.lc.get(i);
+            if (part.indexOf("*") > -1)
+            {
+               node.wildcards.add(candidate);
+               return;
+            }
+
+            Node child = node.children.get(part);
+            if (child == null)
+            {
+               child = new Node();
+               node.children.put(part, child);
+            }
+            node = child;
+         }
+         node.endpoints.add(candidate);
+      }
+      else
+      {
+         node.wildcards.add(candidate);
+      }
+   }
+
+   void addCollection(String name, Collection collection)
+   {
+      if (name == null)
+         return;
+
+      String key = name.toLowerCase();
+      List<Collection> named = collections.get(key);
+      if (named == null)
+      {
+         named = new ArrayList();
+         collections.put(key, named);
+      }
+
+      if (!named.contains(collection))
+         named.add(collection);
+   }
+
+   /**
+    * The result of a successful call to {@link Router#route(String, List)}
+    */
+   public static class Route
+   {
+      protected final Endpoint endpoint;
+      protected final Path     endpointPath;
+      protected final int      depth;
+
+      public Route(Endpoint endpoint, Path endpointPath, int depth)
+      {
+         this.endpoint = endpoint;
+         this.endpointPath = endpointPath;
+         this.depth = depth;
+      }
+
+      public Endpoint getEndpoint()
+      {
+         return endpoint;
+      }
+
+      public Path getEndpointPath()
+      {
+         return endpointPath;
+      }
+
+      /**
+       * @return the number of request path segments consumed by the endpoint path
+       */
+      public int getDepth()
+      {
+         return depth;
+      }
+   }
+
+   static class Node
+   {
+      final Map<String, Node> children  = new HashMap();
+      final List<Candidate>   endpoints = new ArrayList();
+      final List<Candidate>   wildcards = new ArrayList();
+   }
+
+   static class Candidate implements Comparable<Candidate>
+   {
+      final int      order;
+      final Endpoint endpoint;
+
+      Candidate(int order, Endpoint endpoint)
+      {
+         this.order = order;
+         this.endpoint = endpoint;
+      }
+
+      @Override
+      public int compareTo(Candidate o)
+      {
+         return Integer.compare(order, o.order);
+      }
+   }
+}
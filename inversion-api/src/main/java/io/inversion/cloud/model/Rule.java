@@ -166,6 +166,7 @@ public abstract class Rule<R extends Rule> implements Comparable<Rule>
          if (!this.methods.contains(method))
             this.methods.add(method);
       }
+      resetActions();
       return (R) this;
    }
 
@@ -182,6 +183,7 @@ public abstract class Rule<R extends Rule> implements Comparable<Rule>
          {
             includePaths.add(new Path(path));
          }
+         resetActions();
       }
       return (R) this;
    }
@@ -194,6 +196,7 @@ public abstract class Rule<R extends Rule> implements Comparable<Rule>
          {
             includePaths.add(path);
          }
+         resetActions();
       }
       return (R) this;
    }
@@ -211,6 +214,7 @@ public abstract class Rule<R extends Rule> implements Comparable<Rule>
          {
             excludePaths.add(new Path(path));
          }
+         resetActions();
       }
       return (R) this;
    }
@@ -221,6 +225,7 @@ public abstract class Rule<R extends Rule> implements Comparable<Rule>
       {
          excludePaths.add(path);
       }
+      resetActions();
       return (R) this;
    }
 
@@ -281,7 +286,18 @@ public abstract class Rule<R extends Rule> implements Comparable<Rule>
    public R withOrder(int order)
    {
       this.order = order;
+      resetActions();
       return (R) this;
    }
 
+   /**
+    * Changing methods, paths or order can change which Actions 
+    * match a request so the Api's memoized action lists are discarded.
+    */
+   protected void resetActions()
+   {
+      if (api != null)
+         api.resetActions();
+   }
+
 }
@@ -17,11 +17,106 @@
 package io.inversion.cloud.rql;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Parser
 {
+   /**
+    * Parsed terms keyed by the clause text they were parsed from.
+    * <p>
+    * Builders and queries rewrite terms in place so the cached terms 
+    * are never handed out, each parse returns its own copy.
+    * <p>
+    * Clause text comes from clients so when the cache is full one thread
+    * at a time drops the least recently used terms down to 90% of 
+    * <code>cacheMax</code>.  A client sending many distinct clauses only
+    * pushes out entries that nobody else is using.
+    */
+   static Map<String, Entry> cache         = new ConcurrentHashMap();
+   static int                cacheMax      = 10000;
+   static AtomicBoolean      cacheEvicting = new AtomicBoolean(false);
+   static AtomicLong         cacheHits     = new AtomicLong(0);
+   static AtomicLong         cacheMisses   = new AtomicLong(0);
+
    public Term parse(String clause)
+   {
+      if (clause == null || cacheMax <= 0)
+         return doParse(clause);
+
+      Term term = null;
+      Entry entry = cache.get(clause);
+      if (entry != null)
+      {
+         cacheHits.incrementAndGet();
+         entry.used = System.nanoTime();
+         term = entry.term;
+      }
+      else
+      {
+         cacheMisses.incrementAndGet();
+         term = doParse(clause);
+
+         if (term == null)
+            return null;
+
+         cache.put(clause, new Entry(term));
+
+         if (cache.size() > cacheMax)
+            evict();
+      }
+      return term.copy();
+   }
+
+   static void evict()
+   {
+      if (!cacheEvicting.compareAndSet(false, true))
+         return;
+
+      try
+      {
+         int target = (int) (cacheMax * .9);
+
+         List<Long> used = new ArrayList();
+         for (Entry entry : cache.values())
+            used.add(entry.used);
+
+         int extra = used.size() - target;
+         if (extra <= 0)
+            return;
+
+         Collections.sort(used);
+         long cutoff = used.get(extra - 1);
+
+         for (Iterator<Entry> it = cache.values().iterator(); it.hasNext() && cache.size() > target;)
+         {
+            if (it.next().used <= cutoff)
+               it.remove();
+         }
+      }
+      finally
+      {
+         cacheEvicting.set(false);
+      }
+   }
+
+   static class Entry
+   {
+      final Term    term;
+      volatile long used = System.nanoTime();
+
+      Entry(Term term)
+      {
+         this.term = term;
+      }
+   }
+
+   protected Term doParse(String clause)
    {
       TermBuilder tb = new TermBuilder();
       Tokenizer t = new Tokenizer(clause);
@@ -122,4 +217,46 @@ public class Parser
       }
    }
 
-}
\ No newline at end of file
+   public static void clearCache()
+   {
+      cache.clear();
+   }
+
+   public static int getCacheSize()
+   {
+      return cache.size();
+   }
+
+   public static int getCacheMax()
+   {
+      return cacheMax;
+   }
+
+   /**
+    * @param cacheMax the number of distinct clauses to keep parsed terms for, 0 disables the cache
+    */
+   public static void setCacheMax(int cacheMax)
+   {
+      Parser.cacheMax = cacheMax;
+   }
+
+   public static long getCacheHits()
+   {
+      return cacheHits.get();
+   }
+
+   public static long getCacheMisses()
+   {
+      return cacheMisses.get();
+   }
+
+   /**
+    * @return hits / (hits + misses) or 0 if nothing has been parsed yet
+    */
+   public static double getCacheHitRate()
+   {
+      long hits = cacheHits.get();
+      long total = hits + cacheMisses.get();
+      return total == 0 ? 0 : (double) hits / total;
+   }
+}
@@ -129,6 +129,23 @@ public class Term implements Comparable<Term>
       return this;
    }
 
+   /**
+    * @return a deep copy of this term and its children with no parent
+    */
+   public Term copy()
+   {
+      Term copy = new Term(null, null);
+      copy.token = token;
+      copy.quote = quote;
+      for (Term child : terms)
+      {
+         Term childCopy = child.copy();
+         childCopy.parent = copy;
+         copy.terms.add(childCopy);
+      }
+      return copy;
+   }
+
    public boolean isLeaf()
    {
       return terms.size() == 0;
@@ -40,17 +40,15 @@ import io.inversion.cloud.utils.Utils;
 public class Chain
 {
 
-   static ThreadLocal<Stack<Chain>> chainLocal = new ThreadLocal();
-
+   /**
+    * The chain stack now lives on the request scoped Context.  The static
+    * accessors below operate on the Context bound to the calling thread.
+    * 
+    * @see Context
+    */
    protected static Stack<Chain> get()
    {
-      Stack stack = chainLocal.get();
-      if (stack == null)
-      {
-         stack = new Stack();
-         chainLocal.set(stack);
-      }
-      return stack;
+      return Context.current().getChains();
    }
 
    public static int getDepth()
@@ -80,6 +78,7 @@ public class Chain
    public static Chain push(Engine engine, Request req, Response res)
    {
       Chain child = new Chain(engine, req, res);
+      child.context = Context.current();
 
       Chain parent = peek();
       if (parent != null)
@@ -116,6 +115,15 @@ public class Chain
       return get().size();
    }
 
+   /**
+    * @return true if the root request of the current chain is capturing debug output
+    */
+   public static boolean isDebugEnabled()
+   {
+      Stack<Chain> stack = get();
+      return stack.size() > 0 && stack.get(0).response.isDebugEnabled();
+   }
+
    public static void debug(Object... msgs)
    {
       Stack<Chain> stack = get();
@@ -124,15 +132,18 @@ public class Chain
          return;
       }
 
-      String prefix = "[" + stack.size() + "]: ";
-      for (int i = 1; i < stack.size(); i++)
-         prefix += "   ";
+      Chain root = stack.get(0);
+      if (!root.response.isDebugEnabled())
+         return;
 
       if (msgs != null && msgs.length == 1 && msgs[0].toString().trim().length() == 0)
          return;
 
-      Chain root = stack.get(0);
-      root.response.debug(prefix, msgs);
+      StringBuilder prefix = new StringBuilder("[").append(stack.size()).append("]: ");
+      for (int i = 1; i < stack.size(); i++)
+         prefix.append("   ");
+
+      root.response.debug(prefix.toString(), msgs);
    }
 
    public static String buildLink(Collection collection)
@@ -272,6 +283,8 @@ public class Chain
 
    protected Chain              parent   = null;
 
+   protected Context            context  = null;
+
    private Chain(Engine engine, Request req, Response res)
    {
       this.engine = engine;
@@ -290,6 +303,14 @@ public class Chain
       return parent;
    }
 
+   /**
+    * @return the request scoped Context this Chain was pushed onto
+    */
+   public Context getContext()
+   {
+      return context;
+   }
+
    public void setParent(Chain parent)
    {
       this.parent = parent;
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2015-2019 Rocket Partners, LLC
+ * https://github.com/inversion-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.inversion.cloud.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Request scoped state that used to live in ThreadLocals: the Chain call
+ * stack, JDBC connections, the servlet request/response and anything else
+ * a component wants to scope to a single top level request.
+ * <p>
+ * Each Chain holds a reference to the Context it was pushed onto so
+ * request state travels with the Chain instead of with the thread.  The
+ * only thread bound state left is a pointer to the "current" Context which
+ * the static Chain/ConnectionLocal/ServletLocal accessors use as a
+ * compatibility shim.
+ * <p>
+ * To hand work to another thread, wrap it with {@link #wrap(Runnable)} or
+ * {@link #wrap(Callable)}.  The task runs bound to a {@link #fork()} of this
+ * Context that sees a snapshot of the current Chain stack and shares this
+ * Context's attributes.  Resources that must not be used by two threads
+ * at once, such as a JDBC Connection, belong in the fork's own
+ * {@link #getLocal(String) locals} and can be released with an
+ * {@link #onClose(Runnable)} task when the forked work completes.
+ */
+public class Context
+{
+   static final ThreadLocal<Context> bound = new ThreadLocal();
+
+   protected final Stack<Chain>        chains;
+   protected final Map<String, Object> attributes;
+   protected final Context             parent;
+   protected final Map<String, Object> locals     = new HashMap();
+   protected final List<Runnable>      closeTasks = new ArrayList();
+
+   public Context()
+   {
+      this.parent = null;
+      this.chains = new Stack();
+      this.attributes = new ConcurrentHashMap();
+   }
+
+   protected Context(Context parent)
+   {
+      this.parent = parent;
+      this.chains = new Stack();
+      this.chains.addAll(parent.chains);
+      this.attributes = parent.attributes;
+   }
+
+   /**
+    * @return the Context bound to the calling thread, creating and binding one if necessary
+    */
+   public static Context current()
+   {
+      Context ctx = bound.get();
+      if (ctx == null)
+      {
+         ctx = new Context();
+         bound.set(ctx);
+      }
+      return ctx;
+   }
+
+   /**
+    * @return the Context bound to the calling thread or null
+    */
+   public static Context peekCurrent()
+   {
+      return bound.get();
+   }
+
+   /**
+    * Binds <code>ctx</code> to the calling thread.
+    *
+    * @param ctx the context to bind, null unbinds
+    * @return the previously bound Context so that it can be restored
+    */
+   public static Context bind(Context ctx)
+   {
+      Context previous = bound.get();
+      if (ctx == null)
+         bound.remove();
+      else
+         bound.set(ctx);
+      return previous;
+   }
+
+   /**
+    * @return a child Context for work done on another thread on behalf of this request
+    */
+   public Context fork()
+   {
+      return new Context(this);
+   }
+
+   public Runnable wrap(final Runnable task)
+   {
+      final Context child = fork();
+      return new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               Context previous = bind(child);
+               try
+               {
+                  task.run();
+               }
+               finally
+               {
+                  child.close();
+                  bind(previous);
+               }
+            }
+         };
+   }
+
+   public <T> Callable<T> wrap(final Callable<T> task)
+   {
+      final Context child = fork();
+      return new Callable<T>()
+         {
+            @Override
+            public T call() throws Exception
+            {
+               Context previous = bind(child);
+               try
+               {
+                  return task.call();
+               }
+               finally
+               {
+                  child.close();
+                  bind(previous);
+               }
+            }
+         };
+   }
+
+   /**
+    * Runs the registered close tasks.  Called while this Context is
+    * still bound when a {@link #wrap(Runnable) wrapped} task completes.
+    */
+   public void close()
+   {
+      List<Runnable> tasks = new ArrayList(closeTasks);
+      closeTasks.clear();
+      for (Runnable task : tasks)
+         task.run();
+   }
+
+   public Context onClose(Runnable task)
+   {
+      closeTasks.add(task);
+      return this;
+   }
+
+   public Context getParent()
+   {
+      return parent;
+   }
+
+   public Stack<Chain> getChains()
+   {
+      return chains;
+   }
+
+   public Object get(String key)
+   {
+      return attributes.get(key);
+   }
+
+   public Context put(String key, Object value)
+   {
+      if (value == null)
+         attributes.remove(key);
+      else
+         attributes.put(key, value);
+      return this;
+   }
+
+   /**
+    * Atomically puts <code>value</code> unless <code>key</code> is already mapped
+    * 
+    * @return the existing value or null if <code>value</code> was put
+    */
+   public Object putIfAbsent(String key, Object value)
+   {
+      return attributes.putIfAbsent(key, value);
+   }
+
+   public Object remove(String key)
+   {
+      return attributes.remove(key);
+   }
+
+   /**
+    * @return state held by this Context only, not shared with its parent or forks
+    */
+   public Object getLocal(String key)
+   {
+      return locals.get(key);
+   }
+
+   public Context putLocal(String key, Object value)
+   {
+      if (value == null)
+         locals.remove(key);
+      else
+         locals.put(key, value);
+      return this;
+   }
+}
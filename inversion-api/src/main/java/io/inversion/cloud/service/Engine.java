@@ -25,7 +25,13 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
 import org.slf4j.Logger;
@@ -42,6 +48,7 @@ import io.inversion.cloud.model.JSNode;
 import io.inversion.cloud.model.Path;
 import io.inversion.cloud.model.Request;
 import io.inversion.cloud.model.Response;
+import io.inversion.cloud.model.Router.Route;
 import io.inversion.cloud.model.Status;
 import io.inversion.cloud.model.Url;
 import io.inversion.cloud.utils.Configurator;
@@ -110,6 +117,25 @@ public class Engine
     */
    protected String                         allowedHeaders = "accept,accept-encoding,accept-language,access-control-request-headers,access-control-request-method,authorization,connection,Content-Type,host,user-agent,x-auth-token";
 
+   /**
+    * When true, json responses are not rendered into Response.out by 
+    * writeResponse() but serialized directly to the client by the Servlet.
+    * This avoids holding several full copies of large documents in memory
+    * at the cost of not sending a Content-Length header.
+    * <p>
+    * Explain requests are always buffered. 
+    */
+   protected boolean                        streamJson     = false;
+
+   /**
+    * Used by {@link #serviceAsync(Request, Response)} and the async Servlet mode.
+    * Executors the engine created itself are shut down in destroy() or when
+    * they are replaced, ones passed to withExecutor() are left to the caller.
+    * @see #withVirtualThreads(boolean)
+    */
+   protected transient ExecutorService      executor       = null;
+   protected transient boolean              ownsExecutor   = false;
+
    public Engine()
    {
 
@@ -125,6 +151,16 @@ public class Engine
    public void destroy()
    {
       destroyed = true;
+
+      synchronized (this)
+      {
+         if (ownsExecutor && executor != null)
+         {
+            executor.shutdown();
+            executor = null;
+            ownsExecutor = false;
+         }
+      }
    }
 
    /*
@@ -319,6 +355,65 @@ public class Engine
       return res;
    }
 
+   /**
+    * Runs an internal GET of <code>entityKeys</code> from <code>collection</code>
+    * on behalf of the request at the top of the Chain.
+    * <p>
+    * This is what <code>get(Chain.buildLink(collection, entityKeys, null))</code>
+    * would do except that no url string is rendered, reparsed or matched
+    * against the Api's collections and the json document of the Response is
+    * never rendered to text.  The Endpoint and Collection are still found
+    * with the Api's Router so the Request runs the same Actions, including
+    * any security Actions, that the equivalent url would.
+    * 
+    * @param collection the collection to select from
+    * @param entityKeys the comma separated entity keys to select
+    * @param params additional query params for the nested request
+    * @return the nested Response
+    */
+   public Response include(Collection collection, String entityKeys, Map<String, String> params)
+   {
+      Request parent = Chain.peek().getRequest();
+      Api api = parent.getApi();
+
+      String collectionKey = collection.getCollectionName();
+      List<String> parts = new ArrayList();
+      if (collection == parent.getCollection())
+      {
+         collectionKey = parent.getCollectionKey();
+         if (parent.getEndpointPath() != null)
+            parts.addAll(parent.getEndpointPath().parts());
+      }
+      else if (collection.getIncludePaths().size() > 0)
+      {
+         String collectionPath = collection.getIncludePaths().get(0).toString();
+         if (collectionPath.indexOf("*") > -1)
+            collectionPath = collectionPath.substring(0, collectionPath.indexOf("*"));
+
+         parts.addAll(new Path(collectionPath).parts());
+      }
+      parts.add(collectionKey);
+      if (!Utils.empty(entityKeys))
+         parts.add(entityKeys);
+
+      List<String> fullPath = parent.getApiPath() != null ? parent.getApiPath().parts() : new ArrayList();
+      fullPath.addAll(parts);
+
+      Url url = parent.getUrl().copy().withPath(new Path(fullPath)).withQuery(null).withParams(params);
+      url.withOriginal(url.toString());
+
+      Request req = new Request("GET", url);
+      req.withApi(api);
+      req.withApiPath(parent.getApiPath());
+      req.withTenantCode(parent.getTenantCode());
+
+      Response res = new Response();
+      res.withStreaming(true);
+
+      service(req, res);
+      return res;
+   }
+
    public Chain service(Request req, Response res)
    {
       if (!started)
@@ -326,12 +421,17 @@ public class Engine
 
       Chain chain = null;
 
+      //-- top level requests get a fresh request scoped context that
+      //-- is unbound again once the request is complete
+      Context context = Context.peekCurrent() == null ? Context.current() : null;
+
       try
       {
          chain = Chain.push(this, req, res);
          req.withEngine(this);
          req.withChain(chain);
          res.withChain(chain);
+         res.withDebugEnabled(req.isDebug());
 
          //--
          //-- CORS header setup
@@ -381,118 +481,69 @@ public class Engine
 
          Url url = req.getUrl();
 
-         Path urlPath = url.getPath();
-         List<String> parts = urlPath.parts();
-
-         List<String> apiPath = new ArrayList();
-
-         if (servletMapping != null)
+         if (req.getApi() != null)
          {
-            for (String servletPathPart : servletMapping.parts())
-            {
-               if (!servletPathPart.equalsIgnoreCase(parts.get(0)))
-               {
-                  //the inbound URL does not match the expected servletMapping
-                  //this may be becuse you are localhost testing...going to 
-                  //optimistically skip 
-                  break;
-               }
-               apiPath.add(servletPathPart);
-               parts.remove(0);
-            }
+            //-- requests from include() arrive with the api already
+            //-- resolved and a url path that was never rendered as text
+            route(req.getApi(), req, req.getPath().parts());
          }
-
-         for (Api a : apis)
+         else
          {
-            if (!((parts.size() == 0 && apis.size() == 1) //
-                  || (apis.size() == 1 && a.getApiCode() == null) //if you only have 1 API, you don't have to have an API code
-                  || (parts.size() > 0 && parts.get(0).equalsIgnoreCase(a.getApiCode()))))
-               continue;
+            Path urlPath = url.getPath();
+            List<String> parts = urlPath.parts();
 
-            req.withApi(a);
+            List<String> apiPath = new ArrayList();
 
-            if (parts.size() > 0 && parts.get(0).equalsIgnoreCase((a.getApiCode())))
+            if (servletMapping != null)
             {
-               apiPath.add(parts.remove(0));
+               for (String servletPathPart : servletMapping.parts())
+               {
+                  if (!servletPathPart.equalsIgnoreCase(parts.get(0)))
+                  {
+                     //the inbound URL does not match the expected servletMapping
+                     //this may be becuse you are localhost testing...going to 
+                     //optimistically skip 
+                     break;
+                  }
+                  apiPath.add(servletPathPart);
+                  parts.remove(0);
+               }
             }
 
-            if (a.isMultiTenant() && parts.size() > 0)
+            for (Api a : apis)
             {
-               String tenantCode = parts.remove(0);
-               apiPath.add(tenantCode);
-               req.withTenantCode(tenantCode);
-            }
+               if (!((parts.size() == 0 && apis.size() == 1) //
+                     || (apis.size() == 1 && a.getApiCode() == null) //if you only have 1 API, you don't have to have an API code
+                     || (parts.size() > 0 && parts.get(0).equalsIgnoreCase(a.getApiCode()))))
+                  continue;
 
-            req.withApiPath(new Path(apiPath));
+               req.withApi(a);
 
-            Path remainingPath = new Path(parts); //find the endpoint that matches the fewest path segments
-            for (int i = 0; i <= parts.size(); i++)
-            {
-               Path endpointPath = new Path(i == 0 ? Collections.EMPTY_LIST : parts.subList(0, i));
-               for (Endpoint e : a.getEndpoints())
+               if (parts.size() > 0 && parts.get(0).equalsIgnoreCase((a.getApiCode())))
                {
-                  if (e.matches(req.getMethod(), endpointPath, remainingPath.subpath(i, remainingPath.size())))
-                  {
-                     req.withEndpointPath(endpointPath);
-                     req.withEndpoint(e);
-
-                     if (i < parts.size())
-                     {
-                        String collectionKey = parts.get(i);
-
-                        req.withCollectionKey(collectionKey);
-                        i += 1;
-
-                        for (Collection collection : a.getCollections())
-                        {
-                           if (collection.hasName(collectionKey)//
-                                 && (collection.getIncludePaths().size() > 0 //
-                                       || collection.getExcludePaths().size() > 0))
-                           {
-                              if (collection.matches(req.getMethod(), endpointPath))
-                              {
-                                 req.withCollection(collection);
-                                 break;
-                              }
-                           }
-                        }
-
-                        if (req.getCollection() == null)
-                        {
-                           for (Collection collection : a.getCollections())
-                           {
-                              if (collection.hasName(collectionKey) //
-                                    && collection.getIncludePaths().size() == 0 //
-                                    && collection.getExcludePaths().size() == 0)
-                              {
-                                 req.withCollection(collection);
-                                 break;
-                              }
-                           }
-                        }
-
-                     }
-                     if (i < parts.size())
-                     {
-                        req.withEntityKey(parts.get(i));
-                        i += 1;
-                     }
-                     if (i < parts.size())
-                     {
-                        req.withSubCollectionKey(parts.get(i));
-                     }
-                     break;
-                  }
+                  apiPath.add(parts.remove(0));
+               }
+
+               if (a.isMultiTenant() && parts.size() > 0)
+               {
+                  String tenantCode = parts.remove(0);
+                  apiPath.add(tenantCode);
+                  req.withTenantCode(tenantCode);
                }
 
-               if (req.getEndpoint() != null)
-                  break;
+               req.withApiPath(new Path(apiPath));
+
+               route(a, req, parts);
             }
          }
 
+         //-- Request.isDebug() falls back to the Api so it has
+         //-- to be checked again now that the Api is known
+         res.withDebugEnabled(req.isDebug());
+
          //---------------------------------
 
-         if (req.getEndpoint() == null || req.getUrl().getHost().equals("localhost"))
+         if (res.isDebugEnabled())
          {
             res.debug("");
             res.debug("");
@@ -535,24 +586,14 @@ public class Engine
          //         }
 
          //this will get all actions specifically configured on the endpoint
-         List<Action> actions = req.getEndpoint().getActions(req);
-
-         //this matches for actions that can run across multiple endpoints.
-         //this might be something like an authorization or logging action
-         //that acts like a filter
-         for (Action a : req.getApi().getActions())
-         {
-            //http://host/{apipath}/{endpointpath}/{subpath}
-            //since these actions were not assigned to 
-            if (a.matches(req.getMethod(), req.getPath()))
-               actions.add(a);
-         }
+         //plus actions that can run across multiple endpoints.  The api level
+         //actions might be something like an authorization or logging action
+         //that acts like a filter.  Api memoizes the sorted result.
+         List<Action> actions = req.getApi().getActions(req);
 
          if (actions.size() == 0)
             throw new ApiException(Status.SC_404_NOT_FOUND, "No Actions are configured to handle your request.  Check your server configuration.");
 
-         Collections.sort(actions);
-
          //-- appends info to chain.debug that can be used for debugging an d
          //-- for test cases to validate what actually ran
          if (req.isDebug())
@@ -649,11 +690,52 @@ public class Engine
 
          Chain.pop();
          lastResponse = res;
+
+         if (context != null)
+            Context.bind(null);
       }
 
       return chain;
    }
 
+   /**
+    * Runs {@link #service(Request, Response)} on <code>executor</code>.
+    * <p>
+    * If this is called while servicing another request, the work is done in 
+    * a fork of the caller's Context so Chain.peek(), Chain.getUser() etc. 
+    * behave as they would for a nested call on the same thread.
+    * 
+    * @param req
+    * @param res
+    * @return a future that completes when the request has been serviced
+    */
+   public CompletableFuture<Chain> serviceAsync(final Request req, final Response res)
+   {
+      final CompletableFuture<Chain> future = new CompletableFuture();
+      Runnable task = new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  future.complete(service(req, res));
+               }
+               catch (Throwable ex)
+               {
+                  future.completeExceptionally(ex);
+               }
+            }
+         };
+
+      Context context = Context.peekCurrent();
+      if (context != null && context.getChains().size() > 0)
+         task = context.wrap(task);
+
+      getExecutor().execute(task);
+      return future;
+   }
+
    LinkedHashSet<EngineListener> getListeners(Request req)
    {
       LinkedHashSet listeners = new LinkedHashSet(this.listeners);
@@ -678,6 +760,46 @@ public class Engine
       chain.withActions(actions).go();
    }
 
+   /**
+    * Finds the endpoint that matches the fewest path segments and
+    * pulls the collection, entity and subcollection keys off of the
+    * remaining path.
+    * 
+    * @param api the api the request is for
+    * @param req the request to route
+    * @param parts the request path with the api path already removed
+    */
+   protected void route(Api api, Request req, List<String> parts)
+   {
+      Route route = api.getRouter().route(req.getMethod(), parts);
+      if (route != null)
+      {
+         Path endpointPath = route.getEndpointPath();
+         int i = route.getDepth();
+
+         req.withEndpointPath(endpointPath);
+         req.withEndpoint(route.getEndpoint());
+
+         if (i < parts.size())
+         {
+            String collectionKey = parts.get(i);
+
+            req.withCollectionKey(collectionKey);
+            req.withCollection(api.getRouter().findCollection(req.getMethod(), endpointPath, collectionKey));
+            i += 1;
+         }
+         if (i < parts.size())
+         {
+            req.withEntityKey(parts.get(i));
+            i += 1;
+         }
+         if (i < parts.size())
+         {
+            req.withSubCollectionKey(parts.get(i));
+         }
+      }
+   }
+
    protected void writeResponse(Request req, Response res) throws Exception
    {
       boolean debug = req != null && req.isDebug();
@@ -712,27 +834,27 @@ public class Engine
          }
          else if (output == null && res.getJson() != null)
          {
-            output = res.getJson().toString();
+            if ((streamJson || res.isStreaming()) && !explain)
+               res.withStreaming(true);
+            else
+               output = res.getJson().toString();
 
             if (res.getContentType() == null)
                res.withContentType("application/json");
          }
 
-         JSNode headers = new JSNode();
-         for (String key : res.getHeaders().keySet())
+         if (res.isDebugEnabled())
          {
-            List values = res.getHeaders().get(key);
-            StringBuffer buff = new StringBuffer();
-            for (int i = 0; i < values.size(); i++)
+            for (String key : res.getHeaders().keySet())
             {
-               buff.append(values.get(i));
-               if (i < values.size() - 1)
-                  buff.append(",");
+               res.debug(key + " " + Utils.implode(",", res.getHeaders().get(key)));
             }
-            res.debug(key + " " + buff);
          }
 
-         res.out(output);
+         if (res.isStreaming())
+            res.debug("<< streamed json >>");
+         else
+            res.out(output);
 
          res.debug("\r\n-- done -----------------\r\n");
 
@@ -986,6 +1108,88 @@ public class Engine
       return this;
    }
 
+   public boolean isStreamJson()
+   {
+      return streamJson;
+   }
+
+   public Engine withStreamJson(boolean streamJson)
+   {
+      this.streamJson = streamJson;
+      return this;
+   }
+
+   public synchronized ExecutorService getExecutor()
+   {
+      if (executor == null)
+         withExecutor(newCachedThreadPool(), true);
+      return executor;
+   }
+
+   public Engine withExecutor(ExecutorService executor)
+   {
+      return withExecutor(executor, false);
+   }
+
+   /**
+    * @param owned true if the executor was created by this engine and should be shut down with it
+    */
+   protected synchronized Engine withExecutor(ExecutorService executor, boolean owned)
+   {
+      if (ownsExecutor && this.executor != null && this.executor != executor)
+         this.executor.shutdown();
+
+      this.executor = executor;
+      this.ownsExecutor = owned;
+      return this;
+   }
+
+   protected ExecutorService newCachedThreadPool()
+   {
+      return Executors.newCachedThreadPool(new ThreadFactory()
+         {
+            AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+               Thread t = new Thread(r, "inversion-engine-" + count.incrementAndGet());
+               t.setDaemon(true);
+               return t;
+            }
+         });
+   }
+
+   /**
+    * Services async requests on a new virtual thread per request when running
+    * on a JVM that supports them.  This is looked up reflectively so the
+    * project can continue to target Java 8.  On older JVMs a cached 
+    * thread pool is used instead.
+    * 
+    * @param virtualThreads
+    * @return this
+    */
+   public Engine withVirtualThreads(boolean virtualThreads)
+   {
+      ExecutorService executor = null;
+      if (virtualThreads)
+      {
+         try
+         {
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+         }
+         catch (Exception ex)
+         {
+            log.warn("Virtual threads are not supported by this JVM, falling back to a cached thread pool.");
+         }
+      }
+
+      if (executor == null)
+         executor = newCachedThreadPool();
+
+      return withExecutor(executor, true);
+   }
+
    public int getConfigTimeout()
    {
       return configTimeout;
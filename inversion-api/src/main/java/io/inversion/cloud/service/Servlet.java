@@ -17,18 +17,32 @@
 package io.inversion.cloud.service;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -44,43 +58,83 @@ import io.inversion.cloud.utils.Utils;
 
 public class Servlet extends HttpServlet
 {
+   /**
+    * Compatibility accessors for the servlet request/response which
+    * are stored on the request scoped {@link Context}.
+    */
    public static class ServletLocal
    {
-      static ThreadLocal<HttpServletRequest>  request  = new ThreadLocal();
-      static ThreadLocal<HttpServletResponse> response = new ThreadLocal();
+      static final String REQUEST  = ServletLocal.class.getName() + ".request";
+      static final String RESPONSE = ServletLocal.class.getName() + ".response";
 
       public static void set(HttpServletRequest req, HttpServletResponse res)
       {
-         request.set(req);
-         response.set(res);
+         setRequest(req);
+         setResponse(res);
       }
 
       public static void setRequest(HttpServletRequest req)
       {
-         request.set(req);
+         Context.current().put(REQUEST, req);
       }
 
       public static void setResponse(HttpServletResponse res)
       {
-         response.set(res);
+         Context.current().put(RESPONSE, res);
       }
 
       public static HttpServletRequest getRequest()
       {
-         return request.get();
+         return (HttpServletRequest) Context.current().get(REQUEST);
       }
 
       public static HttpServletResponse getResponse()
       {
-         return response.get();
+         return (HttpServletResponse) Context.current().get(RESPONSE);
       }
    }
 
-   Engine engine = null;//new Engine();
+   Engine                             engine           = null;//new Engine();
+
+   /**
+    * When true, and the container supports it, requests are serviced using 
+    * Servlet 3.1 async non-blocking IO.  The request body is read by a
+    * ReadListener, Engine.service() is run on <code>executor</code> and the
+    * response is written by a WriteListener so container threads are not
+    * held while Actions wait on a database. 
+    * <p>
+    * Form and multipart requests are always serviced synchronously.
+    */
+   protected boolean                  async            = false;
+
+   /**
+    * Millis an async request may run before the container times it out
+    * and a 503 is returned.  0 or less uses the container default.
+    */
+   protected long                     asyncTimeout     = 30000;
+
+   /**
+    * The executor async requests are dispatched to.  If null, the Engine's
+    * executor is used if it has one, otherwise a cached thread pool is 
+    * created on demand and shut down in destroy().  It is resolved once
+    * so requests do not take a lock to find it.
+    */
+   protected volatile ExecutorService executor         = null;
+   protected boolean                  shutdownExecutor = false;
 
    public void destroy()
    {
       engine.destroy();
+
+      synchronized (this)
+      {
+         if (shutdownExecutor && executor != null)
+         {
+            executor.shutdown();
+            executor = null;
+            shutdownExecutor = false;
+         }
+      }
    }
 
    public void init(ServletConfig config)
@@ -98,9 +152,77 @@ public class Servlet extends HttpServlet
       this.engine = engine;
    }
 
+   public boolean isAsync()
+   {
+      return async;
+   }
+
+   public void setAsync(boolean async)
+   {
+      this.async = async;
+   }
+
+   public long getAsyncTimeout()
+   {
+      return asyncTimeout;
+   }
+
+   public void setAsyncTimeout(long asyncTimeout)
+   {
+      this.asyncTimeout = asyncTimeout;
+   }
+
+   public ExecutorService getExecutor()
+   {
+      ExecutorService executor = this.executor;
+      if (executor != null)
+         return executor;
+
+      synchronized (this)
+      {
+         if (this.executor != null)
+            return this.executor;
+
+         if (engine != null && engine.executor != null)
+         {
+            this.executor = engine.executor;
+         }
+         else
+         {
+            this.executor = Executors.newCachedThreadPool(new ThreadFactory()
+               {
+                  AtomicInteger count = new AtomicInteger(0);
+
+                  @Override
+                  public Thread newThread(Runnable r)
+                  {
+                     Thread t = new Thread(r, "inversion-async-" + count.incrementAndGet());
+                     t.setDaemon(true);
+                     return t;
+                  }
+               });
+            shutdownExecutor = true;
+         }
+         return this.executor;
+      }
+   }
+
+   public synchronized void setExecutor(ExecutorService executor)
+   {
+      this.executor = executor;
+      this.shutdownExecutor = false;
+   }
+
    @Override
    public void service(HttpServletRequest httpReq, HttpServletResponse httpResp) throws ServletException, IOException
    {
+      if (async && httpReq.isAsyncSupported() && !isFormOrMultipart(httpReq))
+      {
+         serviceAsync(httpReq, httpResp);
+         return;
+      }
+
+      Context previous = Context.bind(new Context());
       ServletLocal.set(httpReq, httpResp);
 
       Response res = null;
@@ -108,99 +230,216 @@ public class Servlet extends HttpServlet
 
       try
       {
-         String method = httpReq.getMethod();
-         String urlstr = httpReq.getRequestURL().toString();
+         req = buildRequest(httpReq, readBody(httpReq));
+         res = new Response();
 
-         if (!urlstr.endsWith("/"))
-            urlstr = urlstr + "/";
+         engine.service(req, res);
+         writeResponse(req, res, httpResp);
+      }
+      catch (Exception ex)
+      {
+         ex.printStackTrace();
+         httpResp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      }
+      finally
+      {
+         Context.bind(previous);
+      }
+   }
 
-         String query = httpReq.getQueryString();
-         if (!Utils.empty(query))
-         {
-            urlstr += "?" + query;
-         }
+   /**
+    * Reads the body with a non-blocking ReadListener and then hands
+    * the request off to <code>executor</code>.
+    */
+   protected void serviceAsync(final HttpServletRequest httpReq, final HttpServletResponse httpResp) throws IOException
+   {
+      final AsyncContext asyncCtx = httpReq.startAsync();
+      if (asyncTimeout > 0)
+         asyncCtx.setTimeout(asyncTimeout);
 
-         Map headers = new HashMap();
-         Enumeration<String> headerEnum = httpReq.getHeaderNames();
-         while (headerEnum.hasMoreElements())
-         {
-            String key = headerEnum.nextElement();
-            String val = httpReq.getHeader(key);
-            headers.put(key, val);
-         }
+      final AsyncResponse asyncRes = new AsyncResponse(asyncCtx, httpResp);
+      asyncCtx.addListener(asyncRes);
 
-         Map params = new HashMap();
-         Enumeration<String> paramsEnumer = httpReq.getParameterNames();
-         while (paramsEnumer.hasMoreElements())
-         {
-            String key = paramsEnumer.nextElement();
-            String val = httpReq.getParameter(key);
-            params.put(key, val);
-         }
+      final ServletInputStream in = httpReq.getInputStream();
+      final ByteArrayOutputStream body = new ByteArrayOutputStream();
 
-         String body = readBody(httpReq);
+      in.setReadListener(new ReadListener()
+         {
+            byte[] buff = new byte[8192];
 
-         req = new Request(method, urlstr, headers, params, body);
-         req.withRemoteAddr(httpReq.getRemoteAddr());
+            @Override
+            public void onDataAvailable() throws IOException
+            {
+               int read = -1;
+               while (in.isReady() && (read = in.read(buff)) > -1)
+               {
+                  body.write(buff, 0, read);
+               }
+            }
 
-         req.withUploader(new Uploader()
+            @Override
+            public void onAllDataRead() throws IOException
             {
-               @Override
-               public List<Upload> getUploads()
+               try
                {
-                  try
-                  {
-                     String fileName = null;
-                     long fileSize = 0;
-                     String requestPath = null;
-                     InputStream inputStream = null;
+                  //-- decoded the same way getReader() would in the sync path
+                  String encoding = httpReq.getCharacterEncoding();
+                  final String text = body.toString(encoding != null ? encoding : "UTF-8");
 
-                     for (Part part : httpReq.getParts())
+                  getExecutor().execute(new Runnable()
                      {
-                        if (part.getName() == null)
+                        @Override
+                        public void run()
                         {
-                           continue;
+                           serviceAsync0(asyncRes, httpReq, httpResp, text);
                         }
-                        if (part.getName().equals("file"))
-                        {
-                           inputStream = part.getInputStream();
-                           fileName = part.getSubmittedFileName();
-                           fileSize = part.getSize();
-                        }
-                        else if (part.getName().equals("requestPath"))
-                        {
-                           requestPath = Utils.read(part.getInputStream());
-                           if (requestPath.indexOf("/") == 0)
-                              requestPath = requestPath.substring(1);
-                        }
-                     }
+                     });
+               }
+               catch (UnsupportedEncodingException ex)
+               {
+                  asyncRes.fail(HttpServletResponse.SC_BAD_REQUEST);
+               }
+               catch (RejectedExecutionException ex)
+               {
+                  asyncRes.fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+               }
+            }
+
+            @Override
+            public void onError(Throwable t)
+            {
+               t.printStackTrace();
+               asyncRes.fail(HttpServletResponse.SC_BAD_REQUEST);
+            }
+         });
+   }
 
-                     List uploads = new ArrayList();
+   protected void serviceAsync0(AsyncResponse asyncRes, HttpServletRequest httpReq, HttpServletResponse httpResp, String body)
+   {
+      Context previous = Context.bind(new Context());
+      ServletLocal.set(httpReq, httpResp);
+      try
+      {
+         Request req = buildRequest(httpReq, body);
+         Response res = new Response();
+
+         engine.service(req, res);
 
-                     if (inputStream != null)
+         //-- the request timed out or failed while the engine was running
+         if (!asyncRes.startWrite())
+            return;
+
+         writeResponseAsync(req, res, httpResp, asyncRes);
+      }
+      catch (Throwable ex)
+      {
+         ex.printStackTrace();
+         asyncRes.fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      }
+      finally
+      {
+         Context.bind(previous);
+      }
+   }
+
+   protected Request buildRequest(final HttpServletRequest httpReq, String body) throws Exception
+   {
+      String method = httpReq.getMethod();
+      String urlstr = httpReq.getRequestURL().toString();
+
+      if (!urlstr.endsWith("/"))
+         urlstr = urlstr + "/";
+
+      String query = httpReq.getQueryString();
+      if (!Utils.empty(query))
+      {
+         urlstr += "?" + query;
+      }
+
+      Map headers = new HashMap();
+      Enumeration<String> headerEnum = httpReq.getHeaderNames();
+      while (headerEnum.hasMoreElements())
+      {
+         String key = headerEnum.nextElement();
+         String val = httpReq.getHeader(key);
+         headers.put(key, val);
+      }
+
+      Map params = new HashMap();
+      Enumeration<String> paramsEnumer = httpReq.getParameterNames();
+      while (paramsEnumer.hasMoreElements())
+      {
+         String key = paramsEnumer.nextElement();
+         String val = httpReq.getParameter(key);
+         params.put(key, val);
+      }
+
+      Request req = new Request(method, urlstr, headers, params, body);
+      req.withRemoteAddr(httpReq.getRemoteAddr());
+
+      req.withUploader(new Uploader()
+         {
+            @Override
+            public List<Upload> getUploads()
+            {
+               try
+               {
+                  String fileName = null;
+                  long fileSize = 0;
+                  String requestPath = null;
+                  InputStream inputStream = null;
+
+                  for (Part part : httpReq.getParts())
+                  {
+                     if (part.getName() == null)
                      {
-                        uploads.add(new Upload(fileName, fileSize, requestPath, inputStream));
+                        continue;
+                     }
+                     if (part.getName().equals("file"))
+                     {
+                        inputStream = part.getInputStream();
+                        fileName = part.getSubmittedFileName();
+                        fileSize = part.getSize();
+                     }
+                     else if (part.getName().equals("requestPath"))
+                     {
+                        requestPath = Utils.read(part.getInputStream());
+                        if (requestPath.indexOf("/") == 0)
+                           requestPath = requestPath.substring(1);
                      }
-                     return uploads;
                   }
-                  catch (Exception ex)
+
+                  List uploads = new ArrayList();
+
+                  if (inputStream != null)
                   {
-                     Utils.rethrow(ex);
+                     uploads.add(new Upload(fileName, fileSize, requestPath, inputStream));
                   }
-                  return null;
+                  return uploads;
+               }
+               catch (Exception ex)
+               {
+                  Utils.rethrow(ex);
                }
-            });
+               return null;
+            }
+         });
 
-         res = new Response();
+      return req;
+   }
 
-         engine.service(req, res);
-         writeResponse(req, res, httpResp);
-      }
-      catch (Exception ex)
-      {
-         ex.printStackTrace();
-         httpResp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-      }
+   /**
+    * Form and multipart bodies are consumed by the container when 
+    * parameters or parts are requested so they can not be read async.
+    */
+   boolean isFormOrMultipart(HttpServletRequest httpReq)
+   {
+      String contentType = httpReq.getContentType();
+      if (contentType == null)
+         return false;
+
+      contentType = contentType.toLowerCase();
+      return contentType.startsWith("multipart/") || contentType.startsWith("application/x-www-form-urlencoded");
    }
 
    public static String readBody(HttpServletRequest request) throws ApiException
@@ -255,24 +494,11 @@ public class Servlet extends HttpServlet
    {
       String method = req != null ? req.getMethod() : null;
 
-      http.setStatus(res.getStatusCode());
-
       OutputStream out = http.getOutputStream();
       try
       {
-         for (String key : res.getHeaders().keySet())
-         {
-            List values = res.getHeaders().get(key);
-            StringBuffer buff = new StringBuffer();
-            for (int i = 0; i < values.size(); i++)
-            {
-               buff.append(values.get(i));
-               if (i < values.size() - 1)
-                  buff.append(",");
-            }
-            http.setHeader(key, buff.toString());
-            res.debug(key + " " + buff);
-         } ;
+         writeHeaders(res, http);
+
          if ("OPTIONS".equals(method))
          {
             //
@@ -280,13 +506,23 @@ public class Servlet extends HttpServlet
          else
          {
             String contentType = res.getContentType();
-            byte[] bytes = res.getOutput().getBytes();
-
             http.setContentType(contentType);
-            res.withHeader("Content-Length", bytes.length + "");
-            res.debug("Content-Length " + bytes.length + "");
 
-            out.write(bytes);
+            if (res.isStreaming())
+            {
+               //-- the length is not known until the document has been
+               //-- serialized so the container will chunk the response
+               res.writeOutput(out);
+            }
+            else
+            {
+               byte[] bytes = res.getOutput().getBytes();
+
+               res.withHeader("Content-Length", bytes.length + "");
+               res.debug("Content-Length " + bytes.length + "");
+
+               out.write(bytes);
+            }
          }
       }
       finally
@@ -295,4 +531,178 @@ public class Servlet extends HttpServlet
          out.close();
       }
    }
+
+   /**
+    * Buffered output is written with a non-blocking WriteListener.  Streaming
+    * responses are written in blocking mode but that happens on the executor
+    * thread, not a container thread.
+    */
+   void writeResponseAsync(Request req, Response res, HttpServletResponse http, final AsyncResponse asyncRes) throws Exception
+   {
+      String method = req != null ? req.getMethod() : null;
+
+      writeHeaders(res, http);
+
+      if ("OPTIONS".equals(method))
+      {
+         asyncRes.complete();
+         return;
+      }
+
+      http.setContentType(res.getContentType());
+
+      if (res.isStreaming())
+      {
+         try
+         {
+            OutputStream out = http.getOutputStream();
+            res.writeOutput(out);
+            out.flush();
+         }
+         finally
+         {
+            asyncRes.complete();
+         }
+         return;
+      }
+
+      final byte[] bytes = res.getOutput().getBytes();
+      http.setContentLength(bytes.length);
+      res.debug("Content-Length " + bytes.length + "");
+
+      final ServletOutputStream out = http.getOutputStream();
+      out.setWriteListener(new WriteListener()
+         {
+            int offset = 0;
+
+            @Override
+            public void onWritePossible() throws IOException
+            {
+               while (asyncRes.isWriting() && out.isReady())
+               {
+                  if (offset >= bytes.length)
+                  {
+                     asyncRes.complete();
+                     return;
+                  }
+
+                  int len = Math.min(8192, bytes.length - offset);
+                  out.write(bytes, offset, len);
+                  offset += len;
+               }
+            }
+
+            @Override
+            public void onError(Throwable t)
+            {
+               t.printStackTrace();
+               asyncRes.complete();
+            }
+         });
+   }
+
+   /**
+    * Makes sure an async response is written and completed only once.
+    * <p>
+    * If the container times the request out, or reports an error, before
+    * the executor starts writing, a 503 or 500 is sent and the late
+    * response from the executor is dropped.  If it happens while the
+    * response is being written, the response is just completed.
+    */
+   protected static class AsyncResponse implements AsyncListener
+   {
+      static final int          RUNNING  = 0;
+      static final int          WRITING  = 1;
+      static final int          DONE     = 2;
+
+      final AsyncContext        asyncCtx;
+      final HttpServletResponse httpResp;
+      final AtomicInteger       state    = new AtomicInteger(RUNNING);
+
+      AsyncResponse(AsyncContext asyncCtx, HttpServletResponse httpResp)
+      {
+         this.asyncCtx = asyncCtx;
+         this.httpResp = httpResp;
+      }
+
+      /**
+       * @return false if the request already timed out or failed and nothing should be written
+       */
+      boolean startWrite()
+      {
+         return state.compareAndSet(RUNNING, WRITING);
+      }
+
+      boolean isWriting()
+      {
+         return state.get() == WRITING;
+      }
+
+      void complete()
+      {
+         if (state.compareAndSet(WRITING, DONE))
+            asyncCtx.complete();
+      }
+
+      void fail(int status)
+      {
+         if (state.compareAndSet(RUNNING, DONE))
+         {
+            httpResp.setStatus(status);
+            asyncCtx.complete();
+         }
+         else
+         {
+            complete();
+         }
+      }
+
+      @Override
+      public void onTimeout(AsyncEvent event) throws IOException
+      {
+         fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      }
+
+      @Override
+      public void onError(AsyncEvent event) throws IOException
+      {
+         if (event.getThrowable() != null)
+            event.getThrowable().printStackTrace();
+
+         fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      }
+
+      @Override
+      public void onComplete(AsyncEvent event) throws IOException
+      {
+         state.set(DONE);
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) throws IOException
+      {
+
+      }
+   }
+
+   void writeHeaders(Response res, HttpServletResponse http)
+   {
+      http.setStatus(res.getStatusCode());
+
+      for (String key : res.getHeaders().keySet())
+      {
+         List values = res.getHeaders().get(key);
+         StringBuffer buff = new StringBuffer();
+         for (int i = 0; i < values.size(); i++)
+         {
+            buff.append(values.get(i));
+            if (i < values.size() - 1)
+               buff.append(",");
+         }
+         http.setHeader(key, buff.toString());
+
+         if (res.isDebugEnabled())
+            res.debug(key + " " + buff);
+      }
+   }
 }
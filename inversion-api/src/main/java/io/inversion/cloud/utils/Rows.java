@@ -22,11 +22,16 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import io.inversion.cloud.utils.Rows.Row;
 
@@ -206,6 +211,63 @@ public class Rows extends ArrayList<Row>
          });
    }
 
+   /**
+    * A forward only cursor over rows that are read on demand, for
+    * example from an open JDBC ResultSet, so the full result never
+    * has to be held in memory.
+    * <p>
+    * The underlying resources stay open until the last row has been
+    * read or close() is called.  Callers should always close() the
+    * iterator, ideally with try-with-resources.
+    */
+   public static interface RowIterator extends Iterator<Row>, AutoCloseable
+   {
+      @Override
+      public void close();
+
+      /**
+       * @return a sequential Stream of the remaining rows that closes this iterator when the Stream is closed
+       */
+      public default Stream<Row> stream()
+      {
+         return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(new Runnable()
+            {
+               @Override
+               public void run()
+               {
+                  close();
+               }
+            });
+      }
+   }
+
+   /**
+    * @return a RowIterator over rows that are already in memory
+    */
+   public static RowIterator iterator(final Iterable<? extends Row> rows)
+   {
+      final Iterator<? extends Row> it = rows.iterator();
+      return new RowIterator()
+         {
+            @Override
+            public boolean hasNext()
+            {
+               return it.hasNext();
+            }
+
+            @Override
+            public Row next()
+            {
+               return it.next();
+            }
+
+            @Override
+            public void close()
+            {
+            }
+         };
+   }
+
    /**
     * Case insensitive map implementation
     *
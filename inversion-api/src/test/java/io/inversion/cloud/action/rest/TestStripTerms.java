@@ -64,6 +64,17 @@ public class TestStripTerms extends TestCase
       }
    }
 
+   public void testStripNestedParamPrefix()
+   {
+      assertEquals(0, RestGetAction.indexOfWord("employee.includes", "employee", 0));
+      assertEquals(6, RestGetAction.indexOfWord("order.employee.includes", "employee", 0));
+      assertEquals(-1, RestGetAction.indexOfWord("reportsemployee.includes", "employee", 0));
+
+      assertEquals("includes", RestGetAction.stripWord("employee.includes", "employee."));
+      assertEquals("eq(lastName,Smith)", RestGetAction.stripWord("eq(employee.lastName,Smith)", "employee."));
+      assertEquals("eq(manageremployee.lastName,Smith)", RestGetAction.stripWord("eq(manageremployee.lastName,Smith)", "employee."));
+   }
+
    //   public void testStripTerms2()
    //   {
    //      String[][] tests = {{"http://asdf?offset=5&AAA=BBB&offset = 5&notOffset=123&eq(offset,22)&CCC=DDD&OFFSET=345", "offset", "http://asdf?AAA=BBB&offset = 5&notOffset=123&CCC=DDD"}};
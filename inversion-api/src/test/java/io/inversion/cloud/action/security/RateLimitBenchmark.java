@@ -0,0 +1,105 @@
+package io.inversion.cloud.action.security;
+
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the GCRA {@link RateLimitAction.Bucket} against the Hashtable
+ * hit counter RateLimitAction used to keep, with 64 threads hitting
+ * 10k distinct clients.
+ * <p>
+ * This is not a unit test, run it from main()
+ */
+public class RateLimitBenchmark
+{
+   static final int THREADS    = 64;
+   static final int CLIENTS    = 10000;
+   static final int ITERATIONS = 200000;
+
+   static interface Limiter
+   {
+      long hit(String clientId, long now);
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      final String[] clients = new String[CLIENTS];
+      for (int i = 0; i < CLIENTS; i++)
+         clients[i] = "10.0." + (i / 256) + "." + (i % 256);
+
+      for (int round = 0; round < 5; round++)
+      {
+         final Hashtable<String, int[]> hits = new Hashtable();
+         long legacy = run(clients, new Limiter()
+            {
+               public long hit(String clientId, long now)
+               {
+                  synchronized (hits)
+                  {
+                     int[] num = hits.get(clientId);
+                     if (num == null)
+                     {
+                        num = new int[1];
+                        hits.put(clientId, num);
+                     }
+                     return ++num[0] > 100 ? 1 : 0;
+                  }
+               }
+            });
+
+         final RateLimitAction.Bucket bucket = new RateLimitAction.Bucket("test", 1, 100, -1, 100000, null);
+         long gcra = run(clients, new Limiter()
+            {
+               public long hit(String clientId, long now)
+               {
+                  return bucket.hit(clientId, now);
+               }
+            });
+
+         long ops = (long) THREADS * ITERATIONS;
+         System.out.println("round " + round + " " + THREADS + " threads  hashtable: " + (ops * 1000 / legacy) + " hits/ms  gcra: " + (ops * 1000 / gcra) + " hits/ms");
+      }
+   }
+
+   static long run(final String[] clients, final Limiter limiter) throws Exception
+   {
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(THREADS);
+      final AtomicLong rejected = new AtomicLong(0);
+
+      for (int t = 0; t < THREADS; t++)
+      {
+         final int offset = t * 7919;
+         new Thread()
+            {
+               public void run()
+               {
+                  try
+                  {
+                     start.await();
+                     long r = 0;
+                     for (int i = 0; i < ITERATIONS; i++)
+                     {
+                        if (limiter.hit(clients[(offset + i) % clients.length], System.currentTimeMillis()) > 0)
+                           r += 1;
+                     }
+                     rejected.addAndGet(r);
+                  }
+                  catch (InterruptedException ex)
+                  {
+                  }
+                  finally
+                  {
+                     done.countDown();
+                  }
+               }
+            }.start();
+      }
+
+      long begin = System.nanoTime();
+      start.countDown();
+      done.await();
+      return (System.nanoTime() - begin) / 1000;
+   }
+}
@@ -16,8 +16,22 @@
  */
 package io.inversion.cloud.action.security;
 
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.junit.Test;
 
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+
+import io.inversion.cloud.action.misc.MockAction;
+import io.inversion.cloud.model.Api;
+import io.inversion.cloud.model.JSNode;
+import io.inversion.cloud.model.Request;
+import io.inversion.cloud.model.Response;
+import io.inversion.cloud.model.User;
+import io.inversion.cloud.service.Engine;
 import junit.framework.TestCase;
 
 public class TestAuthAction extends TestCase
@@ -28,6 +42,89 @@ public class TestAuthAction extends TestCase
    {
    }
 
+   @Test
+   public void testJwtCache() throws Exception
+   {
+      //-- newer secrets are tried first, the token is signed with the oldest
+      System.setProperty("testJwtCache.jwt.1.secret", "newSecret");
+      System.setProperty("testJwtCache.jwt.secret", "oldSecret");
+      try
+      {
+         AuthAction auth = new AuthAction().withName("testJwtCache");
+         Engine engine = new Engine(new Api("test").withEndpoint("GET", "ep/*", auth, new MockAction("mock")));
+
+         String token = JWT.create().withSubject("bob").withExpiresAt(new Date(System.currentTimeMillis() + 60000)).sign(Algorithm.HMAC256("oldSecret"));
+
+         assertEquals(200, bearer(engine, token).getStatusCode());
+         assertEquals(0, auth.getJwtCache().getHits());
+         assertEquals(1, auth.getJwtCache().size());
+
+         assertEquals(200, bearer(engine, token).getStatusCode());
+         assertEquals(1, auth.getJwtCache().getHits());
+
+         String forged = JWT.create().withSubject("bob").sign(Algorithm.HMAC256("wrongSecret"));
+         assertEquals(401, bearer(engine, forged).getStatusCode());
+
+         //-- expired tokens are not served from the cache
+         String expiring = JWT.create().withSubject("bob").withExpiresAt(new Date(System.currentTimeMillis() + 1000)).sign(Algorithm.HMAC256("oldSecret"));
+         assertEquals(200, bearer(engine, expiring).getStatusCode());
+         Thread.sleep(1100);
+         long hits = auth.getJwtCache().getHits();
+         bearer(engine, expiring);
+         assertEquals(hits, auth.getJwtCache().getHits());
+      }
+      finally
+      {
+         System.clearProperty("testJwtCache.jwt.1.secret");
+         System.clearProperty("testJwtCache.jwt.secret");
+      }
+   }
+
+   @Test
+   public void testBusySessionOutlivesSessionExp() throws Exception
+   {
+      final String salt = "testSalt";
+      AuthAction auth = new AuthAction().withCollection("sessions").withSalt(salt).withSessionExp(1500).withDao(new AuthAction.UserDao()
+         {
+            public User getUser(String username, String accountCode, String apiCode, String tenantCode) throws Exception
+            {
+               return new User().withUsername(username).withPassword(AuthAction.strongHash(salt, "password"));
+            }
+         });
+      Engine engine = new Engine(new Api("test").withEndpoint("GET,POST", "ep/*", auth, new MockAction("mock")));
+
+      Response res = engine.post("test/ep/sessions", new JSNode("username", "bob", "password", "password"));
+      res.assertOk();
+      String session = res.getHeader("x-auth-token");
+      assertNotNull(session);
+
+      //-- keep the session busy for longer than sessionExp
+      long start = System.currentTimeMillis();
+      while (System.currentTimeMillis() - start < 3000)
+      {
+         assertEquals(200, authorized(engine, session).getStatusCode());
+         Thread.sleep(300);
+      }
+
+      //-- then let it go idle
+      Thread.sleep(1700);
+      assertEquals(401, authorized(engine, session).getStatusCode());
+   }
+
+   Response bearer(Engine engine, String token)
+   {
+      return authorized(engine, "Bearer " + token);
+   }
+
+   Response authorized(Engine engine, String authorization)
+   {
+      Map<String, String> headers = new HashMap();
+      headers.put("authorization", authorization);
+      Response res = new Response();
+      engine.service(new Request("GET", "http://localhost/test/ep/books", headers, null, null), res);
+      return res;
+   }
+
    //   /**
    //    * This simple factory method is static so that other  
    //    * demos can use and extend this api configuration.
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015-2019 Rocket Partners, LLC
+ * https://github.com/inversion-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.inversion.cloud.action.security;
+
+import org.junit.Test;
+
+import io.inversion.cloud.model.User;
+import junit.framework.TestCase;
+
+public class TestConcurrentAuthSessionCache extends TestCase
+{
+   @Test
+   public void testGetPutRemove() throws Exception
+   {
+      ConcurrentAuthSessionCache cache = new ConcurrentAuthSessionCache(100, 0);
+      User user = new User().withUsername("bob");
+
+      assertNull(cache.get("a"));
+      cache.put("a", user);
+      assertSame(user, cache.get("a"));
+      cache.remove("a");
+      assertNull(cache.get("a"));
+
+      assertEquals(1, cache.getHits());
+      assertEquals(2, cache.getMisses());
+      assertEquals(1d / 3, cache.getHitRate(), .0001);
+   }
+
+   @Test
+   public void testTtl() throws Exception
+   {
+      ConcurrentAuthSessionCache cache = new ConcurrentAuthSessionCache(100, 50);
+      cache.put("a", new User());
+      assertNotNull(cache.get("a"));
+
+      Thread.sleep(100);
+      assertNull(cache.get("a"));
+      assertEquals(1, cache.getExpirations());
+      assertEquals(0, cache.size());
+   }
+
+   @Test
+   public void testTtlSlidesOnRead() throws Exception
+   {
+      ConcurrentAuthSessionCache cache = new ConcurrentAuthSessionCache(100, 300);
+      cache.put("busy", new User());
+      cache.put("idle", new User());
+
+      for (int i = 0; i < 6; i++)
+      {
+         Thread.sleep(100);
+         assertNotNull(cache.get("busy"));
+      }
+      assertNull(cache.get("idle"));
+      assertNotNull(cache.get("busy"));
+
+      //-- explicit expiration times do not slide
+      cache.put("fixed", new User(), System.currentTimeMillis() + 300);
+      for (int i = 0; i < 2; i++)
+      {
+         Thread.sleep(100);
+         assertNotNull(cache.get("fixed"));
+      }
+      Thread.sleep(200);
+      assertNull(cache.get("fixed"));
+   }
+
+   @Test
+   public void testMaxSize() throws Exception
+   {
+      ConcurrentAuthSessionCache cache = new ConcurrentAuthSessionCache(100, 0);
+
+      for (int i = 0; i < 1000; i++)
+      {
+         cache.put("session" + i, new User());
+         assertTrue(cache.size() <= 100);
+      }
+      assertTrue(cache.getEvictions() >= 900);
+      assertNotNull(cache.get("session999"));
+   }
+}
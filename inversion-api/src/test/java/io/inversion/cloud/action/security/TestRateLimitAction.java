@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015-2019 Rocket Partners, LLC
+ * https://github.com/inversion-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.inversion.cloud.action.security;
+
+import org.junit.Test;
+
+import io.inversion.cloud.action.misc.MockAction;
+import io.inversion.cloud.model.Api;
+import io.inversion.cloud.model.Response;
+import io.inversion.cloud.service.Engine;
+import junit.framework.TestCase;
+
+public class TestRateLimitAction extends TestCase
+{
+   @Test
+   public void testUserLimit() throws Exception
+   {
+      //-- 6 hits per minute is one hit every 10 seconds with a burst of 6
+      RateLimitAction.Bucket bucket = new RateLimitAction.Bucket("test", 1, 6, -1, 1000, null);
+      long now = 1000000;
+
+      for (int i = 0; i < 6; i++)
+         assertEquals(0, bucket.hit("a", now));
+
+      assertEquals(10000, bucket.hit("a", now));
+      assertEquals(1, bucket.hit("a", now + 9999));
+      assertEquals(0, bucket.hit("a", now + 10000));
+      assertEquals(10000, bucket.hit("a", now + 10000));
+
+      //-- other clients are not affected
+      assertEquals(0, bucket.hit("b", now));
+
+      //-- a full window later the whole burst is available again
+      for (int i = 0; i < 6; i++)
+         assertEquals(0, bucket.hit("a", now + 70000));
+      assertTrue(bucket.hit("a", now + 70000) > 0);
+   }
+
+   @Test
+   public void testTotalLimit() throws Exception
+   {
+      RateLimitAction.Bucket bucket = new RateLimitAction.Bucket("test", 1, -1, 3, 1000, null);
+      long now = 1000000;
+
+      assertEquals(0, bucket.hit("a", now));
+      assertEquals(0, bucket.hit("b", now));
+      assertEquals(0, bucket.hit("c", now));
+      assertEquals(20000, bucket.hit("d", now));
+      assertEquals(0, bucket.size());
+   }
+
+   @Test
+   public void testMaxClients() throws Exception
+   {
+      RateLimitAction.Bucket bucket = new RateLimitAction.Bucket("test", 1, 10, -1, 100, null);
+      long now = 1000000;
+
+      for (int i = 0; i < 1000; i++)
+      {
+         bucket.hit("client" + i, now + i);
+         assertTrue(bucket.size() <= 101);
+      }
+
+      //-- the most recently seen clients keep their state
+      for (int i = 0; i < 9; i++)
+         assertEquals(0, bucket.hit("client999", now + 1000));
+      assertTrue(bucket.hit("client999", now + 1000) > 0);
+   }
+
+   @Test
+   public void testRetryAfter() throws Exception
+   {
+      Engine engine = new Engine(new Api("test").withEndpoint("GET", "ep/*", new RateLimitAction().withLimitUserHits(2).withOrder(1), new MockAction("mock")));
+
+      engine.get("test/ep/books").assertOk();
+      engine.get("test/ep/books").assertOk();
+
+      Response res = engine.get("test/ep/books");
+      res.assertStatus(429);
+      assertEquals("30", res.getHeader("Retry-After"));
+   }
+}
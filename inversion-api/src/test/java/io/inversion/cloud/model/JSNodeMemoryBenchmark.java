@@ -0,0 +1,99 @@
+package io.inversion.cloud.model;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import io.inversion.cloud.model.JSNode.Property;
+
+/**
+ * Measures the retained heap and the allocation cost of a 10k row by
+ * 30 column result page stored in JSNodes compared to the previous
+ * storage of a LinkedHashMap of lower cased keys to Property objects.
+ * <p>
+ * This is not a unit test, run it from main() with a fixed heap, ex. -Xmx1g
+ */
+public class JSNodeMemoryBenchmark
+{
+   static final int ROWS    = 10000;
+   static final int COLUMNS = 30;
+
+   /**
+    * keeps the page reachable while the heap is measured
+    */
+   static Object    retained;
+
+   public static void main(String[] args) throws Exception
+   {
+      com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      long threadId = Thread.currentThread().getId();
+
+      String[] columns = new String[COLUMNS];
+      for (int i = 0; i < COLUMNS; i++)
+         columns[i] = "columnName" + i;
+
+      Integer value = Integer.valueOf(12345);
+
+      for (int round = 0; round < 3; round++)
+      {
+         long before = usedHeap();
+         long alloc = threads.getThreadAllocatedBytes(threadId);
+         List legacy = new ArrayList();
+         for (int i = 0; i < ROWS; i++)
+         {
+            LinkedHashMap<String, Property> row = new LinkedHashMap();
+            for (String column : columns)
+               row.put(column.toLowerCase(), new Property(column, value));
+            legacy.add(row);
+         }
+         long legacyAlloc = threads.getThreadAllocatedBytes(threadId) - alloc;
+         retained = legacy;
+         long legacyHeap = usedHeap() - before;
+         retained = null;
+         legacy = null;
+
+         before = usedHeap();
+         alloc = threads.getThreadAllocatedBytes(threadId);
+         Collection collection = new Collection("benchmark");
+         JSArray page = new JSArray();
+         for (int i = 0; i < ROWS; i++)
+         {
+            JSNode row = collection.newNode();
+            for (String column : columns)
+               row.put(column, value);
+            page.add(row);
+         }
+         long compactAlloc = threads.getThreadAllocatedBytes(threadId) - alloc;
+         retained = page;
+         long compactHeap = usedHeap() - before;
+         retained = null;
+
+         alloc = threads.getThreadAllocatedBytes(threadId);
+         long sum = 0;
+         for (int i = 0; i < ROWS; i++)
+         {
+            JSNode row = (JSNode) page.get(i);
+            for (String column : columns)
+               sum += (Integer) row.get(column);
+         }
+         long getAlloc = threads.getThreadAllocatedBytes(threadId) - alloc;
+
+         System.out.println("round " + round //
+               + " legacy: " + (legacyHeap / 1024) + "KB retained " + (legacyAlloc / 1024) + "KB allocated" //
+               + "  compact: " + (compactHeap / 1024) + "KB retained " + (compactAlloc / 1024) + "KB allocated" //
+               + "  get: " + (getAlloc / 1024) + "KB allocated (" + sum + ")");
+      }
+   }
+
+   static long usedHeap() throws Exception
+   {
+      Runtime runtime = Runtime.getRuntime();
+      for (int i = 0; i < 3; i++)
+      {
+         System.gc();
+         Thread.sleep(50);
+      }
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+}
@@ -0,0 +1,99 @@
+package io.inversion.cloud.model;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares JSNode.parseJson against the previous approach of parsing
+ * into a Jackson JsonNode tree with a new ObjectMapper and then copying
+ * that tree into JSNodes.
+ * <p>
+ * This is not a unit test, run it from main().
+ */
+public class JsonParseBenchmark
+{
+   public static void main(String[] args) throws Exception
+   {
+      com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      long threadId = Thread.currentThread().getId();
+
+      JSArray rows = new JSArray();
+      for (int i = 0; i < 2000; i++)
+      {
+         JSNode row = new JSNode();
+         for (int j = 0; j < 20; j++)
+            row.put("column" + j, j % 3 == 0 ? (Object) (i * j) : (j % 3 == 1 ? "value " + i + " " + j : (Object) (i * 1.5)));
+         rows.add(row);
+      }
+      String json = new JSNode("data", rows).toString(false);
+      byte[] bytes = json.getBytes("UTF-8");
+      System.out.println("document size: " + bytes.length + " bytes");
+
+      int iterations = 50;
+      for (int round = 0; round < 3; round++)
+      {
+         long alloc = threads.getThreadAllocatedBytes(threadId);
+         long start = System.nanoTime();
+         for (int i = 0; i < iterations; i++)
+            mapNode(new ObjectMapper().readValue(json, JsonNode.class));
+         long treeNanos = System.nanoTime() - start;
+         long treeAlloc = threads.getThreadAllocatedBytes(threadId) - alloc;
+
+         alloc = threads.getThreadAllocatedBytes(threadId);
+         start = System.nanoTime();
+         for (int i = 0; i < iterations; i++)
+            JSNode.parseJson(json);
+         long streamNanos = System.nanoTime() - start;
+         long streamAlloc = threads.getThreadAllocatedBytes(threadId) - alloc;
+
+         alloc = threads.getThreadAllocatedBytes(threadId);
+         start = System.nanoTime();
+         for (int i = 0; i < iterations; i++)
+            JSNode.parseJson(bytes);
+         long bytesNanos = System.nanoTime() - start;
+         long bytesAlloc = threads.getThreadAllocatedBytes(threadId) - alloc;
+
+         System.out.println("round " + round //
+               + " tree: " + (treeNanos / iterations / 1000) + "us " + (treeAlloc / iterations / 1024) + "KB/op" //
+               + "  stream(String): " + (streamNanos / iterations / 1000) + "us " + (streamAlloc / iterations / 1024) + "KB/op" //
+               + "  stream(byte[]): " + (bytesNanos / iterations / 1000) + "us " + (bytesAlloc / iterations / 1024) + "KB/op");
+      }
+   }
+
+   static Object mapNode(JsonNode json)
+   {
+      if (json == null || json.isNull())
+         return null;
+
+      if (json.isValueNode())
+      {
+         if (json.isNumber())
+            return json.numberValue();
+
+         if (json.isBoolean())
+            return json.booleanValue();
+
+         return json.asText();
+      }
+
+      if (json.isArray())
+      {
+         JSArray retVal = new JSArray();
+         for (JsonNode child : json)
+            retVal.add(mapNode(child));
+         return retVal;
+      }
+
+      JSNode retVal = new JSNode();
+      Iterator<String> it = json.fieldNames();
+      while (it.hasNext())
+      {
+         String field = it.next();
+         retVal.put(field, mapNode(json.get(field)));
+      }
+      return retVal;
+   }
+}
@@ -0,0 +1,98 @@
+package io.inversion.cloud.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import io.inversion.cloud.service.MockActionA;
+
+/**
+ * Compares {@link Router} against the linear Endpoint/Collection
+ * scan Engine used to do for every request.  
+ * 
+ * This is not a unit test, run it from main() with a large
+ * Api model to see how routing cost changes with model size.
+ */
+public class RouterBenchmark
+{
+   public static void main(String[] args)
+   {
+      int numEndpoints = 50;
+      int numCollections = 300;
+      int iterations = 200000;
+
+      Api api = new Api("bench");
+      for (int i = 0; i < numEndpoints; i++)
+         api.withEndpoint(new Endpoint("GET,PUT,POST,DELETE", "v" + i + "/*", new MockActionA()));
+
+      for (int i = 0; i < numCollections; i++)
+         api.withCollection(new Collection("collection" + i).withAlias("alias" + i));
+
+      List<List<String>> requests = new ArrayList();
+      for (int i = 0; i < 1000; i++)
+      {
+         List<String> parts = new ArrayList();
+         parts.add("v" + (i % numEndpoints));
+         parts.add("collection" + (i % numCollections));
+         parts.add("" + i);
+         requests.add(parts);
+      }
+
+      for (int round = 0; round < 3; round++)
+      {
+         long start = System.nanoTime();
+         int found = 0;
+         for (int i = 0; i < iterations; i++)
+         {
+            if (linear(api, "GET", requests.get(i % requests.size())) != null)
+               found += 1;
+         }
+         long linear = System.nanoTime() - start;
+
+         start = System.nanoTime();
+         found = 0;
+         for (int i = 0; i < iterations; i++)
+         {
+            if (routed(api, "GET", requests.get(i % requests.size())) != null)
+               found += 1;
+         }
+         long routed = System.nanoTime() - start;
+
+         System.out.println("round " + round + " linear: " + (linear / iterations) + "ns/op  router: " + (routed / iterations) + "ns/op  found: " + found);
+      }
+   }
+
+   static Collection routed(Api api, String method, List<String> parts)
+   {
+      Router.Route route = api.getRouter().route(method, parts);
+      if (route != null && route.getDepth() < parts.size())
+         return api.getRouter().findCollection(method, route.getEndpointPath(), parts.get(route.getDepth()));
+      return null;
+   }
+
+   static Collection linear(Api api, String method, List<String> parts)
+   {
+      Path remainingPath = new Path(parts);
+      for (int i = 0; i <= parts.size(); i++)
+      {
+         Path endpointPath = new Path(i == 0 ? Collections.EMPTY_LIST : parts.subList(0, i));
+         for (Endpoint e : api.getEndpoints())
+         {
+            if (e.matches(method, endpointPath, remainingPath.subpath(i, remainingPath.size())))
+            {
+               if (i < parts.size())
+               {
+                  String collectionKey = parts.get(i);
+                  for (Collection collection : api.getCollections())
+                  {
+                     if (collection.hasName(collectionKey) && collection.getIncludePaths().size() == 0 && collection.getExcludePaths().size() == 0)
+                        return collection;
+                  }
+               }
+               return null;
+            }
+         }
+      }
+      return null;
+   }
+}
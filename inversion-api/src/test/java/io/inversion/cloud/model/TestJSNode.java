@@ -232,4 +232,143 @@ public class TestJSNode extends TestCase
       assertTrue(doc1.toString().equals(doc2.toString()));
    }
 
+
+   @Test
+   public void testParseJson() throws Exception
+   {
+      String json = "{\"String\": \"value\", \"int\": 1, \"long\": 12345678901, \"double\": 1.5, \"bool\": true, \"nil\": null, \"arr\": [1, \"two\", {\"three\": 3}, []], \"obj\": {}}";
+
+      for (JSNode node : new JSNode[]{JSNode.parseJsonNode(json), (JSNode) JSNode.parseJson(json.getBytes("UTF-8")), JSNode.parseJsonNode(new java.io.ByteArrayInputStream(json.getBytes("UTF-8")))})
+      {
+         assertEquals("value", node.get("string"));
+         assertEquals("String", node.keySet().iterator().next());
+         assertEquals(Integer.valueOf(1), node.get("int"));
+         assertEquals(Long.valueOf(12345678901L), node.get("long"));
+         assertEquals(Double.valueOf(1.5), node.get("double"));
+         assertEquals(Boolean.TRUE, node.get("bool"));
+         assertTrue(node.containsKey("nil"));
+         assertNull(node.get("nil"));
+
+         JSArray arr = node.getArray("arr");
+         assertEquals(4, arr.size());
+         assertEquals("two", arr.get(1));
+         assertEquals(Integer.valueOf(3), ((JSNode) arr.get(2)).get("three"));
+         assertEquals(0, ((JSArray) arr.get(3)).size());
+         assertEquals(0, node.getNode("obj").size());
+      }
+
+      assertEquals(Integer.valueOf(5), JSNode.parseJson("5"));
+
+      for (String bad : new String[]{"", "{\"a\":", "{\"a\" 1}", "[1,2"})
+      {
+         try
+         {
+            JSNode.parseJson(bad);
+            fail("Should not have parsed: " + bad);
+         }
+         catch (RuntimeException ex)
+         {
+            assertTrue(ex.getMessage().startsWith("400 Bad Request"));
+         }
+      }
+   }
+
+   @Test
+   public void testCaseInsensitiveProperties()
+   {
+      JSNode node = new JSNode("Name", "a", "id", 1, "other", 2);
+      assertEquals("a", node.get("NAME"));
+      assertTrue(node.containsKey("ID"));
+      assertTrue(node.hasProperty("oThEr"));
+
+      node.put("NAME", "b");
+      assertEquals(3, node.size());
+      assertEquals("[NAME, id, other]", node.keySet().toString());
+      assertEquals("b", node.get("name"));
+
+      node.putFirst("href", "http://x");
+      assertEquals("[href, NAME, id, other]", node.keySet().toString());
+
+      assertEquals(1, node.remove("Id"));
+      assertNull(node.get("id"));
+      assertEquals("[href, NAME, other]", node.keySet().toString());
+
+      node.sortKeys();
+      assertEquals("[href, NAME, other]", node.keySet().toString());
+      node.put("apple", 1);
+      node.sortKeys();
+      assertEquals("[apple, href, NAME, other]", node.keySet().toString());
+      assertEquals("http://x", node.get("HREF"));
+
+      node.clear();
+      assertTrue(node.isEmpty());
+      assertNull(node.get("name"));
+   }
+
+   @Test
+   public void testPropertyLayoutsAreShared()
+   {
+      Collection collection = new Collection("books");
+      JSNode row1 = collection.newNode();
+      JSNode row2 = collection.newNode();
+      for (int i = 0; i < 30; i++)
+      {
+         row1.put("column" + i, i);
+         row2.put("Column" + i, i * 2);
+      }
+      JSNode row3 = collection.newNode();
+      for (int i = 0; i < 30; i++)
+         row3.put("column" + i, i * 3);
+
+      assertSame(row1.layout, row3.layout);
+      assertNotSame(row1.layout, row2.layout);
+
+      for (int i = 0; i < 30; i++)
+      {
+         assertEquals(i, row1.get("COLUMN" + i));
+         assertEquals(i * 2, row2.get("column" + i));
+      }
+      assertNull(row1.get("column30"));
+
+      //-- names past the shared layout limit go into a private layout
+      JSNode wide = collection.newNode();
+      int count = JSNode.Layout.MAX_SHARED_SIZE + 50;
+      for (int i = 0; i < count; i++)
+         wide.put("f" + i, i);
+
+      assertEquals(count, wide.size());
+      assertFalse(wide.layout.shared);
+      for (int i = 0; i < count; i++)
+         assertEquals(i, wide.get("F" + i));
+
+      wide.remove("f0");
+      assertEquals(count - 1, wide.size());
+      assertEquals(1, wide.get("f1"));
+      assertEquals("f1", wide.keySet().iterator().next());
+
+      //-- clearing a row keeps it on the collection's tree
+      row3.clear();
+      row3.put("column0", 0);
+      assertSame(row1.layout.root, row3.layout.root);
+   }
+
+   @Test
+   public void testUntrustedKeysNeverShareLayouts()
+   {
+      //-- parsed documents get private layouts
+      JSNode doc1 = JSNode.parseJsonNode("{\"a\": 1, \"b\": 2}");
+      JSNode doc2 = JSNode.parseJsonNode("{\"a\": 1, \"b\": 2}");
+      assertFalse(doc1.layout.shared);
+      assertNotSame(doc1.layout, doc2.layout);
+      assertEquals(2, doc2.get("B"));
+
+      //-- filling up one collection's tree does not affect another collection
+      Collection full = new Collection("full");
+      for (int i = 0; i <= JSNode.Layout.MAX_SHARED_LAYOUTS; i++)
+         full.newNode().put("key" + i, i);
+      assertFalse(full.newNode().with("another", 1).layout.shared);
+
+      Collection other = new Collection("other");
+      assertTrue(other.newNode().with("another", 1).layout.shared);
+   }
 }
@@ -0,0 +1,77 @@
+package io.inversion.cloud.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.inversion.cloud.utils.Rows;
+import junit.framework.TestCase;
+
+public class TestJSRows extends TestCase
+{
+   JSRows rows()
+   {
+      Rows rows = new Rows(new String[]{"ID", "NAME"});
+      rows.addRow(new Object[]{1, "one"});
+      rows.addRow(new Object[]{2, "two"});
+      rows.addRow(new Object[]{3, null});
+
+      return new JSRows(rows, new JSRows.Mapper()
+         {
+            @Override
+            public void map(Map row, JSRows.Fields fields) throws Exception
+            {
+               fields.field("href", "http://localhost/things/" + row.get("id"));
+               fields.field("id", row.get("id"));
+               fields.field("name", row.get("name"));
+            }
+         });
+   }
+
+   @Test
+   public void testLazyRowsSerializeLikeJSNodes()
+   {
+      JSRows lazy = rows();
+      JSArray nodes = new JSArray(rows().asList());
+
+      assertEquals(nodes.toString(), lazy.toString());
+      assertEquals(nodes.toString(false), lazy.toString(false));
+      assertTrue(lazy.isLazy());
+      assertEquals(3, lazy.size());
+   }
+
+   @Test
+   public void testGetMaterializesOneRow()
+   {
+      JSRows lazy = rows();
+
+      JSNode two = lazy.getNode(1);
+      assertEquals("two", two.get("NAME"));
+      assertTrue(lazy.isLazy());
+
+      //-- changes to a materialized row are serialized
+      two.put("name", "changed");
+      assertTrue(lazy.toString(false).indexOf("\"changed\"") > 0);
+      assertSame(two, lazy.get(1));
+      assertNull(lazy.get(3));
+   }
+
+   @Test
+   public void testStructuralChangesMaterializeAllRows()
+   {
+      JSRows lazy = rows();
+      JSNode one = lazy.getNode(0);
+
+      lazy.add(new JSNode("id", 4));
+      assertFalse(lazy.isLazy());
+      assertEquals(4, lazy.size());
+      assertSame(one, lazy.get(0));
+      assertEquals("two", lazy.getNode(1).get("name"));
+
+      List<JSNode> list = new ArrayList(rows().rowList());
+      assertEquals(3, list.size());
+      assertEquals("http://localhost/things/3", list.get(2).get("href"));
+   }
+}
@@ -0,0 +1,100 @@
+package io.inversion.cloud.model;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.inversion.cloud.model.Router.Route;
+import io.inversion.cloud.service.MockActionA;
+import junit.framework.TestCase;
+
+public class TestRouter extends TestCase
+{
+   @Test
+   public void testFewestSegmentsWins()
+   {
+      Endpoint shallow = new Endpoint("GET", "a/*", new MockActionA());
+      Endpoint deep = new Endpoint("GET", "a/b/*", new MockActionA());
+
+      Api api = new Api("test").withEndpoint(deep).withEndpoint(shallow);
+
+      Route route = api.getRouter().route("GET", Arrays.asList("a", "b", "c"));
+      assertSame(shallow, route.getEndpoint());
+      assertEquals("a", route.getEndpointPath().toString());
+      assertEquals(1, route.getDepth());
+
+      route = api.getRouter().route("GET", Arrays.asList("A", "b", "c"));
+      assertSame(shallow, route.getEndpoint());
+
+      assertNull(api.getRouter().route("GET", Arrays.asList("x", "b", "c")));
+      assertNull(api.getRouter().route("POST", Arrays.asList("a", "b", "c")));
+   }
+
+   @Test
+   public void testEndpointOrderIsPreserved()
+   {
+      Endpoint first = new Endpoint("GET", "a/*", new MockActionA());
+      Endpoint second = new Endpoint("GET", "a/*", new MockActionA());
+      Endpoint post = new Endpoint("POST", "a/*", new MockActionA());
+
+      Api api = new Api("test").withEndpoint(post).withEndpoint(first).withEndpoint(second);
+
+      assertSame(first, api.getRouter().route("GET", Arrays.asList("a", "b")).getEndpoint());
+      assertSame(post, api.getRouter().route("POST", Arrays.asList("a", "b")).getEndpoint());
+   }
+
+   @Test
+   public void testWildcardEndpointPath()
+   {
+      Endpoint literal = new Endpoint("GET", "a/b/*", new MockActionA());
+      Endpoint wildcard = new Endpoint().withMethods("GET").withIncludePaths("*").withActions(new MockActionA());
+
+      Api api = new Api("test").withEndpoint(literal).withEndpoint(wildcard);
+
+      //wildcard paths can be set reflectively by the Configurator without being split into include paths
+      wildcard.path = new Path("x*");
+      api.resetRouter();
+
+      assertSame(literal, api.getRouter().route("GET", Arrays.asList("a", "b", "c")).getEndpoint());
+      assertSame(wildcard, api.getRouter().route("GET", Arrays.asList("xyz", "c")).getEndpoint());
+      assertNull(api.getRouter().route("GET", Arrays.asList("a", "z")));
+   }
+
+   @Test
+   public void testRouterIsRebuiltOnChange()
+   {
+      Api api = new Api("test").withEndpoint(new Endpoint("GET", "a/*", new MockActionA()));
+
+      Router router = api.getRouter();
+      assertSame(router, api.getRouter());
+      assertNull(router.route("GET", Arrays.asList("b", "c")));
+
+      Endpoint added = new Endpoint("GET", "b/*", new MockActionA());
+      api.withEndpoint(added);
+      assertNotSame(router, api.getRouter());
+      assertSame(added, api.getRouter().route("GET", Arrays.asList("b", "c")).getEndpoint());
+
+      added.withPath("d");
+      assertNull(api.getRouter().route("GET", Arrays.asList("b", "c")));
+      assertSame(added, api.getRouter().route("GET", Arrays.asList("d", "c")).getEndpoint());
+   }
+
+   @Test
+   public void testFindCollection()
+   {
+      Collection books = new Collection("books");
+      Collection scoped = new Collection("books").withTableName("books_v2").withIncludePaths("v2");
+      Collection authors = new Collection("authors").withAlias("writers");
+
+      Api api = new Api("test").withCollection(books).withCollection(scoped).withCollection(authors);
+      Router router = api.getRouter();
+
+      assertSame(books, router.findCollection("GET", new Path("v1"), "books"));
+      assertSame(scoped, router.findCollection("GET", new Path("v2"), "BOOKS"));
+      assertSame(authors, router.findCollection("GET", new Path("v1"), "Writers"));
+      assertNull(router.findCollection("GET", new Path("v1"), "publishers"));
+
+      authors.withAlias("creators");
+      assertSame(authors, api.getRouter().findCollection("GET", new Path("v1"), "creators"));
+   }
+}
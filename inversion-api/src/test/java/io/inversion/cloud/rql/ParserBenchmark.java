@@ -0,0 +1,58 @@
+package io.inversion.cloud.rql;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares re-tokenizing every RQL clause, the way RestGetAction used to
+ * for every request parameter, against the cached {@link Parser#parse(String)}
+ * which copies a previously parsed Term tree.  The clauses are the query
+ * strings from {@link RqlValidationSuite} plus a range of eq() values so
+ * that some clauses miss.
+ * <p>
+ * This is not a unit test, run it from main()
+ */
+public class ParserBenchmark
+{
+   public static void main(String[] args)
+   {
+      int iterations = 500000;
+
+      List<String> clauses = new ArrayList();
+      for (String query : new RqlValidationSuite(null, null).getTests().values())
+      {
+         for (String part : query.substring(query.indexOf("?") + 1).split("\\&"))
+         {
+            if (part.length() > 0)
+               clauses.add(part);
+         }
+      }
+      for (int i = 0; i < 100; i++)
+         clauses.add("eq(orderId," + (10248 + i) + ")");
+
+      Parser parser = new Parser();
+      for (int round = 0; round < 5; round++)
+      {
+         long start = System.nanoTime();
+         int size = 0;
+         for (int i = 0; i < iterations; i++)
+            size += parser.doParse(clauses.get(i % clauses.size())).size();
+         long uncached = System.nanoTime() - start;
+
+         Parser.clearCache();
+         long hits = Parser.getCacheHits();
+         long misses = Parser.getCacheMisses();
+
+         start = System.nanoTime();
+         size = 0;
+         for (int i = 0; i < iterations; i++)
+            size += parser.parse(clauses.get(i % clauses.size())).size();
+         long cached = System.nanoTime() - start;
+
+         hits = Parser.getCacheHits() - hits;
+         misses = Parser.getCacheMisses() - misses;
+
+         System.out.println("round " + round + " " + clauses.size() + " clauses  uncached: " + (uncached / iterations) + "ns/op  cached: " + (cached / iterations) + "ns/op  hit rate: " + (hits * 100 / (hits + misses)) + "%");
+      }
+   }
+}
@@ -17,6 +17,9 @@
 package io.inversion.cloud.rql;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -108,4 +111,57 @@ public class TestParser
       t = parser.parse("w(name,'BANANA KG (RESEAU)')");
       assertEquals("BANANA KG (RESEAU)", t.getTerm(1).getToken());
    }
+
+   @Test
+   public void testCacheKeepsRecentlyUsedTerms() throws Exception
+   {
+      Parser parser = new Parser();
+      int cacheMax = Parser.getCacheMax();
+      try
+      {
+         Parser.clearCache();
+         Parser.setCacheMax(100);
+
+         parser.parse("eq(shipCountry,France)");
+         for (int i = 0; i < 1000; i++)
+         {
+            parser.parse("eq(orderId," + i + ")");
+            assertTrue(Parser.getCacheSize() <= 100);
+
+            long hits = Parser.getCacheHits();
+            parser.parse("eq(shipCountry,France)");
+            assertEquals(hits + 1, Parser.getCacheHits());
+         }
+      }
+      finally
+      {
+         Parser.setCacheMax(cacheMax);
+         Parser.clearCache();
+      }
+   }
+
+   @Test
+   public void testCache() throws Exception
+   {
+      Parser parser = new Parser();
+      Parser.clearCache();
+
+      long hits = Parser.getCacheHits();
+      Term t1 = parser.parse("eq(shipCountry,France)");
+      Term t2 = parser.parse("eq(shipCountry,France)");
+      assertEquals(hits + 1, Parser.getCacheHits());
+
+      //-- each parse gets its own copy that can be rewritten in place
+      assertNotSame(t1, t2);
+      assertNotSame(t1.getTerm(0), t2.getTerm(0));
+      assertSame(t2, t2.getTerm(1).getParent());
+
+      t1.withToken("ne");
+      t1.getTerm(1).withToken("'Brazil'");
+      assertEquals("eq(shipCountry,France)", parser.parse("eq(shipCountry,France)").toString());
+      assertEquals("ne(shipCountry,'Brazil')", t1.toString());
+
+      assertEquals("eq(column,'str ing')", parser.parse("column='str ing'").toString());
+      assertEquals("eq(column,'str ing')", parser.parse("column='str ing'").toString());
+   }
 }
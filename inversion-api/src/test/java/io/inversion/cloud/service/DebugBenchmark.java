@@ -0,0 +1,45 @@
+package io.inversion.cloud.service;
+
+import java.lang.management.ManagementFactory;
+
+import io.inversion.cloud.action.misc.MockAction;
+import io.inversion.cloud.model.Api;
+
+/**
+ * Reports heap allocation per request with and without debug capture.
+ * <p>
+ * Requests to localhost are in debug mode, requests to 127.0.0.1 are not.
+ * This is not a unit test, run it from main().
+ */
+public class DebugBenchmark
+{
+   public static void main(String[] args)
+   {
+      com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      long threadId = Thread.currentThread().getId();
+
+      Engine engine = new Engine(new Api("bench")//
+                                                 .withAction(new MockAction("filter1").withIncludePaths("*"))//
+                                                 .withAction(new MockAction("filter2").withIncludePaths("*"))//
+                                                 .withEndpoint("GET", "ep/*", new MockAction("bench")));
+
+      int iterations = 20000;
+      for (int round = 0; round < 3; round++)
+      {
+         for (String host : new String[]{"localhost", "127.0.0.1"})
+         {
+            String url = "http://" + host + "/bench/ep/books/1?a=b";
+
+            long bytes = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+               engine.get(url);
+
+            long nanos = System.nanoTime() - start;
+            bytes = threads.getThreadAllocatedBytes(threadId) - bytes;
+
+            System.out.println("round " + round + " " + host + ": " + (bytes / iterations) + " bytes/op  " + (nanos / iterations) + " ns/op");
+         }
+      }
+   }
+}
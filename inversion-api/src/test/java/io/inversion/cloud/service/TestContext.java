@@ -0,0 +1,97 @@
+package io.inversion.cloud.service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import io.inversion.cloud.action.misc.MockAction;
+import io.inversion.cloud.model.Api;
+import io.inversion.cloud.model.Request;
+import io.inversion.cloud.model.Response;
+import junit.framework.TestCase;
+
+public class TestContext extends TestCase
+{
+   @Test
+   public void testForkedTasksSeeTheCallersChain() throws Exception
+   {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try
+      {
+         final Chain[] seen = new Chain[2];
+         final Object[] attribute = new Object[1];
+
+         Engine engine = new Engine(new Api("test").withEndpoint("GET", "ep/*", new MockAction()
+            {
+               public void run(Request req, Response res) throws Exception
+               {
+                  Chain.peek().getContext().put("key", "value");
+                  seen[0] = Chain.peek();
+
+                  Callable<Chain> task = Chain.peek().getContext().wrap(() -> {
+                     attribute[0] = Context.current().get("key");
+                     return Chain.peek();
+                  });
+                  seen[1] = executor.submit(task).get();
+               }
+            }));
+
+         engine.get("test/ep/books");
+
+         assertNotNull(seen[0]);
+         assertSame(seen[0], seen[1]);
+         assertEquals("value", attribute[0]);
+
+         //the request scoped context is unbound once a top level request completes
+         assertNull(Context.peekCurrent());
+
+         //the executor thread has its previous (empty) binding restored
+         assertNull(executor.submit(() -> Context.peekCurrent()).get());
+      }
+      finally
+      {
+         executor.shutdown();
+      }
+   }
+
+   @Test
+   public void testForksHaveTheirOwnLocals() throws Exception
+   {
+      final Context context = new Context();
+      context.putLocal("resource", "parent");
+
+      final Object[] seen = new Object[2];
+      Runnable task = context.wrap(() -> {
+         seen[0] = Context.current().getLocal("resource");
+         Context.current().putLocal("resource", "child");
+         Context.current().onClose(() -> seen[1] = Context.current().getLocal("resource"));
+      });
+      task.run();
+
+      assertNull(seen[0]);
+      assertEquals("child", seen[1]);
+      assertEquals("parent", context.getLocal("resource"));
+   }
+
+   @Test
+   public void testServiceAsync() throws Exception
+   {
+      Engine engine = new Engine(new Api("test").withEndpoint("GET", "ep/*", new MockAction("async")));
+      engine.withExecutor(Executors.newSingleThreadExecutor());
+      try
+      {
+         Response res = new Response();
+         Chain chain = engine.serviceAsync(new Request("GET", "http://localhost/test/ep/books"), res).get();
+
+         assertSame(res, chain.getResponse());
+         assertEquals(200, res.getStatusCode());
+         assertEquals("async", res.getJson().getString("name"));
+      }
+      finally
+      {
+         engine.getExecutor().shutdown();
+      }
+   }
+}
@@ -16,7 +16,12 @@
  */
 package io.inversion.cloud.service;
 
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Test;
 
@@ -311,6 +316,160 @@ public class TestEngine extends TestCase
 
    }
 
+   @Test
+   public void testActionChainsAreMemoizedAndInvalidated()
+   {
+      Action all = new MockAction("all").withIncludePaths("*").withOrder(10);
+      Action special = new MockAction("special").withIncludePaths("books/special").withOrder(20);
+      Action filter = new MockAction("filter").withIncludePaths("ep/authors/*").withOrder(1);
+
+      Engine engine = new Engine(new Api("test")//
+                                                .withEndpoint("GET", "ep/*", all, special)//
+                                                .withAction(filter));
+
+      assertActions(engine.get("test/ep/books/1"), "all");
+      assertActions(engine.get("test/ep/books/2"), "all");
+      assertActions(engine.get("test/ep/books/special"), "all", "special");
+      assertActions(engine.get("test/ep/authors/1"), "filter", "all");
+      assertActions(engine.get("test/ep/authors/1/books"), "filter", "all");
+
+      //changing paths or order must discard the memoized chains
+      filter.withIncludePaths("ep/books/*");
+      assertActions(engine.get("test/ep/books/1"), "filter", "all");
+
+      all.withOrder(0);
+      assertActions(engine.get("test/ep/books/1"), "all", "filter");
+   }
+
+   @Test
+   public void testStreamJson() throws Exception
+   {
+      Engine engine = new Engine(new Api("test").withEndpoint("GET", "ep/*", new MockAction("streamed")));
+
+      Response res = engine.get("test/ep/books");
+      assertFalse(res.isStreaming());
+      assertEquals(res.getJson().toString().trim(), res.getOutput().trim());
+
+      engine.withStreamJson(true);
+      res = engine.get("test/ep/books");
+      assertTrue(res.isStreaming());
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertEquals(-1, res.writeOutput(out));
+      assertEquals(res.getJson().toString(), new String(out.toByteArray()));
+      assertEquals(res.getJson().toString(), res.getOutput());
+   }
+
+   @Test
+   public void testDebugIsOnlyCapturedWhenRequested()
+   {
+      Engine engine = new Engine(new Api("test").withEndpoint("GET", "ep/*", new MockAction("debug")));
+
+      Response res = engine.get("http://localhost/test/ep/books");
+      assertTrue(res.isDebugEnabled());
+      assertTrue(res.getDebug().indexOf("Actions: [debug]") > -1);
+
+      res = engine.get("http://127.0.0.1/test/ep/books");
+      assertFalse(res.isDebugEnabled());
+      assertEquals("", res.getDebug());
+      assertEquals(200, res.getStatusCode());
+   }
+
+   @Test
+   public void testApiDebugIsHonoredForRemoteRequests()
+   {
+      Api api = new Api("test").withEndpoint("GET", "ep/*", new MockAction("debug"));
+      api.setDebug(true);
+      Engine engine = new Engine(api);
+
+      Response res = engine.get("http://example.com/test/ep/books?explain=true");
+      assertEquals(200, res.getStatusCode());
+      assertTrue(res.isDebugEnabled());
+      assertTrue(res.getOutput().indexOf("Actions: [debug]") > -1);
+
+      engine = new Engine(new Api("test").withEndpoint("GET", "ep/*", new MockAction("debug")));
+      res = engine.get("http://example.com/test/ep/books?explain=true");
+      assertFalse(res.isDebugEnabled());
+      assertEquals("", res.getDebug());
+   }
+
+   @Test
+   public void testDebugFromConcurrentThreads() throws Exception
+   {
+      final Response res = new Response();
+      Thread[] threads = new Thread[8];
+      for (int i = 0; i < threads.length; i++)
+      {
+         threads[i] = new Thread(new Runnable()
+            {
+               public void run()
+               {
+                  for (int j = 0; j < 1000; j++)
+                     res.debug("line");
+               }
+            });
+         threads[i].start();
+      }
+      for (Thread thread : threads)
+         thread.join();
+
+      assertEquals(8000, res.getDebug().split("line", -1).length - 1);
+
+      res.withDebugEnabled(false);
+      res.debug("ignored");
+      assertEquals("", res.getDebug());
+   }
+
+   @Test
+   public void testOwnedExecutorsAreShutDown() throws Exception
+   {
+      Engine engine = new Engine(new Api("test").withEndpoint("GET", "ep/*", new MockAction("async")));
+
+      ExecutorService owned = engine.getExecutor();
+      assertTrue(owned.submit(new Callable<Boolean>()
+         {
+            public Boolean call()
+            {
+               return Thread.currentThread().isDaemon();
+            }
+         }).get());
+
+      //-- replacing an executor the engine created shuts it down
+      engine.withVirtualThreads(false);
+      assertTrue(owned.isShutdown());
+      owned = engine.getExecutor();
+
+      //-- executors passed in are left to the caller
+      ExecutorService external = Executors.newSingleThreadExecutor();
+      try
+      {
+         engine.withExecutor(external);
+         assertTrue(owned.isShutdown());
+
+         engine.destroy();
+         assertFalse(external.isShutdown());
+      }
+      finally
+      {
+         external.shutdown();
+      }
+
+      engine = new Engine();
+      owned = engine.getExecutor();
+      engine.destroy();
+      assertTrue(owned.isShutdown());
+   }
+
+   static void assertActions(Response res, String... names)
+   {
+      String debug = res.getDebug();
+      int idx = debug.indexOf("Actions: ");
+      assertTrue("No actions were run", idx > -1);
+
+      String line = debug.substring(idx, debug.indexOf("\n", idx)).trim();
+      assertEquals("Actions: " + Arrays.asList(names), line);
+   }
+
    public static void assertEndpointMatch(String method, String url, int statusCode, Api... apis)
    {
       assertEndpointMatch(method, url, statusCode, null, null, null, null, null, apis);
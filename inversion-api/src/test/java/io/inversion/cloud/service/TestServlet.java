@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2015-2019 Rocket Partners, LLC
+ * https://github.com/inversion-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.inversion.cloud.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+import io.inversion.cloud.action.misc.MockAction;
+import io.inversion.cloud.model.Api;
+import io.inversion.cloud.model.Request;
+import io.inversion.cloud.model.Response;
+import junit.framework.TestCase;
+
+public class TestServlet extends TestCase
+{
+   /**
+    * Stands in for the container side of one async request.  The request,
+    * response and AsyncContext are proxies backed by this object and the
+    * read and write listeners are called as soon as they are set.
+    */
+   static class MockExchange
+   {
+      String                method      = "GET";
+      String                url         = null;
+      byte[]                body        = new byte[0];
+      String                encoding    = null;
+
+      int                   status      = 200;
+      ByteArrayOutputStream out         = new ByteArrayOutputStream();
+
+      long                  timeout     = -1;
+      List<AsyncListener>   listeners   = new ArrayList();
+      CountDownLatch        completed   = new CountDownLatch(1);
+      int                   completions = 0;
+
+      AsyncContext          asyncCtx    = null;
+      HttpServletRequest    request     = null;
+      HttpServletResponse   response    = null;
+
+      MockExchange(String url)
+      {
+         this.url = url;
+
+         asyncCtx = (AsyncContext) proxy(AsyncContext.class, (Method m, Object[] args) -> {
+            switch (m.getName())
+            {
+               case "setTimeout":
+                  timeout = (Long) args[0];
+                  return null;
+               case "addListener":
+                  listeners.add((AsyncListener) args[0]);
+                  return null;
+               case "complete":
+                  synchronized (this)
+                  {
+                     completions += 1;
+                  }
+                  for (AsyncListener listener : listeners)
+                     listener.onComplete(new AsyncEvent(asyncCtx));
+                  completed.countDown();
+                  return null;
+            }
+            return null;
+         });
+
+         request = (HttpServletRequest) proxy(HttpServletRequest.class, (Method m, Object[] args) -> {
+            switch (m.getName())
+            {
+               case "getMethod":
+                  return method;
+               case "getRequestURL":
+                  return new StringBuffer(this.url);
+               case "getHeaderNames":
+               case "getParameterNames":
+                  return Collections.emptyEnumeration();
+               case "isAsyncSupported":
+                  return true;
+               case "startAsync":
+                  return asyncCtx;
+               case "getInputStream":
+                  return new MockInputStream(body);
+               case "getCharacterEncoding":
+                  return encoding;
+            }
+            return null;
+         });
+
+         response = (HttpServletResponse) proxy(HttpServletResponse.class, (Method m, Object[] args) -> {
+            switch (m.getName())
+            {
+               case "setStatus":
+                  status = (Integer) args[0];
+                  return null;
+               case "getStatus":
+                  return status;
+               case "getOutputStream":
+                  return new MockOutputStream(out);
+            }
+            return null;
+         });
+      }
+
+      void timeout() throws IOException
+      {
+         for (AsyncListener listener : new ArrayList<AsyncListener>(listeners))
+            listener.onTimeout(new AsyncEvent(asyncCtx));
+      }
+   }
+
+   interface Handler
+   {
+      Object invoke(Method m, Object[] args) throws Throwable;
+   }
+
+   static Object proxy(Class iface, Handler handler)
+   {
+      return Proxy.newProxyInstance(TestServlet.class.getClassLoader(), new Class[]{iface}, (Object p, Method m, Object[] args) -> handler.invoke(m, args));
+   }
+
+   static class MockInputStream extends ServletInputStream
+   {
+      ByteArrayInputStream in = null;
+
+      MockInputStream(byte[] body)
+      {
+         in = new ByteArrayInputStream(body);
+      }
+
+      @Override
+      public int read() throws IOException
+      {
+         return in.read();
+      }
+
+      @Override
+      public boolean isFinished()
+      {
+         return in.available() == 0;
+      }
+
+      @Override
+      public boolean isReady()
+      {
+         return true;
+      }
+
+      @Override
+      public void setReadListener(ReadListener readListener)
+      {
+         try
+         {
+            readListener.onDataAvailable();
+            readListener.onAllDataRead();
+         }
+         catch (IOException ex)
+         {
+            readListener.onError(ex);
+         }
+      }
+   }
+
+   static class MockOutputStream extends ServletOutputStream
+   {
+      ByteArrayOutputStream out = null;
+
+      MockOutputStream(ByteArrayOutputStream out)
+      {
+         this.out = out;
+      }
+
+      @Override
+      public void write(int b) throws IOException
+      {
+         out.write(b);
+      }
+
+      @Override
+      public boolean isReady()
+      {
+         return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener)
+      {
+         try
+         {
+            writeListener.onWritePossible();
+         }
+         catch (IOException ex)
+         {
+            writeListener.onError(ex);
+         }
+      }
+   }
+
+   @Test
+   public void testAsync() throws Exception
+   {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try
+      {
+         Servlet servlet = new Servlet();
+         servlet.setEngine(new Engine(new Api("test").withEndpoint("GET", "ep/*", new MockAction("async"))));
+         servlet.setAsync(true);
+         servlet.setAsyncTimeout(5000);
+         servlet.setExecutor(executor);
+
+         MockExchange exchange = new MockExchange("http://localhost/test/ep/books");
+         servlet.service(exchange.request, exchange.response);
+
+         assertTrue(exchange.completed.await(5, TimeUnit.SECONDS));
+         assertEquals(5000, exchange.timeout);
+         assertEquals(200, exchange.status);
+         assertEquals(1, exchange.completions);
+         assertTrue(new String(exchange.out.toByteArray()).indexOf("async") > -1);
+      }
+      finally
+      {
+         executor.shutdownNow();
+      }
+   }
+
+   @Test
+   public void testAsyncBodyUsesRequestEncoding() throws Exception
+   {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try
+      {
+         final String[] body = new String[1];
+
+         Servlet servlet = new Servlet();
+         servlet.setEngine(new Engine(new Api("test").withEndpoint("POST", "ep/*", new MockAction("echo")
+            {
+               public void run(Request req, Response res) throws Exception
+               {
+                  body[0] = req.getBody();
+               }
+            })));
+         servlet.setAsync(true);
+         servlet.setExecutor(executor);
+
+         MockExchange exchange = new MockExchange("http://localhost/test/ep/books");
+         exchange.method = "POST";
+         exchange.encoding = "ISO-8859-1";
+         exchange.body = "{\"name\":\"Cr\u00e8me br\u00fbl\u00e9e\"}".getBytes("ISO-8859-1");
+         servlet.service(exchange.request, exchange.response);
+
+         assertTrue(exchange.completed.await(5, TimeUnit.SECONDS));
+         assertEquals("{\"name\":\"Cr\u00e8me br\u00fbl\u00e9e\"}", body[0]);
+      }
+      finally
+      {
+         executor.shutdownNow();
+      }
+   }
+
+   @Test
+   public void testAsyncTimeout() throws Exception
+   {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try
+      {
+         final CountDownLatch started = new CountDownLatch(1);
+         final CountDownLatch release = new CountDownLatch(1);
+
+         Servlet servlet = new Servlet();
+         servlet.setEngine(new Engine(new Api("test").withEndpoint("GET", "ep/*", new MockAction("slow")
+            {
+               public void run(Request req, Response res) throws Exception
+               {
+                  started.countDown();
+                  release.await(5, TimeUnit.SECONDS);
+                  super.run(req, res);
+               }
+            })));
+         servlet.setAsync(true);
+         servlet.setExecutor(executor);
+
+         MockExchange exchange = new MockExchange("http://localhost/test/ep/books");
+         servlet.service(exchange.request, exchange.response);
+         assertTrue(started.await(5, TimeUnit.SECONDS));
+
+         //-- the container gives up while the engine is still running
+         exchange.timeout();
+         assertEquals(503, exchange.status);
+         assertEquals(1, exchange.completions);
+
+         //-- the late response is dropped
+         release.countDown();
+         executor.shutdown();
+         assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+         assertEquals(503, exchange.status);
+         assertEquals(1, exchange.completions);
+         assertEquals(0, exchange.out.size());
+      }
+      finally
+      {
+         executor.shutdownNow();
+      }
+   }
+}
@@ -25,19 +25,33 @@ import java.sql.ResultSet;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sql.DataSource;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 
 import ch.qos.logback.classic.Level;
 import io.inversion.cloud.jdbc.rql.SqlQuery;
+import io.inversion.cloud.jdbc.rql.SqlQuery.Shape;
 import io.inversion.cloud.jdbc.utils.JdbcUtils;
 import io.inversion.cloud.jdbc.utils.JdbcUtils.SqlListener;
 import io.inversion.cloud.model.Api;
@@ -55,8 +69,10 @@ import io.inversion.cloud.model.Status;
 import io.inversion.cloud.model.Collection;
 import io.inversion.cloud.rql.Term;
 import io.inversion.cloud.service.Chain;
+import io.inversion.cloud.service.Context;
 import io.inversion.cloud.service.Engine;
 import io.inversion.cloud.utils.Rows.Row;
+import io.inversion.cloud.utils.Rows.RowIterator;
 import io.inversion.cloud.utils.Utils;
 
 public class JdbcDb extends Db<JdbcDb>
@@ -64,7 +80,11 @@ public class JdbcDb extends Db<JdbcDb>
    protected char                 stringQuote              = '\'';
    protected char                 columnQuote              = '"';
 
-   static Map<String, DataSource> pools                    = new HashMap();
+   /**
+    * Read without locking on every connection checkout so this must be 
+    * a concurrent map, the lock is only taken to create a pool
+    */
+   static Map<String, DataSource> pools                    = new ConcurrentHashMap();
 
    public static final int        MIN_POOL_SIZE            = 3;
    public static final int        MAX_POOL_SIZE            = 10;
@@ -78,14 +98,93 @@ public class JdbcDb extends Db<JdbcDb>
    protected int                  idleConnectionTestPeriod = 3600;           // in seconds
    protected boolean              autoCommit               = false;
 
+   /**
+    * The number of rows the driver should fetch per round trip for
+    * {@link #selectIterator(Collection, List)}.  0 leaves the driver default.
+    * @see #getStreamingFetchSize()
+    */
+   protected int                  fetchSize                = 1000;
+
+   /**
+    * The most parameters a single multi-row upsert statement may bind, 
+    * sqlserver allows at most 2100
+    */
+   protected int                  maxBatchParams           = 2000;
+
    // set this to false to turn off SQL_CALC_FOUND_ROWS and SELECT FOUND_ROWS()
    // Only impacts 'mysql' types
    protected boolean              calcRowsFound            = true;
 
-   protected int                  relatedMax               = 500;
+   /**
+    * The default way to compute 'foundRows' for a GET when neither the
+    * endpoint/action 'foundRows' config nor the Collection specify one.
+    * <ul>
+    *   <li>exact - count after the page query on the same connection
+    *   <li>concurrent - count on a second pooled connection while the page query runs
+    *   <li>cached - reuse a count of the same WHERE clause for foundRowsCacheSeconds
+    *   <li>estimated - use the database's query plan or table statistics, exact if there are none
+    *   <li>off - do not count
+    * </ul>
+    */
+   protected String               foundRows                = "exact";
+   protected int                  foundRowsCacheSeconds    = 60;
+   protected int                  foundRowsCacheMax        = 1000;
+   protected Map<String, long[]>  foundRowsCache           = new ConcurrentHashMap();
+
+   static ExecutorService         countExecutor            = null;
+
+   /**
+    * The number of query shapes whose generated SQL and parameter binding 
+    * plan are kept for reuse.  0 turns off the cache.
+    * @see SqlQuery#getPreparedStmt()
+    */
+   protected int                  sqlCacheMax              = 1000;
+   protected Map<String, Shape>   sqlCache                 = new ConcurrentHashMap();
+   protected AtomicBoolean        sqlCacheEvicting         = new AtomicBoolean(false);
+   protected AtomicLong           sqlCacheHits             = new AtomicLong(0);
+   protected AtomicLong           sqlCacheMisses           = new AtomicLong(0);
+
+   /**
+    * The number of prepared statements the mysql or postgres driver 
+    * should cache per connection.  0 leaves the driver defaults.
+    */
+   protected int                  statementCacheSize       = 250;
 
    protected List<String>         ddlUrls                  = new ArrayList();
 
+   /**
+    * Read replicas of this db.  Selects made while serving a GET request
+    * are sent to a replica chosen by <code>replicaPolicy</code> unless 
+    * this request has already used the primary, so a request always reads 
+    * its own writes.  Replicas use the primary's driver, user and pass.
+    */
+   protected List<String>         replicaUrls              = new ArrayList();
+
+   /**
+    * 'roundrobin' or 'leastinuse', the replica with the fewest active connections
+    */
+   protected String               replicaPolicy            = REPLICA_ROUND_ROBIN;
+   protected AtomicInteger        nextReplica              = new AtomicInteger(0);
+
+   public static final String     REPLICA_ROUND_ROBIN      = "roundrobin";
+   public static final String     REPLICA_LEAST_IN_USE     = "leastinuse";
+
+   /**
+    * How long a request holds its pooled connections.
+    * <ul>
+    *   <li>request - from first use until the request completes, the default
+    *   <li>select - GET requests that have not used the primary for anything 
+    *       but selects read in autocommit mode and return the connection to the 
+    *       pool right after each select instead of holding it through 
+    *       serialization and the rest of the action chain.  Writes keep 
+    *       the request scope.
+    * </ul>
+    */
+   protected String               connectionScope          = CONNECTION_SCOPE_REQUEST;
+
+   public static final String     CONNECTION_SCOPE_REQUEST = "request";
+   public static final String     CONNECTION_SCOPE_SELECT  = "select";
+
    static
    {
       ch.qos.logback.classic.Logger logger = (ch.qos.logback.classic.Logger) org.slf4j.LoggerFactory.getLogger("ROOT");
@@ -117,6 +216,9 @@ public class JdbcDb extends Db<JdbcDb>
             @Override
             public void afterStmt(String method, String sql, Object args, Exception ex, Object result)
             {
+               if (!Chain.isDebugEnabled())
+                  return;
+
                String debugPrefix = "SqlDb: ";
 
                String debugType = "unknown";
@@ -213,6 +315,9 @@ public class JdbcDb extends Db<JdbcDb>
                {
                   log.warn("Error closing connections.", t);
                }
+
+               if (Chain.getDepth() <= 1)
+                  Context.current().remove(getPrimaryUsedKey());
             }
 
          });
@@ -276,26 +381,47 @@ public class JdbcDb extends Db<JdbcDb>
       return query.doSelect();
    }
 
+   /**
+    * Streams the selected rows from an open ResultSet on this request's
+    * connection instead of materializing the page.  The connection can
+    * not be used for other queries until the iterator is closed.
+    */
    @Override
-   public List<String> upsert(Collection table, List<Map<String, Object>> rows) throws Exception
+   public RowIterator selectIterator(Collection coll, List<Term> columnMappedTerms) throws Exception
    {
-      if (isType("h2"))
-      {
-         List keys = new ArrayList();
-         for (Map<String, Object> row : rows)
-         {
-            keys.add(h2Upsert(table, row));
-         }
-         return keys;
-      }
-      else if (isType("mysql"))
+      JdbcDb db = coll == null ? this : (JdbcDb) coll.getDb();
+
+      SqlQuery query = new SqlQuery(coll, columnMappedTerms);
+      query.withDb(db);
+
+      if (Chain.peek() != null)
       {
-         return mysqlUpsert(table, rows);
+         String selectSql = (String) Chain.peek().remove((coll != null ? coll.getTableName() + "." : "") + "select");
+         if (selectSql != null)
+            query.withSelectSql(selectSql);
       }
-      else
+
+      return query.doSelectIterator();
+   }
+
+   @Override
+   public List<String> upsert(Collection table, List<Map<String, Object>> rows) throws Exception
+   {
+      List generated = JdbcUtils.upsert(getConnection(), getType(), table.getTableName(), table.getPrimaryIndex(), rows, maxBatchParams);
+
+      List<String> keys = new ArrayList();
+      for (int i = 0; i < rows.size(); i++)
       {
-         throw new ApiException(Status.SC_500_INTERNAL_SERVER_ERROR, "Need to implement SqlDb.upsert for db type '" + getType() + "'");
+         Object key = table.encodeKey(rows.get(i));
+         if (key == null)
+            key = generated.get(i);
+
+         if (key == null)
+            throw new ApiException(Status.SC_500_INTERNAL_SERVER_ERROR, "Unable to determine key of upserted row: " + rows.get(i));
+
+         keys.add(key.toString());
       }
+      return keys;
    }
 
    @Override
@@ -350,6 +476,47 @@ public class JdbcDb extends Db<JdbcDb>
 
    }
 
+   /**
+    * Deletes with a single DELETE ... WHERE or, when <code>chunkSize</code> 
+    * is greater than 0, with repeated limited DELETEs each committed 
+    * on its own so no statement holds its locks for long.
+    * 
+    * @see SqlQuery#getDeleteStmt(int)
+    */
+   @Override
+   public int deleteWhere(Collection table, List<Term> columnMappedTerms, int chunkSize) throws Exception
+   {
+      if (!isType("h2", "mysql", "postgres", "sqlserver"))
+         chunkSize = 0;
+
+      SqlQuery query = new SqlQuery(table, columnMappedTerms);
+      query.withDb(this);
+
+      String sql = query.getDeleteStmt(chunkSize);
+      if (sql == null)
+         return -1;
+
+      Connection conn = getConnection();
+      Object[] values = query.getColValues().toArray();
+
+      int deleted = 0;
+      while (true)
+      {
+         Integer count = (Integer) JdbcUtils.execute(conn, sql, values);
+         if (count == null || count < 0)
+            break;
+
+         deleted += count;
+
+         if (chunkSize <= 0 || count < chunkSize)
+            break;
+
+         if (!conn.getAutoCommit())
+            conn.commit();
+      }
+      return deleted;
+   }
+
    public List<String> mysqlUpsert(Collection table, List<Map<String, Object>> rows) throws Exception
    {
       return JdbcUtils.mysqlUpsert(getConnection(), table.getTableName(), rows);
@@ -381,47 +548,228 @@ public class JdbcDb extends Db<JdbcDb>
    }
 
    public Connection getConnection() throws ApiException
+   {
+      return getConnection(false);
+   }
+
+   /**
+    * @param read true if the connection is only going to be used for a select
+    */
+   protected Connection getConnection(boolean read) throws ApiException
    {
       try
       {
          Connection conn = ConnectionLocal.getConnection(this);
          if (conn == null && !isShutdown())
          {
-            String dsKey = "name=" + getName() + ", url=" + getUrl() + ", user=" + getUser();
+            DataSource pool = getPool(getUrl());
+            conn = pool.getConnection();
+            conn.setAutoCommit(read && isSelectScope() ? true : isAutoCommit());
 
-            DataSource pool = pools.get(dsKey);
+            ConnectionLocal.putConnection(this, conn);
+         }
+         else if (!read && conn != null && conn.getAutoCommit() != isAutoCommit())
+         {
+            //-- a select scoped read connection is about to be written to
+            conn.setAutoCommit(isAutoCommit());
+         }
 
-            if (pool == null)
-            {
-               synchronized (pools)
-               {
-                  //System.out.println("CREATING CONNECTION POOL: " + dsKey);
+         //-- later reads in this request stay on the primary connection to see its writes
+         if (!read && Chain.first() != null)
+            Context.current().put(getPrimaryUsedKey(), Boolean.TRUE);
 
-                  pool = pools.get(getName());
+         return conn;
+      }
+      catch (Exception ex)
+      {
+         log.error("Unable to get DB connection", ex);
+         throw new ApiException(Status.SC_500_INTERNAL_SERVER_ERROR, "Unable to get DB connection", ex);
+      }
+   }
 
-                  if (pool == null && !isShutdown())
-                  {
-                     pool = createConnectionPool();
-                     pools.put(dsKey, pool);
-                  }
-               }
-            }
+   /**
+    * The connection select() should use: a read replica connection when 
+    * {@link #isReplicaRead()} otherwise the primary connection.
+    * 
+    * @see #releaseReadConnection()
+    */
+   public Connection getReadConnection() throws ApiException
+   {
+      if (!isReplicaRead())
+         return getConnection(true);
 
+      try
+      {
+         Connection conn = ConnectionLocal.getReadConnection(this);
+         if (conn == null && !isShutdown())
+         {
+            DataSource pool = getPool(chooseReplica());
             conn = pool.getConnection();
-            conn.setAutoCommit(isAutoCommit());
+            conn.setAutoCommit(isSelectScope() ? true : isAutoCommit());
+            conn.setReadOnly(true);
 
-            ConnectionLocal.putConnection(this, conn);
+            ConnectionLocal.putReadConnection(this, conn);
          }
-
          return conn;
       }
       catch (Exception ex)
       {
-         log.error("Unable to get DB connection", ex);
+         log.error("Unable to get read replica connection", ex);
          throw new ApiException(Status.SC_500_INTERNAL_SERVER_ERROR, "Unable to get DB connection", ex);
       }
    }
 
+   /**
+    * Returns the connections used by a select to the pool when {@link #isSelectScope()}.
+    */
+   public void releaseReadConnection()
+   {
+      if (!isSelectScope())
+         return;
+
+      try
+      {
+         ConnectionLocal.release(this);
+      }
+      catch (Exception ex)
+      {
+         log.warn("Error releasing connection.", ex);
+      }
+   }
+
+   /**
+    * @return true if connectionScope is 'select', the top level request is a GET 
+    *         and the primary has not been used for anything but selects
+    */
+   public boolean isSelectScope()
+   {
+      if (!CONNECTION_SCOPE_SELECT.equalsIgnoreCase(connectionScope))
+         return false;
+
+      Chain chain = Chain.first();
+      if (chain == null || chain.getRequest() == null || !chain.getRequest().isGet())
+         return false;
+
+      return Context.current().get(getPrimaryUsedKey()) == null;
+   }
+
+   /**
+    * @return true if there are replicas, the top level request is a GET and 
+    *         the primary has not been used yet by this request
+    */
+   public boolean isReplicaRead()
+   {
+      if (replicaUrls.size() == 0)
+         return false;
+
+      Chain chain = Chain.first();
+      if (chain == null || chain.getRequest() == null || !chain.getRequest().isGet())
+         return false;
+
+      return Context.current().get(getPrimaryUsedKey()) == null;
+   }
+
+   protected String getPrimaryUsedKey()
+   {
+      return JdbcDb.class.getName() + ".primaryUsed." + getName();
+   }
+
+   protected String chooseReplica() throws Exception
+   {
+      if (replicaUrls.size() == 1)
+         return replicaUrls.get(0);
+
+      if (REPLICA_LEAST_IN_USE.equalsIgnoreCase(replicaPolicy))
+      {
+         String least = null;
+         int leastActive = Integer.MAX_VALUE;
+         for (String url : replicaUrls)
+         {
+            int active = getActiveConnections(getPool(url));
+            if (active < leastActive)
+            {
+               least = url;
+               leastActive = active;
+            }
+         }
+         return least;
+      }
+
+      int next = nextReplica.getAndIncrement() & Integer.MAX_VALUE;
+      return replicaUrls.get(next % replicaUrls.size());
+   }
+
+   protected DataSource getPool(String url) throws Exception
+   {
+      String dsKey = getPoolKey(url);
+
+      DataSource pool = pools.get(dsKey);
+
+      if (pool == null)
+      {
+         synchronized (pools)
+         {
+            //System.out.println("CREATING CONNECTION POOL: " + dsKey);
+
+            pool = pools.get(dsKey);
+
+            if (pool == null && !isShutdown())
+            {
+               pool = url.equals(getUrl()) ? createConnectionPool() : createConnectionPool(url);
+               pools.put(dsKey, pool);
+            }
+         }
+      }
+      return pool;
+   }
+
+   protected String getPoolKey(String url)
+   {
+      return "name=" + getName() + ", url=" + url + ", user=" + getUser();
+   }
+
+   static int getActiveConnections(DataSource pool)
+   {
+      if (pool instanceof HikariDataSource && ((HikariDataSource) pool).getHikariPoolMXBean() != null)
+         return ((HikariDataSource) pool).getHikariPoolMXBean().getActiveConnections();
+
+      return 0;
+   }
+
+   /**
+    * Utilization of the primary and replica pools that have been created.
+    * 
+    * @return one map per pool with 'role', 'url', 'active', 'idle', 'total', 'waiting' and 'max'
+    */
+   public List<Map<String, Object>> getPoolStats()
+   {
+      List<Map<String, Object>> stats = new ArrayList();
+
+      List<String> urls = new ArrayList();
+      urls.add(getUrl());
+      urls.addAll(replicaUrls);
+
+      for (String url : urls)
+      {
+         DataSource pool = pools.get(getPoolKey(url));
+         if (!(pool instanceof HikariDataSource) || ((HikariDataSource) pool).getHikariPoolMXBean() == null)
+            continue;
+
+         HikariPoolMXBean bean = ((HikariDataSource) pool).getHikariPoolMXBean();
+
+         Map<String, Object> stat = new LinkedHashMap();
+         stat.put("role", url.equals(getUrl()) ? "primary" : "replica");
+         stat.put("url", url);
+         stat.put("active", bean.getActiveConnections());
+         stat.put("idle", bean.getIdleConnections());
+         stat.put("total", bean.getTotalConnections());
+         stat.put("waiting", bean.getThreadsAwaitingConnection());
+         stat.put("max", ((HikariDataSource) pool).getMaximumPoolSize());
+         stats.add(stat);
+      }
+      return stats;
+   }
+
    protected DataSource createConnectionPool() throws Exception
    {
       if (ddlUrls.size() > 0)
@@ -461,76 +809,204 @@ public class JdbcDb extends Db<JdbcDb>
          }
       }
 
+      return createConnectionPool(getUrl());
+   }
+
+   protected DataSource createConnectionPool(String url) throws Exception
+   {
       HikariConfig config = new HikariConfig();
       String driver = getDriver();
       config.setDriverClassName(driver);
-      config.setJdbcUrl(getUrl());
+      config.setJdbcUrl(url);
       config.setUsername(getUser());
       config.setPassword(getPass());
       config.setMaximumPoolSize(Math.min(getPoolMax(), MAX_POOL_SIZE));
+
+      if (statementCacheSize > 0)
+      {
+         if (isType("mysql"))
+         {
+            config.addDataSourceProperty("cachePrepStmts", "true");
+            config.addDataSourceProperty("prepStmtCacheSize", statementCacheSize + "");
+            config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+            config.addDataSourceProperty("useServerPrepStmts", "true");
+         }
+         else if (isType("postgres"))
+         {
+            config.addDataSourceProperty("preparedStatementCacheQueries", statementCacheSize + "");
+         }
+      }
+
       DataSource pool = new HikariDataSource(config);
 
       return pool;
    }
 
+   /**
+    * Compatibility accessors for the connections held by the current 
+    * request.  The connections are stored as locals of the current
+    * {@link Context} so each forked child task gets its own connections
+    * instead of sharing the request thread's.
+    */
    public static class ConnectionLocal
    {
-      static ThreadLocal<Map<Db, Connection>> connections = new ThreadLocal();
-
+      static final String CONNECTIONS      = ConnectionLocal.class.getName() + ".connections";
+      static final String READ_CONNECTIONS = ConnectionLocal.class.getName() + ".readConnections";
+
+      /**
+       * Connections are {@link Context#getLocal(String) local} to a Context
+       * so work forked onto other threads never shares a Connection with
+       * the request thread.  A fork's connections are committed and closed
+       * when the forked task completes.
+       */
       public static Map<Db, Connection> getConnections()
       {
-         return connections.get();
+         return (Map<Db, Connection>) Context.current().getLocal(CONNECTIONS);
       }
 
       public static Connection getConnection(Db db)
       {
-         Map<Db, Connection> conns = connections.get();
+         Map<Db, Connection> conns = getConnections();
          if (conns == null)
-         {
-            conns = new HashMap();
-            connections.set(conns);
-         }
+            return null;
+
+         return conns.get(db);
+      }
+
+      /**
+       * @return the read replica connection held for <code>db</code> by the current Context
+       */
+      public static Connection getReadConnection(Db db)
+      {
+         Map<Db, Connection> conns = (Map<Db, Connection>) Context.current().getLocal(READ_CONNECTIONS);
+         if (conns == null)
+            return null;
 
          return conns.get(db);
       }
 
       public static void putConnection(Db db, Connection connection)
       {
-         Map<Db, Connection> conns = connections.get();
+         putConnection(CONNECTIONS, db, connection);
+      }
+
+      public static void putReadConnection(Db db, Connection connection)
+      {
+         putConnection(READ_CONNECTIONS, db, connection);
+      }
+
+      static void putConnection(String local, Db db, Connection connection)
+      {
+         Context context = Context.current();
+         Map<Db, Connection> conns = (Map<Db, Connection>) context.getLocal(local);
          if (conns == null)
          {
-            conns = new HashMap();
-            connections.set(conns);
+            conns = new ConcurrentHashMap();
+            context.putLocal(local, conns);
+
+            //-- register the close task only once, with the first map of connections
+            String other = CONNECTIONS.equals(local) ? READ_CONNECTIONS : CONNECTIONS;
+            if (context.getParent() != null && context.getLocal(other) == null)
+            {
+               context.onClose(new Runnable()
+                  {
+                     @Override
+                     public void run()
+                     {
+                        try
+                        {
+                           commit();
+                        }
+                        catch (Throwable t)
+                        {
+                           try
+                           {
+                              rollback();
+                           }
+                           catch (Throwable t2)
+                           {
+                              //ignore, the connections are closed below
+                           }
+                        }
+                        finally
+                        {
+                           try
+                           {
+                              close();
+                           }
+                           catch (Throwable t)
+                           {
+                              //ignore
+                           }
+                        }
+                     }
+                  });
+            }
          }
          conns.put(db, connection);
       }
 
-      public static void commit() throws Exception
+      /**
+       * @return the primary and read replica connections held by the current Context
+       */
+      static List<Connection> getAllConnections()
       {
-         Exception toThrow = null;
-         Map<Db, Connection> conns = connections.get();
-         if (conns != null)
+         List<Connection> all = new ArrayList();
+         for (String local : new String[]{CONNECTIONS, READ_CONNECTIONS})
          {
-            for (Db db : (List<Db>) new ArrayList(conns.keySet()))
+            Map<Db, Connection> conns = (Map<Db, Connection>) Context.current().getLocal(local);
+            if (conns != null)
+               all.addAll(conns.values());
+         }
+         return all;
+      }
+
+      /**
+       * Commits and closes the primary and read replica connections held for 
+       * <code>db</code> by the current Context returning them to their pools.
+       */
+      public static void release(Db db) throws Exception
+      {
+         for (String local : new String[]{CONNECTIONS, READ_CONNECTIONS})
+         {
+            Map<Db, Connection> conns = (Map<Db, Connection>) Context.current().getLocal(local);
+            Connection conn = conns != null ? conns.remove(db) : null;
+            if (conn != null)
             {
                try
                {
-                  Connection conn = conns.get(db);
                   if (!conn.isClosed() && !conn.getAutoCommit())
-                  {
                      conn.commit();
-                  }
                }
-               catch (Exception ex)
+               finally
                {
-                  String msg = (ex.getMessage() + "").toLowerCase();
-                  if (msg.indexOf("connection is closed") > -1)
-                     continue;
+                  conn.close();
+               }
+            }
+         }
+      }
 
-                  if (toThrow != null)
-                     toThrow = ex;
+      public static void commit() throws Exception
+      {
+         Exception toThrow = null;
+         for (Connection conn : getAllConnections())
+         {
+            try
+            {
+               if (!conn.isClosed() && !conn.getAutoCommit())
+               {
+                  conn.commit();
                }
             }
+            catch (Exception ex)
+            {
+               String msg = (ex.getMessage() + "").toLowerCase();
+               if (msg.indexOf("connection is closed") > -1)
+                  continue;
+
+               if (toThrow != null)
+                  toThrow = ex;
+            }
          }
 
          if (toThrow != null)
@@ -540,21 +1016,16 @@ public class JdbcDb extends Db<JdbcDb>
       public static void rollback() throws Exception
       {
          Exception toThrow = null;
-         Map<Db, Connection> conns = connections.get();
-         if (conns != null)
+         for (Connection conn : getAllConnections())
          {
-            for (Db db : (List<Db>) new ArrayList(conns.keySet()))
+            try
             {
-               Connection conn = conns.get(db);
-               try
-               {
-                  conn.rollback();
-               }
-               catch (Exception ex)
-               {
-                  if (toThrow != null)
-                     toThrow = ex;
-               }
+               conn.rollback();
+            }
+            catch (Exception ex)
+            {
+               if (toThrow != null)
+                  toThrow = ex;
             }
          }
 
@@ -565,25 +1036,21 @@ public class JdbcDb extends Db<JdbcDb>
       public static void close() throws Exception
       {
          Exception toThrow = null;
-         Map<Db, Connection> conns = connections.get();
-         if (conns != null)
+         for (Connection conn : getAllConnections())
          {
-            for (Db db : (List<Db>) new ArrayList(conns.keySet()))
+            try
             {
-               Connection conn = conns.get(db);
-               try
-               {
-                  conn.close();
-               }
-               catch (Exception ex)
-               {
-                  if (toThrow != null)
-                     toThrow = ex;
-               }
+               conn.close();
+            }
+            catch (Exception ex)
+            {
+               if (toThrow != null)
+                  toThrow = ex;
             }
          }
 
-         connections.remove();
+         Context.current().putLocal(CONNECTIONS, null);
+         Context.current().putLocal(READ_CONNECTIONS, null);
 
          if (toThrow != null)
             throw toThrow;
@@ -1001,32 +1468,304 @@ public class JdbcDb extends Db<JdbcDb>
       return stringQuote + string + stringQuote;
    }
 
-   public int getRelatedMax()
+   public JdbcDb withDdlUrl(String... ddlUrl)
    {
-      return relatedMax;
+      for (int i = 0; ddlUrl != null && i < ddlUrl.length; i++)
+      {
+         ddlUrls.add(ddlUrl[i]);
+      }
+
+      return this;
    }
 
-   public JdbcDb withRelatedMax(int relatedMax)
+   public List<String> getReplicaUrls()
    {
-      this.relatedMax = relatedMax;
-      return this;
+      return replicaUrls;
    }
 
-   public JdbcDb withDdlUrl(String... ddlUrl)
+   public JdbcDb withReplicaUrl(String... replicaUrl)
    {
-      for (int i = 0; ddlUrl != null && i < ddlUrl.length; i++)
+      for (int i = 0; replicaUrl != null && i < replicaUrl.length; i++)
       {
-         ddlUrls.add(ddlUrl[i]);
+         replicaUrls.add(replicaUrl[i]);
       }
 
       return this;
    }
 
+   public String getReplicaPolicy()
+   {
+      return replicaPolicy;
+   }
+
+   public JdbcDb withReplicaPolicy(String replicaPolicy)
+   {
+      this.replicaPolicy = replicaPolicy;
+      return this;
+   }
+
+   public String getConnectionScope()
+   {
+      return connectionScope;
+   }
+
+   public JdbcDb withConnectionScope(String connectionScope)
+   {
+      this.connectionScope = connectionScope;
+      return this;
+   }
+
    public boolean isAutoCommit()
    {
       return autoCommit;
    }
 
+   public boolean isCalcRowsFound()
+   {
+      return calcRowsFound;
+   }
+
+   public JdbcDb withCalcRowsFound(boolean calcRowsFound)
+   {
+      this.calcRowsFound = calcRowsFound;
+      return this;
+   }
+
+   public String getFoundRows()
+   {
+      return foundRows;
+   }
+
+   public JdbcDb withFoundRows(String foundRows)
+   {
+      this.foundRows = foundRows;
+      return this;
+   }
+
+   public int getFoundRowsCacheSeconds()
+   {
+      return foundRowsCacheSeconds;
+   }
+
+   public JdbcDb withFoundRowsCacheSeconds(int foundRowsCacheSeconds)
+   {
+      this.foundRowsCacheSeconds = foundRowsCacheSeconds;
+      return this;
+   }
+
+   public int getFoundRowsCacheMax()
+   {
+      return foundRowsCacheMax;
+   }
+
+   public JdbcDb withFoundRowsCacheMax(int foundRowsCacheMax)
+   {
+      this.foundRowsCacheMax = foundRowsCacheMax;
+      return this;
+   }
+
+   /**
+    * @return the unexpired count cached for <code>key</code> or -1
+    */
+   public int getCachedFoundRows(String key)
+   {
+      long[] entry = foundRowsCache.get(key);
+      if (entry == null)
+         return -1;
+
+      if (entry[1] < System.currentTimeMillis())
+      {
+         foundRowsCache.remove(key);
+         return -1;
+      }
+      return (int) entry[0];
+   }
+
+   public void putCachedFoundRows(String key, int foundRows)
+   {
+      long now = System.currentTimeMillis();
+      if (foundRowsCache.size() >= foundRowsCacheMax)
+      {
+         //-- getCachedFoundRows() evicts the expired entries
+         for (String cached : new ArrayList<String>(foundRowsCache.keySet()))
+            getCachedFoundRows(cached);
+
+         if (foundRowsCache.size() >= foundRowsCacheMax)
+            foundRowsCache.clear();
+      }
+      foundRowsCache.put(key, new long[]{foundRows, now + (foundRowsCacheSeconds * 1000L)});
+   }
+
+   public void clearCachedFoundRows()
+   {
+      foundRowsCache.clear();
+   }
+
+   /**
+    * Runs 'concurrent' foundRows counts.  When every thread is busy the
+    * count runs on the caller's thread before the page query.
+    */
+   public static synchronized ExecutorService getCountExecutor()
+   {
+      if (countExecutor == null)
+      {
+         int maxThreads = Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+         countExecutor = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue(), new ThreadFactory()
+            {
+               AtomicInteger count = new AtomicInteger(0);
+
+               @Override
+               public Thread newThread(Runnable r)
+               {
+                  Thread t = new Thread(r, "inversion-count-" + count.incrementAndGet());
+                  t.setDaemon(true);
+                  return t;
+               }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+      }
+      return countExecutor;
+   }
+
+   public Shape getSqlShape(String key)
+   {
+      Shape shape = sqlCache.get(key);
+      if (shape != null)
+      {
+         shape.touch();
+         sqlCacheHits.incrementAndGet();
+      }
+      else
+      {
+         sqlCacheMisses.incrementAndGet();
+      }
+      return shape;
+   }
+
+   public void putSqlShape(String key, Shape shape)
+   {
+      sqlCache.put(key, shape);
+
+      if (sqlCache.size() > sqlCacheMax)
+         evictSqlCache();
+   }
+
+   /**
+    * Drops the least recently used shapes until the cache is back under 90%
+    * of <code>sqlCacheMax</code>.  One thread at a time sweeps the cache, 
+    * other threads never wait on it.
+    */
+   protected void evictSqlCache()
+   {
+      if (!sqlCacheEvicting.compareAndSet(false, true))
+         return;
+
+      try
+      {
+         int target = (int) (sqlCacheMax * .9);
+
+         List<Long> used = new ArrayList();
+         for (Shape shape : sqlCache.values())
+            used.add(shape.getLastUsed());
+
+         int extra = used.size() - target;
+         if (extra <= 0)
+            return;
+
+         Collections.sort(used);
+         long cutoff = used.get(extra - 1);
+
+         for (Iterator<Shape> it = sqlCache.values().iterator(); it.hasNext() && sqlCache.size() > target;)
+         {
+            if (it.next().getLastUsed() <= cutoff)
+               it.remove();
+         }
+      }
+      finally
+      {
+         sqlCacheEvicting.set(false);
+      }
+   }
+
+   public int getSqlCacheSize()
+   {
+      return sqlCache.size();
+   }
+
+   public void clearSqlCache()
+   {
+      sqlCache.clear();
+   }
+
+   public long getSqlCacheHits()
+   {
+      return sqlCacheHits.get();
+   }
+
+   public long getSqlCacheMisses()
+   {
+      return sqlCacheMisses.get();
+   }
+
+   public int getSqlCacheMax()
+   {
+      return sqlCacheMax;
+   }
+
+   public JdbcDb withSqlCacheMax(int sqlCacheMax)
+   {
+      this.sqlCacheMax = sqlCacheMax;
+      return this;
+   }
+
+   public int getStatementCacheSize()
+   {
+      return statementCacheSize;
+   }
+
+   public JdbcDb withStatementCacheSize(int statementCacheSize)
+   {
+      this.statementCacheSize = statementCacheSize;
+      return this;
+   }
+
+   public int getFetchSize()
+   {
+      return fetchSize;
+   }
+
+   public JdbcDb withFetchSize(int fetchSize)
+   {
+      this.fetchSize = fetchSize;
+      return this;
+   }
+
+   /**
+    * MySQL Connector/J buffers the entire result set client side unless
+    * the fetch size is Integer.MIN_VALUE which streams row by row.  Other
+    * drivers use the configured fetch size, Postgres only when autoCommit
+    * is false which is the default here.
+    * 
+    * @return the fetch size to use for streaming selects on this type of db
+    */
+   public int getStreamingFetchSize()
+   {
+      if (fetchSize > 0 && isType("mysql"))
+         return Integer.MIN_VALUE;
+
+      return fetchSize;
+   }
+
+   public int getMaxBatchParams()
+   {
+      return maxBatchParams;
+   }
+
+   public JdbcDb withMaxBatchParams(int maxBatchParams)
+   {
+      this.maxBatchParams = maxBatchParams;
+      return this;
+   }
+
    public JdbcDb withAutoCommit(boolean autoCommit)
    {
       this.autoCommit = autoCommit;
@@ -16,24 +16,37 @@
  */
 package io.inversion.cloud.jdbc.rql;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.omg.CosNaming.IstringHelper;
 
+import com.fasterxml.jackson.databind.util.ISO8601Utils;
+
 import io.inversion.cloud.jdbc.db.JdbcDb;
 import io.inversion.cloud.jdbc.utils.JdbcUtils;
+import io.inversion.cloud.model.ApiException;
 import io.inversion.cloud.model.Property;
 import io.inversion.cloud.model.Db;
 import io.inversion.cloud.model.Index;
 import io.inversion.cloud.model.Results;
+import io.inversion.cloud.model.Status;
 import io.inversion.cloud.model.Collection;
+import io.inversion.cloud.rql.Builder;
 import io.inversion.cloud.rql.Group;
 import io.inversion.cloud.rql.Order;
 import io.inversion.cloud.rql.Order.Sort;
@@ -43,8 +56,10 @@ import io.inversion.cloud.rql.Select;
 import io.inversion.cloud.rql.Term;
 import io.inversion.cloud.rql.Where;
 import io.inversion.cloud.service.Chain;
+import io.inversion.cloud.service.Context;
 import io.inversion.cloud.utils.Rows;
 import io.inversion.cloud.utils.Rows.Row;
+import io.inversion.cloud.utils.Rows.RowIterator;
 import io.inversion.cloud.utils.Utils;
 
 public class SqlQuery<D extends Db> extends Query<SqlQuery, D, Select<Select<Select, SqlQuery>, SqlQuery>, Where<Where<Where, SqlQuery>, SqlQuery>, Group<Group<Group, SqlQuery>, SqlQuery>, Order<Order<Order, SqlQuery>, SqlQuery>, Page<Page<Page, SqlQuery>, SqlQuery>>
@@ -52,12 +67,49 @@ public class SqlQuery<D extends Db> extends Query<SqlQuery, D, Select<Select<Sel
    protected char              stringQuote = '\'';
    protected char              columnQuote = '"';
 
+   public static final String  FOUND_ROWS_EXACT      = "exact";
+   public static final String  FOUND_ROWS_CONCURRENT = "concurrent";
+   public static final String  FOUND_ROWS_CACHED     = "cached";
+   public static final String  FOUND_ROWS_ESTIMATED  = "estimated";
+   public static final String  FOUND_ROWS_OFF        = "off";
+
    String                      selectSql   = null;
 
    String                      type        = null;
 
    LinkedHashMap<String, Term> joins;
 
+   /**
+    * The sort columns rows can be seeked on, computed by toSql()
+    */
+   List<Sort>                  keyset      = null;
+
+   /**
+    * The terms this query was constructed with, their structure is the key
+    * for reusing SQL generated for an earlier query of the same shape
+    */
+   List<Term>                  shapeTerms  = null;
+
+   /**
+    * While generating SQL for the shape cache, the leaf term each
+    * prepared statement value was copied from or null if it was derived.
+    * For seek values the term is the <code>after</code> term and the
+    * binding key is the index of the value in its decoded cursor.  A
+    * binding key of DERIVED means the value was computed from the leaf.
+    */
+   List<Term>                  bindings    = null;
+   List<Integer>               bindingKeys = null;
+   Term                        binding     = null;
+   int                         bindingKey  = -1;
+
+   static final int            DERIVED     = -2;
+
+   /**
+    * The functions whose non first leaf children are literal values that
+    * can be left out of the shape key when they are bound as parameters
+    */
+   static final String[]       VALUE_FUNCTIONS = new String[]{"eq", "ne", "like", "w", "sw", "ew", "wo", "nw", "lt", "le", "gt", "ge", "in", "out"};
+
    public SqlQuery()
    {
 
@@ -66,10 +118,16 @@ public class SqlQuery<D extends Db> extends Query<SqlQuery, D, Select<Select<Sel
    public SqlQuery(Collection table, List<Term> terms)
    {
       super(table, terms);
+
+      if (terms != null)
+         shapeTerms = new ArrayList(terms);
    }
 
    protected boolean addTerm(String token, Term term)
    {
+      //-- terms added after construction are not part of the shape
+      shapeTerms = null;
+
       if (term.hasToken("eq"))
       {
          String name = term.getToken(0);
@@ -108,46 +166,433 @@ public class SqlQuery<D extends Db> extends Query<SqlQuery, D, Select<Select<Sel
       List values = getColValues();
 
       //-- for test cases and query explain
-      String debug = getClass().getSimpleName() + " " + getType() + ": " + sql + " args=" + values;
-      debug = debug.replaceAll("\r", "");
-      debug = debug.replaceAll("\n", " ");
-      debug = debug.replaceAll(" +", " ");
-      Chain.debug(debug);
-      results.withTestQuery(debug);
+      if (isDryRun() || Chain.isDebugEnabled())
+      {
+         String debug = getClass().getSimpleName() + " " + getType() + ": " + sql + " args=" + values;
+         debug = debug.replaceAll("\r", "");
+         debug = debug.replaceAll("\n", " ");
+         debug = debug.replaceAll(" +", " ");
+         Chain.debug(debug);
+         results.withTestQuery(debug);
+      }
 
       if (!isDryRun())
       {
-         Connection conn = db.getConnection();
-         //-- prepared statement variables are computing during the 
-         //-- generation of the prepared statement above
+         Future<Integer> count = null;
+         boolean countUsed = false;
+         try
+         {
+            Connection conn = db.getReadConnection();
+            //-- prepared statement variables are computing during the 
+            //-- generation of the prepared statement above
 
-         Rows rows = JdbcUtils.selectRows(conn, sql, values);
-         int foundRows = -1;
+            int foundRows = -1;
+            String foundRowsType = null;
 
-         if (Chain.peek().get("foundRows") == null && Chain.first().getRequest().isMethod("GET"))
-         {
-            if (rows.size() == 0)
+            //-- pages after the first one seek past the previous page so 
+            //-- counting would cost more than the page itself.  The total 
+            //-- was reported with the first page
+            String strategy = FOUND_ROWS_OFF;
+            if (getPage().getAfter() == null && Chain.peek().get("foundRows") == null && Chain.first().getRequest().isMethod("GET"))
+               strategy = getFoundRowsStrategy();
+
+            String cacheKey = null;
+
+            if (FOUND_ROWS_CACHED.equals(strategy))
             {
-               foundRows = 0;
+               cacheKey = getCollection().getTableName() + " " + sql + " args=" + values;
+               foundRows = db.getCachedFoundRows(cacheKey);
+               if (foundRows >= 0)
+                  foundRowsType = FOUND_ROWS_CACHED;
             }
-            else
+            else if (FOUND_ROWS_CONCURRENT.equals(strategy))
             {
-               foundRows = queryFoundRows(conn, sql, values);
+               final String countSql = sql;
+               final List countValues = values;
+               count = JdbcDb.getCountExecutor().submit(Context.current().wrap(new Callable<Integer>()
+                  {
+                     @Override
+                     public Integer call() throws Exception
+                     {
+                        return queryCount(db.getReadConnection(), countSql, countValues);
+                     }
+                  }));
             }
 
-            Chain.peek().put("foundRows", foundRows);
+            Rows rows = JdbcUtils.selectRows(conn, sql, values);
+
+            if (!FOUND_ROWS_OFF.equals(strategy))
+            {
+               if (foundRows < 0)
+               {
+                  if (rows.size() == 0 || (getPage().getOffset() == 0 && rows.size() < getPage().getLimit()))
+                  {
+                     foundRows = rows.size();
+                  }
+                  else if (count != null)
+                  {
+                     countUsed = true;
+                     foundRows = count.get();
+                  }
+                  else
+                  {
+                     if (FOUND_ROWS_ESTIMATED.equals(strategy))
+                     {
+                        foundRows = queryEstimatedRows(conn, sql, values);
+                        if (foundRows >= 0)
+                           foundRowsType = FOUND_ROWS_ESTIMATED;
+                     }
+
+                     if (foundRows < 0)
+                        foundRows = queryFoundRows(conn, sql, values);
+
+                     if (cacheKey != null)
+                        db.putCachedFoundRows(cacheKey, foundRows);
+                  }
+               }
+
+               Chain.peek().put("foundRows", foundRows);
+            }
+
+            results.withFoundRows(foundRows);
+            results.withFoundRowsType(foundRowsType);
+            results.withRows(rows);
+
+            //-- same as offset paging, a full page is not followed by an
+            //-- empty one when the count shows it ended on the last row
+            if (rows.size() > 0 && rows.size() == getPage().getLimit() && (foundRows < 0 || getPage().getOffset() + getPage().getLimit() < foundRows))
+            {
+               Term after = printAfter(rows.get(rows.size() - 1));
+               if (after != null)
+                  results.withNext(after);
+            }
          }
+         finally
+         {
+            //-- a short first page or a failed select already answered the 
+            //-- count so keep it from taking a connection if it has not started
+            if (count != null && !countUsed)
+               count.cancel(false);
 
-         results.withFoundRows(foundRows);
-         results.withRows(rows);
+            db.releaseReadConnection();
+         }
       }
 
       return results;
    }
 
+   /**
+    * Runs the same SQL as {@link #doSelect()} but returns a cursor over the 
+    * open ResultSet.  No count or next page terms are computed.
+    */
+   public RowIterator doSelectIterator() throws Exception
+   {
+      JdbcDb db = (JdbcDb) getDb();
+      String sql = getPreparedStmt();
+      List values = getColValues();
+
+      if (Chain.isDebugEnabled())
+      {
+         String debug = getClass().getSimpleName() + " " + getType() + ": " + sql + " args=" + values;
+         debug = debug.replaceAll("\r", "");
+         debug = debug.replaceAll("\n", " ");
+         debug = debug.replaceAll(" +", " ");
+         Chain.debug(debug);
+      }
+
+      final RowIterator rows = JdbcUtils.selectIterator(db.getReadConnection(), db.getStreamingFetchSize(), sql, values);
+      if (!db.isSelectScope())
+         return rows;
+
+      //-- the connection goes back to the pool once the caller is done with the cursor
+      return new RowIterator()
+         {
+            @Override
+            public boolean hasNext()
+            {
+               return rows.hasNext();
+            }
+
+            @Override
+            public Row next()
+            {
+               return rows.next();
+            }
+
+            @Override
+            public void close()
+            {
+               try
+               {
+                  rows.close();
+               }
+               finally
+               {
+                  db.releaseReadConnection();
+               }
+            }
+         };
+   }
+
+   /**
+    * Generated SQL is cached on the JdbcDb by the shape of the query, its
+    * terms with the literal values that are bound as parameters left out, 
+    * so repeated queries that only differ in those values skip SQL generation
+    * and simply bind their values according to the cached plan.
+    */
    public String getPreparedStmt()
    {
-      return toSql(true);
+      String key = getShapeKey();
+      if (key == null)
+         return toSql(true);
+
+      JdbcDb db = (JdbcDb) getDb();
+      Shape shape = db.getSqlShape(key);
+      if (shape == null)
+      {
+         bindings = new ArrayList();
+         bindingKeys = new ArrayList();
+         try
+         {
+            String sql = toSql(true);
+
+            //-- values that were not bound from the shape's placeholders may
+            //-- be literals in the key so those shapes are not remembered
+            shape = createShape(sql);
+            if (shape != null)
+               db.putSqlShape(key, shape);
+
+            return sql;
+         }
+         finally
+         {
+            bindings = null;
+            bindingKeys = null;
+         }
+      }
+
+      if (shape.sql == null)
+         return toSql(true);
+
+      List<Term> leaves = new ArrayList();
+      printShape(leaves);
+
+      String[] vals = new String[shape.leaves.length];
+      List<String> afterKeys = null;
+      for (int i = 0; i < vals.length; i++)
+      {
+         Term leaf = leaves.get(shape.leaves[i]);
+         if (shape.keys[i] < 0)
+         {
+            vals[i] = leaf.getToken();
+         }
+         else
+         {
+            if (afterKeys == null)
+               afterKeys = getAfterKeys(leaf);
+
+            //-- let toSql() report the invalid cursor
+            if (afterKeys.size() != shape.keyset.size())
+               return toSql(true);
+
+            vals[i] = afterKeys.get(shape.keys[i]);
+         }
+      }
+
+      clearValues();
+      for (int i = 0; i < vals.length; i++)
+         withColValue(shape.cols[i], vals[i]);
+
+      keyset = shape.keyset;
+      return shape.sql;
+   }
+
+   /**
+    * @return the key for the shape cache or null if this query should not be cached
+    */
+   protected String getShapeKey()
+   {
+      if (shapeTerms == null || !(db instanceof JdbcDb) || ((JdbcDb) db).getSqlCacheMax() <= 0)
+         return null;
+
+      StringBuilder key = new StringBuilder();
+      key.append(collection != null ? collection.getCollectionName() + "." + collection.getTableName() : "").append(" ");
+      key.append(selectSql).append(" ");
+
+      if ("mysql".equalsIgnoreCase(getType()))
+         key.append(Chain.peek() != null && Chain.peek().get("foundRows") == null ? getFoundRowsStrategy() + ((JdbcDb) db).isCalcRowsFound() : "").append(" ");
+
+      key.append(printShape(null));
+      return key.toString();
+   }
+
+   /**
+    * Prints the terms with each literal value leaf replaced by a symbol for 
+    * the traits that can change the generated SQL: null, quoted, numeric or 
+    * containing a wildcard.  An <code>after</code> cursor is replaced as a
+    * whole because its values are always bound as parameters.
+    * 
+    * @param leaves collects the replaced terms in order if not null
+    */
+   protected String printShape(List<Term> leaves)
+   {
+      StringBuilder buff = new StringBuilder();
+      for (Term term : shapeTerms)
+      {
+         printShape(term, buff, leaves);
+         buff.append("&");
+      }
+      return buff.toString();
+   }
+
+   protected void printShape(Term term, StringBuilder buff, List<Term> leaves)
+   {
+      if (term.isLeaf())
+      {
+         Term parent = term.getParent();
+         if (parent != null && parent.indexOf(term) > 0 && parent.hasToken(VALUE_FUNCTIONS) && !isCol(term))
+         {
+            String token = term.getToken();
+            if (term.token == null || "null".equalsIgnoreCase(token))
+            {
+               buff.append("null");
+            }
+            else
+            {
+               buff.append("?");
+               if (term.getQuote() != 0)
+                  buff.append(term.getQuote());
+               if (isNum(term))
+                  buff.append("#");
+               if (token.indexOf('*') > -1 || token.indexOf('%') > -1)
+                  buff.append("*");
+            }
+
+            if (leaves != null)
+               leaves.add(term);
+         }
+         else
+         {
+            buff.append(term.toString());
+         }
+      }
+      else if (term.hasToken("after"))
+      {
+         buff.append("after(?)");
+         if (leaves != null)
+            leaves.add(term);
+      }
+      else
+      {
+         buff.append(term.getToken()).append("(");
+         for (int i = 0; i < term.size(); i++)
+         {
+            if (i > 0)
+               buff.append(",");
+            printShape(term.getTerm(i), buff, leaves);
+         }
+         buff.append(")");
+      }
+   }
+
+   /**
+    * Builds the binding plan for the SQL just generated.  The shape can only be
+    * reused if every prepared statement value was copied straight from one of 
+    * the terms left out of the shape key.  If a value was computed from one
+    * of those terms, ex. a wildcard, the shape is remembered as one that has
+    * to be generated each time.
+    * 
+    * @return the shape or null if a value did not come from the terms left out of the key
+    */
+   protected Shape createShape(String sql)
+   {
+      List<Term> leaves = new ArrayList();
+      printShape(leaves);
+
+      boolean derived = false;
+      int[] plan = new int[values.size()];
+      int[] keys = new int[values.size()];
+      String[] cols = new String[values.size()];
+      for (int i = 0; i < values.size(); i++)
+      {
+         int leaf = -1;
+         for (int j = 0; bindings.get(i) != null && j < leaves.size() && leaf < 0; j++)
+         {
+            if (leaves.get(j) == bindings.get(i))
+               leaf = j;
+         }
+
+         if (leaf < 0)
+            return null;
+
+         plan[i] = leaf;
+         keys[i] = bindingKeys.get(i);
+         cols[i] = (String) values.get(i).getKey();
+         derived |= keys[i] == DERIVED;
+      }
+
+      if (derived)
+         return new Shape(null, null, null, null, null);
+
+      return new Shape(sql, plan, keys, cols, keyset);
+   }
+
+   /**
+    * The SQL generated for a query shape and where to find each of
+    * its prepared statement values in a query of that shape
+    */
+   public static class Shape
+   {
+      /**
+       * null for a shape that has to be generated each time
+       */
+      final String       sql;
+      final int[]        leaves;
+      final int[]        keys;
+      final String[]     cols;
+      final List<Sort>   keyset;
+
+      /**
+       * When this shape was last used, for evicting the least recently used shapes
+       */
+      volatile long      lastUsed;
+
+      Shape(String sql, int[] leaves, int[] keys, String[] cols, List<Sort> keyset)
+      {
+         this.sql = sql;
+         this.leaves = leaves;
+         this.keys = keys;
+         this.cols = cols;
+         this.keyset = keyset;
+         this.lastUsed = System.nanoTime();
+      }
+
+      public String getSql()
+      {
+         return sql;
+      }
+
+      public long getLastUsed()
+      {
+         return lastUsed;
+      }
+
+      public void touch()
+      {
+         lastUsed = System.nanoTime();
+      }
+   }
+
+   @Override
+   protected SqlQuery withColValue(String columnName, Object value)
+   {
+      if (bindings != null)
+      {
+         bindings.add(binding);
+         bindingKeys.add(bindingKey);
+      }
+
+      return super.withColValue(columnName, value);
    }
 
    public String getDynamicStmt()
@@ -155,6 +600,53 @@ public class SqlQuery<D extends Db> extends Query<SqlQuery, D, Select<Select<Sel
       return toSql(false);
    }
 
+   /**
+    * A set based DELETE of every row matching this query's where filters.
+    * <p>
+    * When <code>limit</code> is greater than 0 at most that many rows are 
+    * deleted by the statement so the caller can loop in chunks:
+    * <ul>
+    *   <li>mysql, h2 - DELETE FROM t WHERE ... LIMIT n
+    *   <li>sqlserver - DELETE TOP (n) FROM t WHERE ...
+    *   <li>postgres - DELETE FROM t WHERE ctid IN (SELECT ctid FROM t WHERE ... LIMIT n)
+    * </ul>
+    * 
+    * @param limit the most rows to delete or 0 for all
+    * @return the prepared statement or null if the query has no where filters or 
+    *         has joins, selects, sorts, grouping or paging that a DELETE can not express
+    */
+   public String getDeleteStmt(int limit)
+   {
+      if (joins != null && joins.size() > 0)
+         return null;
+
+      for (Object builder : getBuilders())
+      {
+         if (builder != getWhere() && ((Builder) builder).getTerms().size() > 0)
+            return null;
+      }
+
+      clearValues();
+      Parts parts = new Parts();
+      printWhereClause(parts, getWhere().getFilters(), true);
+
+      if (empty(parts.where))
+         return null;
+
+      String table = printTable();
+
+      if (limit <= 0)
+         return "DELETE FROM " + table + parts.where;
+
+      if ("sqlserver".equalsIgnoreCase(getType()))
+         return "DELETE TOP (" + limit + ") FROM " + table + parts.where;
+
+      if ("postgres".equalsIgnoreCase(getType()))
+         return "DELETE FROM " + table + " WHERE ctid IN (SELECT ctid FROM " + table + parts.where + " LIMIT " + limit + ")";
+
+      return "DELETE FROM " + table + parts.where + " LIMIT " + limit;
+   }
+
    protected String toSql(boolean preparedStmt)
    {
       clearValues();
@@ -164,9 +656,10 @@ public class SqlQuery<D extends Db> extends Query<SqlQuery, D, Select<Select<Sel
       printTermsSelect(parts, preparedStmt);
       printJoins(parts, joins);
       printWhereClause(parts, getWhere().getFilters(), preparedStmt);
+      printSeekClause(parts, getPage().getAfter(), preparedStmt);
       printGroupClause(parts, find("group"));
       printOrderClause(parts, getOrder().getSorts());
-      printLimitClause(parts, getPage().getOffset(), getPage().getLimit());
+      printLimitClause(parts, getPage().getAfter() != null ? 0 : getPage().getOffset(), getPage().getLimit());
 
       return printSql(parts);
    }
@@ -300,7 +793,8 @@ public class SqlQuery<D extends Db> extends Query<SqlQuery, D, Select<Select<Sel
          parts.select = parts.select.substring(0, idx) + " DISTINCT " + parts.select.substring(idx, parts.select.length());
       }
 
-      if (Chain.peek() != null && Chain.peek().get("foundRows") == null && "mysql".equalsIgnoreCase(getType()) && parts.select.toLowerCase().trim().startsWith("select"))
+      if (Chain.peek() != null && Chain.peek().get("foundRows") == null && "mysql".equalsIgnoreCase(getType()) && parts.select.toLowerCase().trim().startsWith("select") //
+            && FOUND_ROWS_EXACT.equals(getFoundRowsStrategy()) && (!(db instanceof JdbcDb) || ((JdbcDb) db).isCalcRowsFound()))
       {
          int idx = parts.select.toLowerCase().indexOf("select") + 6;
          parts.select = parts.select.substring(0, idx) + " SQL_CALC_FOUND_ROWS " + parts.select.substring(idx, parts.select.length());
@@ -358,6 +852,205 @@ public class SqlQuery<D extends Db> extends Query<SqlQuery, D, Select<Select<Sel
       return parts.where;
    }
 
+   /**
+    * Keyset pagination.  Instead of skipping <code>offset</code> rows, which
+    * the db has to read and discard, the page starts right after the last
+    * row of the previous page identified by the opaque cursor in 
+    * <code>after(cursor)</code>.  For "sort=a,-b" with primary key "id" 
+    * the seek predicate is:
+    * <pre>
+    *   (a &gt; ? OR (a = ? AND b &lt; ?) OR (a = ? AND b = ? AND id &gt; ?))
+    * </pre>
+    * 
+    * @see #getKeysetSorts(Parts)
+    * @see #printAfter(Row)
+    */
+   protected String printSeekClause(Parts parts, Term after, boolean preparedStmt)
+   {
+      keyset = getKeysetSorts(parts);
+
+      //-- the last row of the page needs the keyset values to build the next cursor
+      if (keyset != null && parts.select.indexOf("* ") < 0 && parts.select.indexOf("*,") < 0)
+      {
+         for (Sort sort : keyset)
+         {
+            String col = printCol(sort.getProperty());
+            if (parts.select.indexOf(col) < 0)
+               parts.select += ", " + col;
+         }
+      }
+
+      if (after == null)
+         return parts.where;
+
+      if (keyset == null)
+         throw new ApiException(Status.SC_400_BAD_REQUEST, "after() can only be used when the sort includes every primary index column");
+
+      List<String> keys = getAfterKeys(after);
+      if (keys.size() != keyset.size())
+         throw new ApiException(Status.SC_400_BAD_REQUEST, "Invalid after() cursor '" + after + "'");
+
+      StringBuilder seek = new StringBuilder(keyset.size() > 1 ? "(" : "");
+      for (int i = 0; i < keyset.size(); i++)
+      {
+         if (i > 0)
+            seek.append(" OR (");
+
+         for (int j = 0; j <= i; j++)
+         {
+            Sort sort = keyset.get(j);
+            String col = sort.getProperty();
+            String val = keys.get(j);
+
+            if (j > 0)
+               seek.append(" AND ");
+
+            seek.append(printCol(col));
+            seek.append(j < i ? " = " : (sort.isAsc() ? " > " : " < "));
+
+            if (preparedStmt)
+            {
+               binding = after;
+               bindingKey = j;
+               withColValue(col, val);
+               binding = null;
+               bindingKey = -1;
+               seek.append(asVariableName(values.size() - 1));
+            }
+            else
+            {
+               seek.append(isNum(Term.term(null, val)) ? asNum(val) : asString(val));
+            }
+         }
+
+         if (i > 0)
+            seek.append(")");
+      }
+      if (keyset.size() > 1)
+         seek.append(")");
+
+      if (empty(parts.where))
+         parts.where = " WHERE " + seek;
+      else
+         parts.where += " AND " + seek;
+
+      return parts.where;
+   }
+
+   /**
+    * @return the cursor from a "next" link decoded or the key values themselves, ex: after(10248)
+    */
+   protected List<String> getAfterKeys(Term after)
+   {
+      List<String> keys = after.size() == 1 ? decodeCursor(after.getToken(0)) : null;
+      if (keys == null)
+      {
+         keys = new ArrayList();
+         for (int i = 0; i < after.size(); i++)
+            keys.add(after.getToken(i));
+      }
+      return keys;
+   }
+
+   /**
+    * Rows can be paged by seeking past the last row of the previous page 
+    * only when the sort is a total order: every sort is a plain column of 
+    * this table and the sort includes all of the primary index columns.
+    * 
+    * @return the sorts up to the last primary index column or null if the sort does not support keyset pagination
+    */
+   protected List<Sort> getKeysetSorts(Parts parts)
+   {
+      if (collection == null || collection.getPrimaryIndex() == null || selectSql != null || find("group") != null || getSelect().isDistinct())
+         return null;
+
+      List<Sort> sorts = getOrder().getSorts();
+      if (sorts.isEmpty())
+         sorts = getDefaultSorts(parts);
+
+      Set<String> remaining = new HashSet();
+      for (String col : (List<String>) collection.getPrimaryIndex().getColumnNames())
+         remaining.add(col.toLowerCase());
+
+      List<Sort> keyset = new ArrayList();
+      for (Sort sort : sorts)
+      {
+         String col = sort.getProperty();
+         if (col.indexOf(".") > -1 || collection.getProperty(col) == null)
+            return null;
+
+         keyset.add(sort);
+         remaining.remove(col.toLowerCase());
+
+         if (remaining.isEmpty())
+            return keyset;
+      }
+      return null;
+   }
+
+   /**
+    * @return an <code>after(cursor)</code> term that will seek to the row after <code>lastRow</code> or null if this query can not be paged that way
+    */
+   protected Term printAfter(Row lastRow)
+   {
+      if (keyset == null)
+         return null;
+
+      List<String> keys = new ArrayList();
+      for (Sort sort : keyset)
+      {
+         Object value = lastRow.get(sort.getProperty());
+
+         //-- null ordering is db specific, fall back to offset paging
+         if (value == null)
+            return null;
+
+         if (value instanceof java.util.Date)
+            value = ISO8601Utils.format((java.util.Date) value, true);
+
+         keys.add(value.toString());
+      }
+
+      return Term.term(null, "after", encodeCursor(keys));
+   }
+
+   /**
+    * Cursors are opaque to clients: "after" and the {@link Collection#encodeStr(String) encoded} 
+    * key values, "~" separated and base64url encoded.
+    */
+   protected String encodeCursor(List<String> keys)
+   {
+      StringBuilder cursor = new StringBuilder("after");
+      for (int i = 0; i < keys.size(); i++)
+      {
+         cursor.append("~");
+         cursor.append(Collection.encodeStr(keys.get(i)));
+      }
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.toString().getBytes(StandardCharsets.UTF_8));
+   }
+
+   /**
+    * @return the key values in <code>cursor</code> or null if it is not a cursor created by {@link #encodeCursor(List)}
+    */
+   protected List<String> decodeCursor(String cursor)
+   {
+      try
+      {
+         String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+         if (!decoded.startsWith("after~"))
+            return null;
+
+         List<String> keys = new ArrayList();
+         for (String key : decoded.substring(6).split("~", -1))
+            keys.add(Collection.decodeStr(key));
+         return keys;
+      }
+      catch (IllegalArgumentException ex)
+      {
+         return null;
+      }
+   }
+
    protected String printGroupClause(Parts parts, Term groupBy)
    {
       if (groupBy != null)
@@ -469,30 +1162,116 @@ public class SqlQuery<D extends Db> extends Query<SqlQuery, D, Select<Select<Sel
       return s;
    }
 
+   /**
+    * The 'foundRows' strategy is the first of the endpoint/action 'foundRows'
+    * config, the Collection's foundRows or the JdbcDb's foundRows.
+    * 
+    * @return the lower case foundRows strategy for this query
+    */
+   protected String getFoundRowsStrategy()
+   {
+      String strategy = null;
+
+      Chain chain = Chain.peek();
+      if (chain != null && chain.getRequest() != null && chain.getRequest().getEndpoint() != null)
+         strategy = chain.getConfig("foundRows", (String) null);
+
+      if (Utils.empty(strategy) && collection != null)
+         strategy = collection.getFoundRows();
+
+      if (Utils.empty(strategy) && db instanceof JdbcDb)
+         strategy = ((JdbcDb) db).getFoundRows();
+
+      if (Utils.empty(strategy))
+         strategy = FOUND_ROWS_EXACT;
+
+      strategy = strategy.toLowerCase().trim();
+
+      if (!Utils.in(strategy, FOUND_ROWS_EXACT, FOUND_ROWS_CONCURRENT, FOUND_ROWS_CACHED, FOUND_ROWS_ESTIMATED, FOUND_ROWS_OFF))
+         throw new ApiException(Status.SC_500_INTERNAL_SERVER_ERROR, "Unknown foundRows strategy '" + strategy + "'");
+
+      return strategy;
+   }
+
    protected int queryFoundRows(Connection conn, String sql, List values) throws Exception
    {
       int foundRows = 0;
-      if (db.isType("mysql"))
+      if (db.isType("mysql") && sql.indexOf("SQL_CALC_FOUND_ROWS") > 0)
       {
          sql = "SELECT FOUND_ROWS()";
          foundRows = JdbcUtils.selectInt(conn, sql);
       }
       else
       {
-         if (sql.indexOf("LIMIT ") > 0)
-            sql = sql.substring(0, sql.lastIndexOf("LIMIT "));
+         foundRows = queryCount(conn, sql, values);
+      }
+      return foundRows;
+   }
 
-         if (sql.indexOf("OFFSET ") > 0)
-            sql = sql.substring(0, sql.lastIndexOf("OFFSET "));
+   /**
+    * Counts the rows <code>sql</code> would select without a limit or offset
+    * using a <code>SELECT count(1)</code> wrapper so it does not depend on
+    * having run <code>sql</code> on <code>conn</code> first.
+    */
+   protected int queryCount(Connection conn, String sql, List values) throws Exception
+   {
+      sql = stripPaging(sql).replace(" SQL_CALC_FOUND_ROWS ", " ");
+      sql = "SELECT count(1) FROM ( " + sql + " ) as q";
 
-         if (sql.indexOf("ORDER BY ") > 0)
-            sql = sql.substring(0, sql.lastIndexOf("ORDER BY "));
+      return JdbcUtils.selectInt(conn, sql, values);
+   }
 
-         sql = "SELECT count(1) FROM ( " + sql + " ) as q";
+   /**
+    * Asks the database for an estimate of the rows <code>sql</code> would
+    * select.  MySQL and Postgres estimates come from the query plan.  H2 only
+    * estimates unfiltered single table queries from its table statistics.
+    * 
+    * @return the estimated row count or -1 when the database can not estimate this query
+    */
+   protected int queryEstimatedRows(Connection conn, String sql, List values) throws Exception
+   {
+      sql = stripPaging(sql);
 
-         foundRows = JdbcUtils.selectInt(conn, sql, values);
+      if (db.isType("mysql"))
+      {
+         Rows plan = JdbcUtils.selectRows(conn, "EXPLAIN " + sql, values);
+         if (plan.size() > 0 && plan.get(0).get("rows") != null)
+            return (int) Long.parseLong(plan.get(0).get("rows") + "");
       }
-      return foundRows;
+      else if (db.isType("postgres", "redshift"))
+      {
+         Rows plan = JdbcUtils.selectRows(conn, "EXPLAIN " + sql, values);
+         if (plan.size() > 0)
+         {
+            Matcher m = Pattern.compile("rows=(\\d+)").matcher(plan.get(0).get(0) + "");
+            if (m.find())
+               return (int) Long.parseLong(m.group(1));
+         }
+      }
+      else if (db.isType("h2"))
+      {
+         if ((joins == null || joins.isEmpty()) && !Pattern.compile("\\sWHERE\\s", Pattern.CASE_INSENSITIVE).matcher(sql).find())
+         {
+            Object estimate = JdbcUtils.selectValue(conn, "SELECT ROW_COUNT_ESTIMATE FROM INFORMATION_SCHEMA.TABLES WHERE UPPER(TABLE_NAME) = ?", collection.getTableName().toUpperCase());
+            if (estimate != null)
+               return (int) Long.parseLong(estimate + "");
+         }
+      }
+      return -1;
+   }
+
+   protected String stripPaging(String sql)
+   {
+      if (sql.indexOf("LIMIT ") > 0)
+         sql = sql.substring(0, sql.lastIndexOf("LIMIT "));
+
+      if (sql.indexOf("OFFSET ") > 0)
+         sql = sql.substring(0, sql.lastIndexOf("OFFSET "));
+
+      if (sql.indexOf("ORDER BY ") > 0)
+         sql = sql.substring(0, sql.lastIndexOf("ORDER BY "));
+
+      return sql;
    }
 
    protected String printTerm(Term term, String col, boolean preparedStmt)
@@ -740,7 +1519,12 @@ public class SqlQuery<D extends Db> extends Query<SqlQuery, D, Select<Select<Sel
             return val;
       }
 
+      binding = leaf;
+      bindingKey = val.equals(leaf.getToken()) ? -1 : DERIVED;
       withColValue(col, val);
+      binding = null;
+      bindingKey = -1;
+
       return asVariableName(values.size() - 1);
    }
 
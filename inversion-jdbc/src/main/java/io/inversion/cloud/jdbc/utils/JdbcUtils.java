@@ -21,7 +21,6 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
 import java.lang.reflect.Field;
 import java.sql.Clob;
 import java.sql.Connection;
@@ -35,16 +34,20 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import io.inversion.cloud.model.Index;
 import io.inversion.cloud.utils.Rows;
 import io.inversion.cloud.utils.Rows.Row;
+import io.inversion.cloud.utils.Rows.RowIterator;
 import io.inversion.cloud.utils.Utils;
 
 /**
@@ -199,7 +202,7 @@ public class JdbcUtils
                   //do nothing
                }
             }
-            else if (isUpdate(sql))
+            else if (isUpdate(sql) || isDelete(sql))
             {
                try
                {
@@ -248,75 +251,218 @@ public class JdbcUtils
       notifyBefore("selectRows", sql, vals);
 
       Exception ex = null;
-      Statement stmt = null;
-      ResultSet rs = null;
+      ResultSetRows rs = null;
       Rows rows = null;
 
       try
       {
-         if (vals != null && vals.length > 0)
+         rs = new ResultSetRows(null, conn, 0, sql, vals);
+         rows = new Rows(rs.keyList());
+
+         while (rs.read(rows))
+            ;
+      }
+      finally
+      {
+         if (rs != null)
+            rs.close();
+
+         notifyAfter("selectRows", sql, vals, ex, rows);
+      }
+      return rows;
+   }
+
+   /**
+    * Runs <code>sql</code> and returns a cursor that reads each row from the
+    * open ResultSet as it is iterated instead of materializing all of the rows 
+    * up front like {@link #selectRows(Connection, String, Object...)}.
+    * <p>
+    * The statement is forward only and read only.  <code>fetchSize</code> is
+    * passed to the driver, 0 leaves the driver default in place.  Note that 
+    * the MySQL driver only streams when the fetch size is Integer.MIN_VALUE 
+    * and Postgres only uses a server side cursor when autoCommit is off.
+    * <p>
+    * The ResultSet is closed when the last row is read or when the iterator
+    * is closed.  Some drivers, MySQL in particular, can not run any other 
+    * statement on <code>conn</code> until then.
+    */
+   public static RowIterator selectIterator(Connection conn, int fetchSize, String sql, Object... vals) throws Exception
+   {
+      if (vals != null && vals.length == 1 && vals[0] instanceof List)
+         vals = ((List) vals[0]).toArray();
+
+      notifyBefore("selectIterator", sql, vals);
+
+      try
+      {
+         return new ResultSetRows("selectIterator", conn, fetchSize, sql, vals);
+      }
+      catch (Exception ex)
+      {
+         notifyAfter("selectIterator", sql, vals, ex, null);
+         throw ex;
+      }
+   }
+
+   /**
+    * A RowIterator over an open ResultSet.  Each Row is read 
+    * when it is requested and shares its keys with the other rows.
+    */
+   public static class ResultSetRows implements RowIterator
+   {
+      String    method = null;
+      String    sql    = null;
+      Object[]  vals   = null;
+
+      Statement stmt   = null;
+      ResultSet rs     = null;
+      int       cols   = 0;
+      Rows      buffer = null;
+      Row       next   = null;
+      int       count  = 0;
+      boolean   closed = false;
+
+      ResultSetRows(String method, Connection conn, int fetchSize, String sql, Object[] vals) throws Exception
+      {
+         this.method = method;
+         this.sql = sql;
+         this.vals = vals;
+
+         try
          {
-            stmt = conn.prepareStatement(sql);
-            for (int i = 0; vals != null && i < vals.length; i++)
+            if (vals != null && vals.length > 0)
             {
-               Object o = vals[i];
-               ((PreparedStatement) stmt).setObject(i + 1, o);
+               stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+               if (fetchSize != 0)
+                  stmt.setFetchSize(fetchSize);
+
+               for (int i = 0; vals != null && i < vals.length; i++)
+               {
+                  Object o = vals[i];
+                  ((PreparedStatement) stmt).setObject(i + 1, o);
+               }
+               rs = ((PreparedStatement) stmt).executeQuery();
+            }
+            else
+            {
+               stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+               if (fetchSize != 0)
+                  stmt.setFetchSize(fetchSize);
+
+               rs = stmt.executeQuery(sql);
+            }
+
+            buffer = new Rows();
+
+            ResultSetMetaData rsmd = rs.getMetaData();
+            cols = rsmd.getColumnCount();
+            for (int i = 1; i <= cols; i++)
+            {
+               buffer.addKey(rsmd.getColumnLabel(i));
             }
-            rs = ((PreparedStatement) stmt).executeQuery();
          }
-         else
+         catch (Exception ex)
          {
-            stmt = conn.createStatement();
-            rs = stmt.executeQuery(sql);
+            JdbcUtils.close(rs, stmt);
+            closed = true;
+            throw ex;
          }
+      }
 
-         rows = new Rows();
+      public List<String> keyList()
+      {
+         return buffer.keyList();
+      }
 
-         ResultSetMetaData rsmd = rs.getMetaData();
-         int cols = rsmd.getColumnCount();
-         for (int i = 1; i <= cols; i++)
+      /**
+       * Reads the next row from the ResultSet onto the end of <code>rows</code>
+       * 
+       * @return false if there are no more rows
+       */
+      boolean read(Rows rows) throws Exception
+      {
+         if (closed || !rs.next())
          {
-            rows.addKey(rsmd.getColumnLabel(i));
+            close();
+            return false;
          }
 
-         while (rs.next())
+         rows.addRow();
+         for (int i = 0; i < cols; i++)
          {
-            rows.addRow();
-            for (int i = 0; i < cols; i++)
+            Object o = null;
+            try
             {
-               Object o = null;
-               try
-               {
-                  o = rs.getObject(i + 1);
+               o = rs.getObject(i + 1);
 
-                  if (o instanceof Clob)
-                  {
-                     Reader reader = ((Clob) o).getCharacterStream();
-                     char[] arr = new char[8 * 1024];
-                     StringBuilder buffer = new StringBuilder();
-                     int numCharsRead;
-                     while ((numCharsRead = reader.read(arr, 0, arr.length)) != -1)
-                     {
-                        buffer.append(arr, 0, numCharsRead);
-                     }
-                     reader.close();
-                     o = buffer.toString();
-                  }
-               }
-               catch (Exception e)
+               if (o instanceof Clob)
                {
-                  notifyError("selectRows", sql, vals, e);
+                  Clob clob = (Clob) o;
+                  o = clob.getSubString(1, (int) clob.length());
+                  clob.free();
                }
-               rows.put(o);
             }
+            catch (Exception e)
+            {
+               notifyError(method != null ? method : "selectRows", sql, vals, e);
+            }
+            rows.put(o);
          }
+         count += 1;
+         return true;
       }
-      finally
+
+      @Override
+      public boolean hasNext()
       {
-         close(stmt, rs);
-         notifyAfter("selectRows", sql, vals, ex, rows);
+         if (next == null && !closed)
+         {
+            try
+            {
+               buffer.clear();
+               if (read(buffer))
+                  next = buffer.get(0);
+            }
+            catch (Exception ex)
+            {
+               close();
+               Utils.rethrow(ex);
+            }
+         }
+         return next != null;
+      }
+
+      @Override
+      public Row next()
+      {
+         if (!hasNext())
+            throw new NoSuchElementException();
+
+         Row row = next;
+         next = null;
+         return row;
+      }
+
+      /**
+       * @return the number of rows read so far
+       */
+      public int getCount()
+      {
+         return count;
+      }
+
+      @Override
+      public void close()
+      {
+         if (!closed)
+         {
+            closed = true;
+            JdbcUtils.close(rs, stmt);
+
+            if (method != null)
+               notifyAfter(method, sql, vals, null, count);
+         }
       }
-      return rows;
    }
 
    public static Row selectRow(Connection conn, String sql, Object... vals) throws Exception
@@ -811,13 +957,307 @@ public class JdbcUtils
       return sql.toString();
    }
 
+   /**
+    * Inserts or updates <code>rows</code> with as few statements as possible.
+    * <p>
+    * Rows are grouped by their columns and by whether they have a value for 
+    * every <code>index</code> column.  Rows with a full key are upserted.  Rows 
+    * without one are inserted, leaving out their empty key columns, so the db 
+    * can generate the key.  Each group is written with multi-row VALUES 
+    * statements of at most <code>maxParams</code> parameters using the 
+    * dialect's upsert syntax:
+    * <ul>
+    *   <li>h2 - MERGE INTO ... KEY(...) VALUES
+    *   <li>mysql - INSERT ... ON DUPLICATE KEY UPDATE
+    *   <li>postgres - INSERT ... ON CONFLICT (...) DO UPDATE
+    *   <li>sqlserver - MERGE ... USING (VALUES ...) 
+    * </ul>
+    * Other types UPDATE each row and INSERT it if nothing was updated.
+    * 
+    * @return for each row, in order, the key the db generated when it was inserted without one, otherwise null
+    */
+   public static List<Object> upsert(Connection conn, String type, String tableName, Index index, List<Map<String, Object>> rows, int maxParams) throws Exception
+   {
+      type = type != null ? type.toLowerCase() : "";
+      List<String> keyCols = index != null ? index.getColumnNames() : new ArrayList();
+
+      List<Object> generated = new ArrayList(Collections.nCopies(rows.size(), null));
+
+      //-- row indexes grouped by [hasKey, columns] in the order the groups are first seen
+      LinkedHashMap<List, List<Integer>> groups = new LinkedHashMap();
+      for (int i = 0; i < rows.size(); i++)
+      {
+         Map<String, Object> row = rows.get(i);
+
+         boolean hasKey = keyCols.size() > 0;
+         for (String keyCol : keyCols)
+         {
+            if (Utils.empty(row.get(keyCol)))
+               hasKey = false;
+         }
+
+         List<String> cols = new ArrayList();
+         for (String col : row.keySet())
+         {
+            if (hasKey || !keyCols.contains(col) || !Utils.empty(row.get(col)))
+               cols.add(col);
+         }
+
+         List groupKey = Arrays.asList(hasKey, cols);
+         List<Integer> group = groups.get(groupKey);
+         if (group == null)
+         {
+            group = new ArrayList();
+            groups.put(groupKey, group);
+         }
+         group.add(i);
+      }
+
+      for (Map.Entry<List, List<Integer>> group : groups.entrySet())
+      {
+         boolean hasKey = (Boolean) group.getKey().get(0);
+         List<String> cols = (List<String>) group.getKey().get(1);
+
+         if (hasKey)
+            upsertBatch(conn, type, tableName, keyCols, cols, rows, group.getValue(), maxParams);
+         else
+            insertBatch(conn, type, tableName, keyCols, cols, rows, group.getValue(), maxParams, generated);
+      }
+
+      return generated;
+   }
+
+   static void upsertBatch(Connection conn, String type, String tableName, List<String> keyCols, List<String> cols, List<Map<String, Object>> rows, List<Integer> idxs, int maxParams) throws Exception
+   {
+      if (!Utils.in(type, "h2", "mysql", "postgres", "sqlserver"))
+      {
+         List<String> setCols = new ArrayList(cols);
+         setCols.removeAll(keyCols);
+
+         String updateSql = buildUpdateSQL(conn, tableName, setCols.toArray(), null) + " WHERE " + getWhereColumnStr(conn, keyCols.toArray(), "AND");
+         String insertSql = buildInsertSQL(conn, tableName, cols.toArray());
+
+         for (int idx : idxs)
+         {
+            Map<String, Object> row = rows.get(idx);
+            Object updated = 0;
+            if (setCols.size() > 0)
+               updated = execute(conn, updateSql, values(row, setCols, keyCols));
+
+            if (!(updated instanceof Number) || ((Number) updated).intValue() == 0)
+               execute(conn, insertSql, values(row, cols));
+         }
+         return;
+      }
+
+      int batchSize = batchSize(type, cols, maxParams);
+      for (int from = 0; from < idxs.size(); from += batchSize)
+      {
+         List<Integer> batch = idxs.subList(from, Math.min(idxs.size(), from + batchSize));
+         String sql = buildUpsertSQL(conn, type, tableName, keyCols, cols, batch.size());
+         executeBatch(conn, sql, cols, rows, batch, null, null);
+      }
+   }
+
+   static void insertBatch(Connection conn, String type, String tableName, List<String> keyCols, List<String> cols, List<Map<String, Object>> rows, List<Integer> idxs, int maxParams, List<Object> generated) throws Exception
+   {
+      if (!Utils.in(type, "h2", "mysql", "postgres"))
+      {
+         //-- sqlserver only reports the last identity of a multi row insert
+         String sql = buildInsertSQL(conn, tableName, cols.toArray());
+         for (int idx : idxs)
+         {
+            Object key = execute(conn, sql, values(rows.get(idx), cols));
+            generated.set(idx, key);
+         }
+         return;
+      }
+
+      String keyCol = keyCols.size() == 1 ? keyCols.get(0) : null;
+      int batchSize = batchSize(type, cols, maxParams);
+      for (int from = 0; from < idxs.size(); from += batchSize)
+      {
+         List<Integer> batch = idxs.subList(from, Math.min(idxs.size(), from + batchSize));
+         String sql = buildInsertSQL(conn, tableName, cols.toArray(), batch.size());
+         executeBatch(conn, sql, cols, rows, batch, keyCol, keyCol != null ? generated : null);
+      }
+   }
+
+   /**
+    * Executes one multi-row statement with the values of <code>cols</code> for each row
+    * in <code>batch</code>, putting the generated <code>keyCol</code> values for those 
+    * rows into <code>generated</code> when it is not null.
+    */
+   static void executeBatch(Connection conn, String sql, List<String> cols, List<Map<String, Object>> rows, List<Integer> batch, String keyCol, List<Object> generated) throws Exception
+   {
+      List<Map<String, Object>> batchRows = new ArrayList();
+      for (int idx : batch)
+         batchRows.add(rows.get(idx));
+
+      notifyBefore("upsert", sql, batchRows);
+
+      Exception ex = null;
+      PreparedStatement stmt = null;
+      ResultSet rs = null;
+      try
+      {
+         if (generated == null)
+            stmt = conn.prepareStatement(sql);
+         else if (conn.toString().toLowerCase().indexOf("postgres") > -1)
+            stmt = conn.prepareStatement(sql, new String[]{keyCol});
+         else
+            stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+
+         int param = 1;
+         for (Map<String, Object> row : batchRows)
+         {
+            for (String col : cols)
+               stmt.setObject(param++, row.get(col));
+         }
+         stmt.executeUpdate();
+
+         if (generated != null)
+         {
+            rs = stmt.getGeneratedKeys();
+            for (int i = 0; i < batch.size() && rs.next(); i++)
+               generated.set(batch.get(i), rs.getObject(1));
+         }
+      }
+      catch (Exception e)
+      {
+         ex = e;
+         notifyError("upsert", sql, batchRows, ex);
+         throw e;
+      }
+      finally
+      {
+         close(rs, stmt);
+         notifyAfter("upsert", sql, batchRows, ex, null);
+      }
+   }
+
+   static int batchSize(String type, List<String> cols, int maxParams)
+   {
+      int batchSize = Math.max(1, maxParams / Math.max(1, cols.size()));
+
+      //-- sqlserver limits a VALUES list to 1000 rows
+      if ("sqlserver".equals(type))
+         batchSize = Math.min(1000, batchSize);
+
+      return batchSize;
+   }
+
+   static Object[] values(Map<String, Object> row, List<String>... colLists)
+   {
+      List values = new ArrayList();
+      for (List<String> cols : colLists)
+      {
+         for (String col : cols)
+            values.add(row.get(col));
+      }
+      return values.toArray();
+   }
+
+   public static String buildInsertSQL(Connection conn, String tableName, Object[] columnNameArray, int numRows)
+   {
+      StringBuffer sql = new StringBuffer("INSERT INTO ");
+      sql.append(quote(conn, tableName)).append(" (");
+      sql.append(getColumnStr(conn, columnNameArray)).append(") VALUES ");
+      sql.append(getValuesStr(columnNameArray.length, numRows));
+      return sql.toString();
+   }
+
+   /**
+    * @return a multi-row upsert statement for <code>numRows</code> rows of <code>cols</code> in the <code>type</code> dialect
+    */
+   public static String buildUpsertSQL(Connection conn, String type, String tableName, List<String> keyCols, List<String> cols, int numRows)
+   {
+      List<String> setCols = new ArrayList(cols);
+      setCols.removeAll(keyCols);
+
+      StringBuffer sql = new StringBuffer();
+      if ("h2".equals(type))
+      {
+         sql.append("MERGE INTO ").append(quote(conn, tableName)).append(" (").append(getColumnStr(conn, cols)).append(")");
+         sql.append(" KEY(").append(getColumnStr(conn, keyCols)).append(") VALUES ").append(getValuesStr(cols.size(), numRows));
+      }
+      else if ("mysql".equals(type))
+      {
+         sql.append(buildInsertSQL(conn, tableName, cols.toArray(), numRows));
+         sql.append(" ON DUPLICATE KEY UPDATE ");
+         for (int i = 0; i < cols.size(); i++)
+         {
+            String col = quote(conn, cols.get(i));
+            sql.append(i > 0 ? ", " : "").append(col).append(" = VALUES(").append(col).append(")");
+         }
+      }
+      else if ("postgres".equals(type))
+      {
+         sql.append(buildInsertSQL(conn, tableName, cols.toArray(), numRows));
+         sql.append(" ON CONFLICT (").append(getColumnStr(conn, keyCols)).append(")");
+         if (setCols.size() == 0)
+         {
+            sql.append(" DO NOTHING");
+         }
+         else
+         {
+            sql.append(" DO UPDATE SET ");
+            for (int i = 0; i < setCols.size(); i++)
+            {
+               String col = quote(conn, setCols.get(i));
+               sql.append(i > 0 ? ", " : "").append(col).append(" = EXCLUDED.").append(col);
+            }
+         }
+      }
+      else if ("sqlserver".equals(type))
+      {
+         sql.append("MERGE INTO ").append(quote(conn, tableName)).append(" AS t USING (VALUES ").append(getValuesStr(cols.size(), numRows));
+         sql.append(") AS s (").append(getColumnStr(conn, cols)).append(") ON ");
+         for (int i = 0; i < keyCols.size(); i++)
+         {
+            String col = quote(conn, keyCols.get(i));
+            sql.append(i > 0 ? " AND " : "").append("t.").append(col).append(" = s.").append(col);
+         }
+         if (setCols.size() > 0)
+         {
+            sql.append(" WHEN MATCHED THEN UPDATE SET ");
+            for (int i = 0; i < setCols.size(); i++)
+            {
+               String col = quote(conn, setCols.get(i));
+               sql.append(i > 0 ? ", " : "").append("t.").append(col).append(" = s.").append(col);
+            }
+         }
+         sql.append(" WHEN NOT MATCHED THEN INSERT (").append(getColumnStr(conn, cols)).append(") VALUES (");
+         for (int i = 0; i < cols.size(); i++)
+            sql.append(i > 0 ? ", " : "").append("s.").append(quote(conn, cols.get(i)));
+         sql.append(");");
+      }
+      else
+      {
+         throw new UnsupportedOperationException("Multi-row upsert is not supported for db type '" + type + "'");
+      }
+      return sql.toString();
+   }
+
+   /**
+    * @return "(?, ?), (?, ?)" style placeholders for <code>numRows</code> rows of <code>numCols</code> columns
+    */
+   public static String getValuesStr(int numCols, int numRows)
+   {
+      String row = "(" + getQuestionMarkStr(numCols) + ")";
+      StringBuffer sb = new StringBuffer(row);
+      for (int i = 1; i < numRows; i++)
+         sb.append(", ").append(row);
+      return sb.toString();
+   }
+
    /*
    +------------------------------------------------------------------------------+
    | DELETE UTILS
    +------------------------------------------------------------------------------+
     */
 
-   public boolean isDelete(String sql)
+   public static boolean isDelete(String sql)
    {
       return sql.toLowerCase().trim().startsWith("delete ");
    }
@@ -16,17 +16,25 @@
  */
 package io.inversion.cloud.jdbc.action;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import io.inversion.cloud.action.rest.RestAction;
 import io.inversion.cloud.jdbc.JdbcDbApiFactory;
+import io.inversion.cloud.jdbc.db.JdbcDb;
+import io.inversion.cloud.model.Action;
+import io.inversion.cloud.model.Endpoint;
 import io.inversion.cloud.model.JSArray;
 import io.inversion.cloud.model.JSNode;
 import io.inversion.cloud.model.Response;
+import io.inversion.cloud.rql.Term;
 import io.inversion.cloud.service.Engine;
 import junit.framework.TestCase;
 
@@ -201,6 +209,52 @@ public class TestSqlDeleteAction extends TestCase
       assertEquals("Wrong number of records were deleted", 3, (allRecordsSize - allRecordsSizeAfterDelete));
    }
 
+   @Test
+   public void testPushdownDelete() throws Exception
+   {
+      Engine engine = service();
+      List<RestAction> actions = new ArrayList();
+      for (Endpoint endpoint : engine.getApi("northwind").getEndpoints())
+      {
+         for (Action action : endpoint.getActions())
+         {
+            if (action instanceof RestAction)
+               actions.add((RestAction) action);
+         }
+      }
+
+      try
+      {
+         for (RestAction action : actions)
+            action.getDelete().withPushdown(true).withChunkSize(2);
+
+         int all = engine.get(url("orderdetails")).getFoundRows();
+         int matches = engine.get(url("orderdetails?orderid=10395")).assertOk().getFoundRows();
+         assertTrue(matches > 2);
+
+         //-- chunked delete by query
+         engine.delete(url("orderdetails?orderid=10395")).assertStatus(204);
+         assertEquals(all - matches, engine.get(url("orderdetails")).getFoundRows());
+         engine.delete(url("orderdetails?orderid=10395")).assertStatus(404);
+
+         //-- entity key on a two column primary key
+         engine.delete(url("orderdetails/10257~27")).assertStatus(204);
+         engine.get(url("orderdetails/10257~27")).assertStatus(404);
+         assertEquals(all - matches - 1, engine.get(url("orderdetails")).getFoundRows());
+
+         //-- terms other than where filters can not be pushed down
+         JdbcDb db = (JdbcDb) engine.getApi("northwind").getDb(this.db);
+         io.inversion.cloud.model.Collection orderDetails = db.getCollection("orderdetails");
+         assertEquals(-1, db.deleteWhere(orderDetails, Arrays.asList(Term.term(null, "limit", 5)), 0));
+
+      }
+      finally
+      {
+         for (RestAction action : actions)
+            action.getDelete().withPushdown(false).withChunkSize(0);
+      }
+   }
+
    //2019-05-16 this is currently failing because of the OrderDetails child records...not sure what to do with this test
    //   @Test
    //   public void testBatchQueryDeleteWithForeignKeyConstraint() throws Exception
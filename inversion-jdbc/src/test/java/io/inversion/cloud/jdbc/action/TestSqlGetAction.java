@@ -16,23 +16,42 @@
  */
 package io.inversion.cloud.jdbc.action;
 
+import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.stream.Stream;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import io.inversion.cloud.action.rest.RestAction;
+import io.inversion.cloud.action.rest.RestGetAction;
 import io.inversion.cloud.action.rest.TestRestGetActions;
 import io.inversion.cloud.jdbc.JdbcDbApiFactory;
+import io.inversion.cloud.jdbc.db.JdbcDb;
+import io.inversion.cloud.jdbc.db.JdbcDb.ConnectionLocal;
+import io.inversion.cloud.jdbc.utils.JdbcUtils;
+import io.inversion.cloud.model.Action;
 import io.inversion.cloud.model.Api;
 import io.inversion.cloud.model.Collection;
+import io.inversion.cloud.model.Db;
+import io.inversion.cloud.model.Endpoint;
+import io.inversion.cloud.model.JSArray;
 import io.inversion.cloud.model.JSNode;
+import io.inversion.cloud.model.JSRows;
+import io.inversion.cloud.model.Request;
 import io.inversion.cloud.model.Response;
+import io.inversion.cloud.rql.Term;
+import io.inversion.cloud.service.Chain;
+import io.inversion.cloud.service.Context;
 import io.inversion.cloud.service.Engine;
+import io.inversion.cloud.utils.Rows;
+import io.inversion.cloud.utils.Rows.Row;
+import io.inversion.cloud.utils.Rows.RowIterator;
 
 @RunWith(Parameterized.class)
 public class TestSqlGetAction extends TestRestGetActions
@@ -184,6 +203,412 @@ public class TestSqlGetAction extends TestRestGetActions
 
    }
 
+   @Test
+   public void testRowsAreSerializedWithoutJSNodes() throws Exception
+   {
+      Response res = service().get(url("orders?limit=5&sort=orderid")).assertOk();
+
+      JSArray data = res.data();
+      assertTrue(data instanceof JSRows);
+      assertTrue(((JSRows) data).isLazy());
+
+      String streamed = res.getOutput();
+
+      //-- reading a single row does not materialize the rest
+      assertNotNull(res.find("data.0.href"));
+      assertTrue(((JSRows) data).isLazy());
+
+      data.asList();
+      assertFalse(((JSRows) data).isLazy());
+      assertEquals(res.getJson().toString().trim(), streamed.trim());
+   }
+
+   @Test
+   public void testExpandsInChunksConcurrently() throws Exception
+   {
+      Api api = service().getApi("northwind");
+      RestGetAction get = null;
+      for (Endpoint endpoint : api.getEndpoints())
+      {
+         for (Action action : endpoint.getActions())
+         {
+            if (action instanceof RestAction && endpoint.getPath().toString().equals(db))
+               get = ((RestAction) action).getGet();
+         }
+      }
+
+      Db db = api.getDb(this.db);
+      int relatedMax = db.getRelatedMax();
+      int expandThreads = get.getExpandThreads();
+
+      String url = url("orders?limit=25&sort=orderid&expands=customer,employee.reportsto,orderdetails.product");
+      try
+      {
+         get.withExpandThreads(1);
+         String sequential = service().get(url).assertOk().data().toString();
+
+         db.withRelatedMax(3);
+         get.withExpandThreads(4);
+         String concurrent = service().get(url).assertOk().data().toString();
+
+         assertEquals(sequential, concurrent);
+      }
+      finally
+      {
+         db.withRelatedMax(relatedMax);
+         get.withExpandThreads(expandThreads);
+      }
+   }
+
+   @Test
+   public void testKeysetPagination() throws Exception
+   {
+      Engine engine = service();
+
+      List<String> expected = new ArrayList();
+      service().get(url("orders?limit=1000&sort=-freight,orderid&includes=href")).assertOk().data().forEach(o -> expected.add(((JSNode) o).getString("href")));
+      assertEquals(830, expected.size());
+
+      List<String> found = new ArrayList();
+      String next = url("orders?limit=100&sort=-freight,orderid&includes=href");
+      int pages = 0;
+      do
+      {
+         Response res = engine.get(next).assertOk();
+         res.data().forEach(o -> found.add(((JSNode) o).getString("href")));
+
+         if (pages > 0)
+            res.assertDebug("SqlQuery", "(\"ORDERS\".\"FREIGHT\" < ? OR (\"ORDERS\".\"FREIGHT\" = ? AND \"ORDERS\".\"ORDERID\" > ?))");
+
+         next = res.next();
+         if (next != null)
+         {
+            assertTrue(next.indexOf("after(") > 0);
+            assertTrue(next.toLowerCase().indexOf("pagenum") < 0);
+         }
+         pages += 1;
+      }
+      while (next != null && pages < 20);
+
+      assertEquals(9, pages);
+      assertEquals(expected, found);
+
+      //-- no link to an empty page when the first page ends on the last row
+      assertNull(engine.get(url("orders?limit=830&sort=orderid")).assertOk().next());
+
+      //-- the sort is not a total order so paging falls back to page numbers
+      String pageNum = engine.get(url("orders?limit=100&sort=shipcountry")).assertOk().next();
+      assertTrue(pageNum.indexOf("pageNum=2") > 0);
+      assertTrue(pageNum.indexOf("after(") < 0);
+   }
+
+   @Test
+   public void testSelectIterator() throws Exception
+   {
+      JdbcDb db = (JdbcDb) service().getApi("northwind").getDb(this.db);
+      Collection orders = db.getCollection("orders");
+      String orderId = orders.getProperty("orderid").getColumnName();
+
+      try
+      {
+         Connection conn = db.getConnection();
+         Rows expected = JdbcUtils.selectRows(conn, "SELECT * FROM " + db.quoteCol(orders.getTableName()) + " ORDER BY " + db.quoteCol(orderId));
+         assertEquals(830, expected.size());
+
+         List<Term> terms = Arrays.asList(Term.term(null, "sort", orderId), Term.term(null, "limit", 1000));
+         int count = 0;
+         try (RowIterator rows = db.selectIterator(orders, terms))
+         {
+            while (rows.hasNext())
+            {
+               assertEquals(expected.get(count).toString(), rows.next().toString());
+               count += 1;
+            }
+         }
+         assertEquals(830, count);
+
+         try (Stream<Row> rows = db.selectIterator(orders, terms).stream())
+         {
+            assertEquals(830, rows.count());
+         }
+
+         //-- closing part way through releases the ResultSet and leaves the connection usable
+         RowIterator rows = JdbcUtils.selectIterator(conn, 10, "SELECT * FROM " + db.quoteCol(orders.getTableName()));
+         assertNotNull(rows.next());
+         assertNotNull(rows.next());
+         rows.close();
+         assertFalse(rows.hasNext());
+         assertEquals(830, JdbcUtils.selectInt(conn, "SELECT count(*) FROM " + db.quoteCol(orders.getTableName())));
+      }
+      finally
+      {
+         ConnectionLocal.close();
+      }
+   }
+
+   @Test
+   public void testFoundRowsStrategies() throws Exception
+   {
+      Engine engine = service();
+      JdbcDb db = (JdbcDb) engine.getApi("northwind").getDb(this.db);
+      Collection orders = db.getCollection("orders");
+
+      String all = url("orders?limit=10&sort=orderid");
+      String filtered = url("orders?limit=10&sort=orderid&shipcountry=France");
+
+      try
+      {
+         Response res = engine.get(all).assertOk();
+         assertEquals(830, res.getFoundRows());
+         assertNull(res.find("meta.foundRowsType"));
+         int france = engine.get(filtered).assertOk().getFoundRows();
+         assertTrue(france > 10 && france < 830);
+
+         orders.withFoundRows("concurrent");
+         assertEquals(830, engine.get(all).assertOk().getFoundRows());
+         assertEquals(france, engine.get(filtered).assertOk().getFoundRows());
+
+         orders.withFoundRows("cached");
+         db.clearCachedFoundRows();
+         res = engine.get(filtered).assertOk();
+         assertEquals(france, res.getFoundRows());
+         assertNull(res.find("meta.foundRowsType"));
+         res = engine.get(filtered).assertOk();
+         assertEquals(france, res.getFoundRows());
+         assertEquals("cached", res.find("meta.foundRowsType"));
+
+         orders.withFoundRows("estimated");
+         res = engine.get(all).assertOk();
+         assertTrue(res.getFoundRows() > 0);
+         assertEquals("estimated", res.find("meta.foundRowsType"));
+         res = engine.get(filtered).assertOk();
+         assertEquals(france, res.getFoundRows());
+         assertNull(res.find("meta.foundRowsType"));
+
+         orders.withFoundRows("off");
+         res = engine.get(all).assertOk();
+         assertNull(res.find("meta.foundRows"));
+         assertEquals(10, res.data().size());
+         assertTrue(res.next() != null);
+      }
+      finally
+      {
+         orders.withFoundRows(null);
+         db.clearCachedFoundRows();
+      }
+   }
+
+   @Test
+   public void testSqlShapeCache() throws Exception
+   {
+      Engine engine = service();
+      JdbcDb db = (JdbcDb) engine.getApi("northwind").getDb(this.db);
+      db.clearSqlCache();
+
+      Response res = engine.get(url("orders?limit=5&sort=orderid&shipcountry=France")).assertOk();
+      int france = res.getFoundRows();
+      assertEquals("France", res.findString("data.4.shipcountry"));
+
+      long hits = db.getSqlCacheHits();
+      res = engine.get(url("orders?limit=5&sort=orderid&shipcountry=Brazil")).assertOk();
+      assertTrue(db.getSqlCacheHits() > hits);
+      assertEquals("Brazil", res.findString("data.0.shipcountry"));
+      assertEquals("Brazil", res.findString("data.4.shipcountry"));
+      assertTrue(res.getFoundRows() != france);
+
+      //-- a null value is a different shape
+      res = engine.get(url("orders?limit=5&sort=orderid&eq(shipcountry,null)")).assertOk();
+      assertEquals(0, res.data().size());
+
+      //-- wildcards are a different shape
+      res = engine.get(url("orders?limit=5&sort=orderid&shipcountry=Fr*")).assertOk();
+      assertEquals("France", res.findString("data.0.shipcountry"));
+
+      hits = db.getSqlCacheHits();
+      res = engine.get(url("orders?limit=5&sort=orderid&shipcountry=Bra*")).assertOk();
+      assertTrue(db.getSqlCacheHits() > hits);
+      assertEquals("Brazil", res.findString("data.0.shipcountry"));
+
+      res = engine.get(url("orders?limit=5&sort=orderid&shipcountry=France")).assertOk();
+      assertEquals(france, res.getFoundRows());
+      assertEquals("France", res.findString("data.0.shipcountry"));
+
+      //-- every page after the first one shares a shape
+      String next = engine.get(url("orders?limit=100&sort=-freight,orderid")).assertOk().next();
+      next = engine.get(next).assertOk().next();
+      int size = db.getSqlCacheSize();
+      hits = db.getSqlCacheHits();
+      while (next != null)
+         next = engine.get(next).assertOk().next();
+      assertEquals(size, db.getSqlCacheSize());
+      assertTrue(db.getSqlCacheHits() >= hits + 6);
+   }
+
+   @Test
+   public void testSqlShapeCacheEvictsLeastRecentlyUsed() throws Exception
+   {
+      Engine engine = service();
+      JdbcDb db = (JdbcDb) engine.getApi("northwind").getDb(this.db);
+      int sqlCacheMax = db.getSqlCacheMax();
+      try
+      {
+         db.clearSqlCache();
+         db.withSqlCacheMax(10);
+
+         String hot = url("orders?limit=5&sort=orderid&shipcountry=France");
+         engine.get(hot).assertOk();
+
+         //-- each limit is a different shape
+         for (int i = 1; i <= 30; i++)
+         {
+            engine.get(url("orders?limit=" + i + "&sort=shipname")).assertOk();
+            assertTrue(db.getSqlCacheSize() <= 10);
+
+            long hits = db.getSqlCacheHits();
+            engine.get(hot).assertOk();
+            assertTrue(db.getSqlCacheHits() > hits);
+         }
+      }
+      finally
+      {
+         db.withSqlCacheMax(sqlCacheMax);
+         db.clearSqlCache();
+      }
+   }
+
+   @Test
+   public void testReadReplicas() throws Exception
+   {
+      Engine engine = service();
+      JdbcDb db = (JdbcDb) engine.getApi("northwind").getDb(this.db);
+
+      //-- two more pools on the same in memory db stand in for replicas
+      String replica1 = db.getUrl() + ";QUERY_TIMEOUT=0";
+      String replica2 = db.getUrl() + ";QUERY_TIMEOUT=600000";
+
+      try
+      {
+         db.withReplicaUrl(replica1, replica2);
+
+         Response res = engine.get(url("orders?limit=5&sort=orderid")).assertOk();
+         assertEquals(830, res.getFoundRows());
+         assertEquals(5, res.data().size());
+         engine.get(url("orders?limit=5&sort=orderid&shipcountry=France")).assertOk();
+
+         //-- round robin opened a pool on each replica
+         List<String> roles = new ArrayList();
+         for (java.util.Map<String, Object> stat : db.getPoolStats())
+         {
+            roles.add(stat.get("role") + " " + stat.get("url"));
+            assertTrue((Integer) stat.get("total") > 0);
+         }
+         assertTrue(roles.contains("replica " + replica1));
+         assertTrue(roles.contains("replica " + replica2));
+
+         db.withReplicaPolicy(JdbcDb.REPLICA_LEAST_IN_USE);
+         assertEquals(830, engine.get(url("orders?limit=5")).assertOk().getFoundRows());
+
+         //-- once a request uses the primary it keeps reading from it
+         Chain.push(engine, new Request("GET", url("orders")), new Response());
+         try
+         {
+            assertTrue(db.isReplicaRead());
+            Connection replica = db.getReadConnection();
+            assertSame(replica, db.getReadConnection());
+
+            Connection primary = db.getConnection();
+            assertFalse(db.isReplicaRead());
+            assertSame(primary, db.getReadConnection());
+         }
+         finally
+         {
+            ConnectionLocal.close();
+            Chain.pop();
+         }
+
+         Chain.push(engine, new Request("POST", url("orders")), new Response());
+         try
+         {
+            assertFalse(db.isReplicaRead());
+         }
+         finally
+         {
+            Chain.pop();
+         }
+      }
+      finally
+      {
+         db.getReplicaUrls().clear();
+         db.withReplicaPolicy(JdbcDb.REPLICA_ROUND_ROBIN);
+         Context.current().remove(JdbcDb.class.getName() + ".primaryUsed." + db.getName());
+      }
+   }
+
+   @Test
+   public void testSelectConnectionScope() throws Exception
+   {
+      Engine engine = service();
+      JdbcDb db = (JdbcDb) engine.getApi("northwind").getDb(this.db);
+      Collection orders = db.getCollection("orders");
+      List<Term> terms = Arrays.asList(Term.term(null, "limit", 5));
+
+      try
+      {
+         db.withConnectionScope(JdbcDb.CONNECTION_SCOPE_SELECT);
+
+         Response res = engine.get(url("orders?limit=5&sort=orderid&expands=customer,employee")).assertOk();
+         assertEquals(830, res.getFoundRows());
+         assertTrue(res.findString("data.0.customer.href").endsWith("/customers/VINET"));
+
+         //-- GET selects return the connection to the pool as soon as they are done
+         Chain.push(engine, new Request("GET", url("orders")).withEndpoint(new Endpoint()), new Response());
+         try
+         {
+            assertTrue(db.isSelectScope());
+            assertEquals(5, db.select(orders, terms).size());
+            assertNull(ConnectionLocal.getConnection(db));
+
+            try (RowIterator rows = db.selectIterator(orders, terms))
+            {
+               assertTrue(rows.hasNext());
+               assertTrue(ConnectionLocal.getConnection(db).getAutoCommit());
+            }
+            assertNull(ConnectionLocal.getConnection(db));
+
+            //-- once the request writes, its connection is held until the request completes
+            Connection conn = db.getConnection();
+            assertFalse(db.isSelectScope());
+            assertEquals(db.isAutoCommit(), conn.getAutoCommit());
+            assertEquals(5, db.select(orders, terms).size());
+            assertSame(conn, ConnectionLocal.getConnection(db));
+         }
+         finally
+         {
+            ConnectionLocal.close();
+            Chain.pop();
+            Context.current().remove(JdbcDb.class.getName() + ".primaryUsed." + db.getName());
+         }
+
+         Chain.push(engine, new Request("POST", url("orders")).withEndpoint(new Endpoint()), new Response());
+         try
+         {
+            assertFalse(db.isSelectScope());
+            db.select(orders, terms);
+            assertNotNull(ConnectionLocal.getConnection(db));
+         }
+         finally
+         {
+            ConnectionLocal.close();
+            Chain.pop();
+            Context.current().remove(JdbcDb.class.getName() + ".primaryUsed." + db.getName());
+         }
+      }
+      finally
+      {
+         db.withConnectionScope(JdbcDb.CONNECTION_SCOPE_REQUEST);
+      }
+   }
+
    @Test
    public void testExcludes() throws Exception
    {
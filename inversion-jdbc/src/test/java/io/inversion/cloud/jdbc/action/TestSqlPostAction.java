@@ -148,6 +148,73 @@ public class TestSqlPostAction extends TestCase
 
    }
 
+   @Test
+   public void testBatchUpsert() throws Exception
+   {
+      Engine engine = service();
+      JdbcDb db = (JdbcDb) engine.getApi("northwind").getDb(this.db);
+      io.inversion.cloud.model.Collection orders = db.getCollection("orders");
+      String orderId = orders.getPrimaryIndex().getColumnNames().get(0);
+
+      Connection conn = db.getConnection();
+      try
+      {
+         Rows rows = JdbcUtils.selectRows(conn, "SELECT * FROM " + db.quoteCol(orders.getTableName()) + " ORDER BY " + db.quoteCol(orderId));
+         int maxId = rows.get(rows.size() - 1).getInt(orderId);
+
+         List<Map<String, Object>> toUpsert = new ArrayList();
+         for (int i = 0; i < 3; i++)
+         {
+            Map row = new HashMap(rows.get(i));
+            row.put(orders.getProperty("shipaddress").getColumnName(), "testing_upsert_" + i);
+            toUpsert.add(row);
+         }
+         for (int i = 0; i < 5; i++)
+         {
+            Map row = new HashMap(rows.get(0));
+            row.remove(orderId);
+            toUpsert.add(row);
+         }
+         Map explicit = new HashMap(rows.get(0));
+         explicit.put(orderId, 1);
+         toUpsert.add(explicit);
+
+         //-- a small parameter limit forces several multi-row statements per group
+         int maxParams = rows.keyList().size() * 2;
+         List generated = JdbcUtils.upsert(conn, db.getType(), orders.getTableName(), orders.getPrimaryIndex(), toUpsert, maxParams);
+         assertEquals(toUpsert.size(), generated.size());
+
+         for (int i = 0; i < 3; i++)
+            assertNull(generated.get(i));
+         int firstKey = Integer.parseInt(generated.get(3) + "");
+         assertTrue(firstKey > maxId);
+         for (int i = 3; i < 8; i++)
+            assertEquals(firstKey + i - 3, Integer.parseInt(generated.get(i) + ""));
+         assertNull(generated.get(8));
+
+         assertEquals(rows.size() + 6, JdbcUtils.selectInt(conn, "SELECT count(*) FROM " + db.quoteCol(orders.getTableName())));
+         assertEquals(3, JdbcUtils.selectInt(conn, "SELECT count(*) FROM " + db.quoteCol(orders.getTableName()) + " WHERE " + db.quoteCol(orders.getProperty("shipaddress").getColumnName()) + " LIKE 'testing_upsert_%'"));
+      }
+      finally
+      {
+         JdbcDb.ConnectionLocal.close();
+      }
+
+      //-- keys come back in the order the records were posted
+      JSArray posted = new JSArray();
+      for (int i = 0; i < 3; i++)
+         posted.add(new JSNode("shipaddress", "batch_" + i, "shipcity", "atlanta"));
+      posted.add(new JSNode("orderid", 2, "shipaddress", "batch_3", "shipcity", "atlanta"));
+
+      Response res = engine.post(url("orders"), posted.toString()).assertOk();
+      for (int i = 0; i < 4; i++)
+      {
+         String href = res.findString("data." + i + ".href");
+         assertEquals("batch_" + i, engine.get(href).assertOk().find("data.0.shipaddress"));
+      }
+      assertTrue(res.findString("data.3.href").endsWith("/orders/2"));
+   }
+
    @Test
    public void testAddOneRecord() throws Exception
    {
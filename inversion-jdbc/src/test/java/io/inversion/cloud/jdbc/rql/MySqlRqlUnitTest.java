@@ -71,7 +71,7 @@ public class MySqlRqlUnitTest extends AbstractSqlRqlTest
            .withResult("limit", "SELECT `orders`.* FROM `orders` ORDER BY `orders`.`orderId` ASC LIMIT 7 args=[]")//
            .withResult("page", "SELECT `orders`.* FROM `orders` ORDER BY `orders`.`orderId` ASC LIMIT 14, 7 args=[]")//
            .withResult("pageNum", "SELECT `orders`.* FROM `orders` ORDER BY `orders`.`orderId` ASC LIMIT 14, 7 args=[]")//
-           .withResult("after", "SELECT `orders`.* FROM `orders` ORDER BY `orders`.`orderId` ASC LIMIT 100 args=[]")//
+           .withResult("after", "SELECT `orders`.* FROM `orders` WHERE `orders`.`orderId` > ? ORDER BY `orders`.`orderId` ASC LIMIT 100 args=[10248]")//
            .withResult("sort", "SELECT `orders`.* FROM `orders` ORDER BY `orders`.`shipCountry` DESC, `orders`.`shipCity` ASC LIMIT 100 args=[]")//
            .withResult("order", "SELECT `orders`.* FROM `orders` ORDER BY `orders`.`shipCountry` ASC, `orders`.`shipCity` DESC LIMIT 100 args=[]")//
       ;
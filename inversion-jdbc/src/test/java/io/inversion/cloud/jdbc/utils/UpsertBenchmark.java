@@ -0,0 +1,91 @@
+package io.inversion.cloud.jdbc.utils;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.inversion.cloud.model.Collection;
+import io.inversion.cloud.model.Index;
+
+/**
+ * Compares upserting 5k rows into H2 one row at a time, the way JdbcDb.upsert
+ * used to with insertMap + SCOPE_IDENTITY() and h2Upsert, against the batched
+ * multi-row JdbcUtils.upsert.  Each round inserts 5k new rows and then updates
+ * the same 5k rows.
+ * <p>
+ * This is not a unit test, run it from main()
+ */
+public class UpsertBenchmark
+{
+   static final int ROWS = 5000;
+
+   public static void main(String[] args) throws Exception
+   {
+      Class.forName("org.h2.Driver");
+      Connection conn = DriverManager.getConnection("jdbc:h2:mem:upsertbenchmark;DB_CLOSE_DELAY=-1", "sa", "");
+      conn.setAutoCommit(false);
+      JdbcUtils.execute(conn, "CREATE TABLE \"BENCH\" (\"ID\" INT AUTO_INCREMENT PRIMARY KEY, \"NAME\" VARCHAR(100), \"CITY\" VARCHAR(100), \"AMOUNT\" DECIMAL(10,2))");
+
+      Collection table = new Collection("BENCH").withProperty("ID", "INTEGER").withIndex("PK", "primary", true, "ID");
+      Index index = table.getPrimaryIndex();
+
+      for (int round = 0; round < 5; round++)
+      {
+         JdbcUtils.execute(conn, "DELETE FROM \"BENCH\"");
+         List<Map<String, Object>> rows = rows(null);
+
+         long start = System.nanoTime();
+         List<Object> keys = new ArrayList();
+         for (Map<String, Object> row : rows)
+         {
+            JdbcUtils.insertMap(conn, "BENCH", row);
+            keys.add(JdbcUtils.selectInt(conn, "SELECT SCOPE_IDENTITY()"));
+         }
+         long legacyInsert = System.nanoTime() - start;
+
+         rows = rows(keys);
+         start = System.nanoTime();
+         for (Map<String, Object> row : rows)
+            JdbcUtils.h2Upsert(conn, "BENCH", index, row);
+         long legacyUpdate = System.nanoTime() - start;
+         conn.commit();
+
+         JdbcUtils.execute(conn, "DELETE FROM \"BENCH\"");
+         rows = rows(null);
+
+         start = System.nanoTime();
+         keys = JdbcUtils.upsert(conn, "h2", "BENCH", index, rows, 2000);
+         long batchInsert = System.nanoTime() - start;
+
+         rows = rows(keys);
+         start = System.nanoTime();
+         JdbcUtils.upsert(conn, "h2", "BENCH", index, rows, 2000);
+         long batchUpdate = System.nanoTime() - start;
+         conn.commit();
+
+         System.out.println("round " + round //
+               + " row by row: insert " + (legacyInsert / 1000000) + "ms update " + (legacyUpdate / 1000000) + "ms" //
+               + "  batched: insert " + (batchInsert / 1000000) + "ms update " + (batchUpdate / 1000000) + "ms");
+      }
+      conn.close();
+   }
+
+   static List<Map<String, Object>> rows(List<Object> keys)
+   {
+      List<Map<String, Object>> rows = new ArrayList();
+      for (int i = 0; i < ROWS; i++)
+      {
+         Map<String, Object> row = new LinkedHashMap();
+         if (keys != null)
+            row.put("ID", keys.get(i));
+         row.put("NAME", "name " + i);
+         row.put("CITY", keys != null ? "atlanta" : "chicago");
+         row.put("AMOUNT", i / 100.0);
+         rows.add(row);
+      }
+      return rows;
+   }
+}
@@ -16,7 +16,12 @@
  */
 package io.inversion.cloud.action.redis;
 
-import java.util.Set;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,61 +29,86 @@ import org.slf4j.LoggerFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.inversion.cloud.action.security.AuthSessionCache;
+import io.inversion.cloud.action.security.ConcurrentAuthSessionCache;
 import io.inversion.cloud.model.User;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
 /**
  * This is to be used with the AuthHandler to provide a central session cache, which 
  * is needed when running Snooze on multiple instances behind a load balancer
  * 
+ * Setting <code>l1Ttl</code> adds an in process cache in front of Redis so most
+ * session lookups never leave the JVM.  Removes are published on the
+ * <code>keyPrefix + "invalidate"</code> channel and every instance drops the
+ * session from its local cache.  If the subscription drops, the local cache is
+ * cleared.  Local entries expire <code>l1Ttl</code> after they were loaded no
+ * matter how often they are read, so <code>l1Ttl</code> bounds how long a
+ * logout can go unnoticed and busy sessions still refresh their Redis expiry.
+ * 
+ * Users are stored in a compact binary format that leaves out the password.
+ * Values written by older versions as JSON can still be read.
+ * 
  * @author tc-rocket
  */
 public class RedisAuthSessionCache implements AuthSessionCache
 {
-   Logger            log                                = LoggerFactory.getLogger(RedisAuthSessionCache.class);
+   static final byte                    FORMAT_VERSION                     = 1;
 
-   ObjectMapper      om                                 = new ObjectMapper();
+   Logger                               log                                = LoggerFactory.getLogger(RedisAuthSessionCache.class);
+
+   ObjectMapper                         om                                 = new ObjectMapper();
 
    // configurable inversion.props 
-   protected String  redisHost                          = null;
-   protected int     redisPort                          = 6379;
+   protected String                     redisHost                          = null;
+   protected int                        redisPort                          = 6379;
+
+   protected int                        redisPoolMin                       = 16;
+   protected int                        redisPoolMax                       = 128;
+   protected boolean                    redisTestOnBorrow                  = true;
+   protected boolean                    redisTestOnReturn                  = true;
+   protected boolean                    redisTestWhileIdle                 = true;
+   protected int                        redisMinEvictableIdleTimeMillis    = 60000;
+   protected int                        redisTimeBetweenEvictionRunsMillis = 30000;
+   protected int                        redisNumTestsPerEvictionRun        = 3;
+   protected boolean                    redisBlockWhenExhausted            = true;
+   protected int                        redisReadSocketTimeout             = 2500;
+   protected int                        redisTtl                           = 8 * 60 * 60;                                         // 8 hours in seconds
 
-   protected int     redisPoolMin                       = 16;
-   protected int     redisPoolMax                       = 128;
-   protected boolean redisTestOnBorrow                  = true;
-   protected boolean redisTestOnReturn                  = true;
-   protected boolean redisTestWhileIdle                 = true;
-   protected int     redisMinEvictableIdleTimeMillis    = 60000;
-   protected int     redisTimeBetweenEvictionRunsMillis = 30000;
-   protected int     redisNumTestsPerEvictionRun        = 3;
-   protected boolean redisBlockWhenExhausted            = true;
-   protected int     redisReadSocketTimeout             = 2500;
-   protected int     redisTtl                           = 8 * 60 * 60;                                         // 8 hours in seconds
+   protected String                     keyPrefix                          = "RedisAuthSess-";
 
-   protected String  keyPrefix                          = "RedisAuthSess-";
+   /**
+    * Millis a session is kept in the local cache, 0 disables the local cache
+    */
+   protected int                        l1Ttl                              = 0;
+   protected int                        l1Max                              = 10000;
 
-   JedisPool         jedisPool;
+   protected ConcurrentAuthSessionCache l1                                 = null;
+
+   JedisPool                            jedisPool;
 
    @Override
    public User get(String sessionKey)
    {
-      return (User) execute(new JedisCallback()
-         {
-            public Object doWithJedis(Jedis jedis) throws Exception
-            {
-               User user = null;
-               String userJson = jedis.get(key(sessionKey));
-               if (userJson != null)
-               {
-                  // reset the ttl after a successful get call
-                  jedis.expire(key(sessionKey), redisTtl);
-                  user = om.readValue(userJson, User.class);
-               }
-               return user;
-            }
-         });
+      ConcurrentAuthSessionCache l1 = getL1();
+      if (l1 != null)
+      {
+         User user = l1.get(sessionKey);
+         if (user != null)
+            return user;
+      }
+
+      //-- a fixed expiration, not the sliding ttl, so a missed invalidation
+      //-- is only served for l1Ttl and busy sessions still reach load()
+      User user = load(sessionKey);
+      if (user != null && l1 != null)
+         l1.put(sessionKey, user, System.currentTimeMillis() + l1Ttl);
+
+      return user;
    }
 
    @Override
@@ -86,31 +116,251 @@ public class RedisAuthSessionCache implements AuthSessionCache
    {
       if (sessionKey != null && user != null)
       {
-         execute(new JedisCallback()
-            {
-               public Object doWithJedis(Jedis jedis) throws Exception
-               {
-                  String userJson = om.writeValueAsString(user);
-                  jedis.setex(key(sessionKey), redisTtl, userJson);
-                  return null;
-               }
-            });
+         store(sessionKey, user);
+
+         ConcurrentAuthSessionCache l1 = getL1();
+         if (l1 != null)
+            l1.put(sessionKey, user, System.currentTimeMillis() + l1Ttl);
       }
    }
 
    @Override
    public void remove(String sessionKey)
+   {
+      ConcurrentAuthSessionCache l1 = getL1();
+      if (l1 != null)
+         l1.remove(sessionKey);
+
+      delete(sessionKey);
+   }
+
+   /**
+    * Reads the user and resets its ttl in a single round trip
+    */
+   protected User load(String sessionKey)
+   {
+      return (User) execute(new JedisCallback()
+         {
+            public Object doWithJedis(Jedis jedis) throws Exception
+            {
+               byte[] key = key(sessionKey).getBytes("UTF-8");
+
+               Pipeline pipeline = jedis.pipelined();
+               Response<byte[]> value = pipeline.get(key);
+               pipeline.expire(key, redisTtl);
+               pipeline.sync();
+
+               return value.get() != null ? readUser(value.get()) : null;
+            }
+         });
+   }
+
+   protected void store(String sessionKey, User user)
+   {
+      execute(new JedisCallback()
+         {
+            public Object doWithJedis(Jedis jedis) throws Exception
+            {
+               jedis.setex(key(sessionKey).getBytes("UTF-8"), redisTtl, writeUser(user));
+               return null;
+            }
+         });
+   }
+
+   /**
+    * Deletes the session and tells every other instance to drop it from their local cache
+    */
+   protected void delete(String sessionKey)
    {
       execute(new JedisCallback()
          {
             public Object doWithJedis(Jedis jedis) throws Exception
             {
                jedis.del(key(sessionKey));
+               jedis.publish(getInvalidationChannel(), sessionKey);
                return null;
             }
          });
    }
 
+   /**
+    * Called when any instance removes a session
+    */
+   protected void invalidate(String sessionKey)
+   {
+      ConcurrentAuthSessionCache l1 = this.l1;
+      if (l1 != null)
+         l1.remove(sessionKey);
+   }
+
+   protected ConcurrentAuthSessionCache getL1()
+   {
+      if (l1 == null && l1Ttl > 0)
+      {
+         synchronized (this)
+         {
+            if (l1 == null)
+            {
+               l1 = new ConcurrentAuthSessionCache(l1Max, l1Ttl);
+               startSubscriber();
+            }
+         }
+      }
+      return l1;
+   }
+
+   /**
+    * Starts a daemon thread that holds one pooled connection subscribed to
+    * the invalidation channel, reconnecting whenever the connection drops.
+    */
+   protected void startSubscriber()
+   {
+      Thread thread = new Thread("RedisAuthSessionCache-invalidator")
+         {
+            public void run()
+            {
+               while (true)
+               {
+                  Jedis jedis = null;
+                  try
+                  {
+                     jedis = getJedis();
+
+                     //-- invalidations may have been missed while disconnected
+                     l1.clear();
+
+                     jedis.subscribe(new JedisPubSub()
+                        {
+                           @Override
+                           public void onMessage(String channel, String message)
+                           {
+                              invalidate(message);
+                           }
+                        }, getInvalidationChannel());
+                  }
+                  catch (Exception ex)
+                  {
+                     log.warn("Error subscribing to Redis session invalidations", ex);
+                  }
+                  finally
+                  {
+                     if (jedis != null)
+                     {
+                        try
+                        {
+                           jedis.close();
+                        }
+                        catch (Exception ex)
+                        {
+                           log.warn("Error closing redis connection", ex);
+                        }
+                     }
+                  }
+
+                  try
+                  {
+                     Thread.sleep(1000);
+                  }
+                  catch (InterruptedException ex)
+                  {
+                     return;
+                  }
+               }
+            }
+         };
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   public String getInvalidationChannel()
+   {
+      return keyPrefix + "invalidate";
+   }
+
+   /**
+    * Writes the user as: version byte, id, username, displayName,
+    * groups, roles, permissions, accessKey, secretKey, tenantId,
+    * tenantCode, requestAt, remoteAddr, failedNum.  The password
+    * is left out.
+    */
+   static byte[] writeUser(User user) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+      DataOutputStream out = new DataOutputStream(bytes);
+
+      out.writeByte(FORMAT_VERSION);
+      out.writeInt(user.getId());
+      writeString(out, user.getUsername());
+      writeString(out, user.getDisplayName());
+      writeStrings(out, user.getGroups());
+      writeStrings(out, user.getRoles());
+      writeStrings(out, user.getPermissions());
+      writeString(out, user.getAccessKey());
+      writeString(out, user.getSecretKey());
+      out.writeInt(user.getTenantId());
+      writeString(out, user.getTenantCode());
+      out.writeLong(user.getRequestAt());
+      writeString(out, user.getRemoteAddr());
+      out.writeInt(user.getFailedNum());
+
+      out.flush();
+      return bytes.toByteArray();
+   }
+
+   User readUser(byte[] bytes) throws IOException
+   {
+      //-- written as JSON by an older version
+      if (bytes.length > 0 && bytes[0] == '{')
+         return om.readValue(bytes, User.class);
+
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      if (in.readByte() != FORMAT_VERSION)
+         return null;
+
+      User user = new User();
+      user.withId(in.readInt());
+      user.withUsername(readString(in));
+      user.withDisplayName(readString(in));
+      user.withGroups(readStrings(in));
+      user.withRoles(readStrings(in));
+      user.withPermissions(readStrings(in));
+      user.withAccessKey(readString(in));
+      user.withSecretKey(readString(in));
+      user.withTenantId(in.readInt());
+      user.withTenantCode(readString(in));
+      user.withRequestAt(in.readLong());
+      user.withRemoteAddr(readString(in));
+      user.withFailedNum(in.readInt());
+      return user;
+   }
+
+   static void writeString(DataOutputStream out, String value) throws IOException
+   {
+      out.writeBoolean(value != null);
+      if (value != null)
+         out.writeUTF(value);
+   }
+
+   static String readString(DataInputStream in) throws IOException
+   {
+      return in.readBoolean() ? in.readUTF() : null;
+   }
+
+   static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException
+   {
+      out.writeShort(values.size());
+      for (String value : values)
+         out.writeUTF(value);
+   }
+
+   static String[] readStrings(DataInputStream in) throws IOException
+   {
+      String[] values = new String[in.readShort()];
+      for (int i = 0; i < values.length; i++)
+         values[i] = in.readUTF();
+      return values;
+   }
+
    String key(String sessionKey)
    {
       return keyPrefix + sessionKey;
@@ -163,19 +413,22 @@ public class RedisAuthSessionCache implements AuthSessionCache
       {
          synchronized (this)
          {
-            JedisPoolConfig poolConfig = new JedisPoolConfig();
-            poolConfig.setMaxTotal(this.redisPoolMax);
-            poolConfig.setMaxIdle(this.redisPoolMax);
-            poolConfig.setMinIdle(this.redisPoolMin);
-            poolConfig.setTestOnBorrow(this.redisTestOnBorrow);
-            poolConfig.setTestOnReturn(this.redisTestOnReturn);
-            poolConfig.setTestWhileIdle(this.redisTestWhileIdle);
-            poolConfig.setMinEvictableIdleTimeMillis(this.redisMinEvictableIdleTimeMillis);
-            poolConfig.setTimeBetweenEvictionRunsMillis(this.redisTimeBetweenEvictionRunsMillis);
-            poolConfig.setNumTestsPerEvictionRun(this.redisNumTestsPerEvictionRun);
-            poolConfig.setBlockWhenExhausted(this.redisBlockWhenExhausted);
-
-            jedisPool = new JedisPool(poolConfig, this.redisHost, this.redisPort, this.redisReadSocketTimeout);
+            if (jedisPool == null)
+            {
+               JedisPoolConfig poolConfig = new JedisPoolConfig();
+               poolConfig.setMaxTotal(this.redisPoolMax);
+               poolConfig.setMaxIdle(this.redisPoolMax);
+               poolConfig.setMinIdle(this.redisPoolMin);
+               poolConfig.setTestOnBorrow(this.redisTestOnBorrow);
+               poolConfig.setTestOnReturn(this.redisTestOnReturn);
+               poolConfig.setTestWhileIdle(this.redisTestWhileIdle);
+               poolConfig.setMinEvictableIdleTimeMillis(this.redisMinEvictableIdleTimeMillis);
+               poolConfig.setTimeBetweenEvictionRunsMillis(this.redisTimeBetweenEvictionRunsMillis);
+               poolConfig.setNumTestsPerEvictionRun(this.redisNumTestsPerEvictionRun);
+               poolConfig.setBlockWhenExhausted(this.redisBlockWhenExhausted);
+
+               jedisPool = new JedisPool(poolConfig, this.redisHost, this.redisPort, this.redisReadSocketTimeout);
+            }
          }
       }
 
@@ -336,4 +589,26 @@ public class RedisAuthSessionCache implements AuthSessionCache
       return this;
    }
 
+   public void setL1Ttl(int l1Ttl)
+   {
+      this.l1Ttl = l1Ttl;
+   }
+
+   public RedisAuthSessionCache withL1Ttl(int l1Ttl)
+   {
+      setL1Ttl(l1Ttl);
+      return this;
+   }
+
+   public void setL1Max(int l1Max)
+   {
+      this.l1Max = l1Max;
+   }
+
+   public RedisAuthSessionCache withL1Max(int l1Max)
+   {
+      setL1Max(l1Max);
+      return this;
+   }
+
 }
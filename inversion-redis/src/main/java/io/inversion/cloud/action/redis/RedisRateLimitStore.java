@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2015-2019 Rocket Partners, LLC
+ * https://github.com/inversion-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.inversion.cloud.action.redis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.inversion.cloud.action.security.RateLimitStore;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+/**
+ * Shares RateLimitAction counters across every instance behind a load balancer.
+ *
+ * Each rate limit key is a single Redis string holding the GCRA theoretical
+ * arrival time, updated by a Lua script so the read and write are atomic.
+ *
+ * So that every request does not pay a Redis round trip, an instance leases a
+ * small block of hits at a time and hands them out locally.  A lease is never
+ * more than <code>leaseMax</code> hits or 5% of the limit and unused hits are
+ * dropped after <code>leaseMillis</code>.  Leased hits are taken from the shared
+ * count up front so leasing can only make the limit stricter, never looser.
+ * A rejection is also remembered locally until its retry time.
+ *
+ * Each instance passes its own clock to the script so instance clocks should
+ * be kept in sync.  If Redis can not be reached, hits are allowed.
+ *
+ * The JedisPool comes from the configured {@link RedisDb}.
+ */
+public class RedisRateLimitStore implements RateLimitStore
+{
+   /**
+    * KEYS[1] = key, ARGV = interval, window, now, count
+    *
+    * Returns {granted, wait}
+    */
+   public static final String LEASE_SCRIPT = ""//
+         + "local tat = tonumber(redis.call('GET', KEYS[1]) or '0')\n" //
+         + "local interval = tonumber(ARGV[1])\n" //
+         + "local window = tonumber(ARGV[2])\n" //
+         + "local now = tonumber(ARGV[3])\n" //
+         + "local count = tonumber(ARGV[4])\n" //
+         + "local start = math.max(tat, now)\n" //
+         + "local granted = math.min(count, math.floor((now + window - start) / interval))\n" //
+         + "if granted < 1 then\n" //
+         + "  return {0, start + interval - now - window}\n" //
+         + "end\n" //
+         + "local nextTat = start + granted * interval\n" //
+         + "redis.call('SET', KEYS[1], string.format('%d', nextTat), 'PX', string.format('%d', nextTat - now))\n" //
+         + "return {granted, 0}\n";
+
+   protected Logger             log         = LoggerFactory.getLogger(RedisRateLimitStore.class);
+
+   protected RedisDb            db          = null;
+
+   protected String             keyPrefix   = "RateLimit-";
+   protected int                leaseMax    = 10;
+   protected int                leaseMillis = 1000;
+   protected int                maxLeases   = 100000;
+
+   protected String             scriptSha   = null;
+
+   protected Map<String, Lease> leases      = new ConcurrentHashMap();
+   protected AtomicBoolean      evicting    = new AtomicBoolean(false);
+
+   @Override
+   public long hit(String key, long interval, long window, long now)
+   {
+      Lease lease = leases.get(key);
+      if (lease != null)
+      {
+         if (now < lease.blockedUntil)
+            return lease.blockedUntil - now;
+
+         if (lease.acquire(now))
+            return 0;
+      }
+
+      //-- never lease more than 5% of the limit so a few instances
+      //-- can not hold the whole limit between them
+      int count = (int) Math.max(1, Math.min(leaseMax, window / interval / 20));
+
+      long[] result = lease(keyPrefix + key, interval, window, now, count);
+      if (result == null)
+         return 0;
+
+      if (lease == null)
+      {
+         lease = new Lease();
+         Lease existing = ((ConcurrentHashMap<String, Lease>) leases).putIfAbsent(key, lease);
+         if (existing != null)
+            lease = existing;
+         else if (leases.size() > maxLeases)
+            evict(now);
+      }
+
+      //-- threads that raced to Redis for the same key all add
+      //-- their grants to the one lease so no permits are lost
+      lease.refill(now, (int) result[0], result[1], leaseMillis);
+
+      return result[0] > 0 ? 0 : result[1];
+   }
+
+   /**
+    * Runs LEASE_SCRIPT
+    *
+    * @return {granted, wait} or null if Redis could not be reached
+    */
+   protected long[] lease(String key, long interval, long window, long now, int count)
+   {
+      Jedis jedis = null;
+      try
+      {
+         jedis = db.getRedisClient();
+
+         List<String> keys = Collections.singletonList(key);
+         List<String> args = Arrays.asList(Long.toString(interval), Long.toString(window), Long.toString(now), Integer.toString(count));
+
+         List<Long> result = null;
+         try
+         {
+            if (scriptSha == null)
+               scriptSha = jedis.scriptLoad(LEASE_SCRIPT);
+
+            result = (List<Long>) jedis.evalsha(scriptSha, keys, args);
+         }
+         catch (JedisNoScriptException ex)
+         {
+            //-- the script cache was flushed or this is a different server
+            scriptSha = null;
+            result = (List<Long>) jedis.eval(LEASE_SCRIPT, keys, args);
+         }
+         return new long[]{result.get(0), result.get(1)};
+      }
+      catch (Exception ex)
+      {
+         log.warn("Error getting or using the Redis client", ex);
+         return null;
+      }
+      finally
+      {
+         if (jedis != null)
+         {
+            try
+            {
+               jedis.close();
+            }
+            catch (Exception ex)
+            {
+               log.warn("Error closing redis connection", ex);
+            }
+         }
+      }
+   }
+
+   /**
+    * One thread at a time drops the leases that are used up or expired and
+    * are not blocking, then arbitrary leases, until the table is back under
+    * 90% of <code>maxLeases</code>.  Dropping a lease only forgets local 
+    * state so the shared limit is never loosened.
+    */
+   protected void evict(long now)
+   {
+      if (!evicting.compareAndSet(false, true))
+         return;
+
+      try
+      {
+         int target = (int) (maxLeases * .9);
+
+         for (Iterator<Lease> it = leases.values().iterator(); it.hasNext();)
+         {
+            Lease lease = it.next();
+            if (now >= lease.blockedUntil && (now >= lease.expires || lease.permits.get() <= 0))
+               it.remove();
+         }
+
+         for (Iterator<Lease> it = leases.values().iterator(); it.hasNext() && leases.size() > target;)
+         {
+            it.next();
+            it.remove();
+         }
+      }
+      finally
+      {
+         evicting.set(false);
+      }
+   }
+
+   static class Lease
+   {
+      final AtomicInteger permits      = new AtomicInteger(0);
+      volatile long       expires      = 0;
+      volatile long       blockedUntil = 0;
+
+      /**
+       * @return true if a leased hit was taken
+       */
+      boolean acquire(long now)
+      {
+         if (now >= expires)
+            return false;
+
+         while (true)
+         {
+            int current = permits.get();
+            if (current <= 0)
+               return false;
+
+            if (permits.compareAndSet(current, current - 1))
+               return true;
+         }
+      }
+
+      /**
+       * Adds <code>granted</code> hits, less the one being used now, or
+       * blocks for <code>wait</code> if nothing was granted.
+       */
+      synchronized void refill(long now, int granted, long wait, long leaseMillis)
+      {
+         if (granted > 0)
+         {
+            if (now >= expires)
+               permits.set(granted - 1);
+            else
+               permits.addAndGet(granted - 1);
+
+            expires = now + leaseMillis;
+         }
+         else
+         {
+            blockedUntil = Math.max(blockedUntil, now + wait);
+         }
+      }
+   }
+
+   public RedisDb getDb()
+   {
+      return db;
+   }
+
+   public RedisRateLimitStore withDb(RedisDb db)
+   {
+      this.db = db;
+      return this;
+   }
+
+   public String getKeyPrefix()
+   {
+      return keyPrefix;
+   }
+
+   public RedisRateLimitStore withKeyPrefix(String keyPrefix)
+   {
+      this.keyPrefix = keyPrefix;
+      return this;
+   }
+
+   public int getLeaseMax()
+   {
+      return leaseMax;
+   }
+
+   public RedisRateLimitStore withLeaseMax(int leaseMax)
+   {
+      this.leaseMax = leaseMax;
+      return this;
+   }
+
+   public int getLeaseMillis()
+   {
+      return leaseMillis;
+   }
+
+   public RedisRateLimitStore withLeaseMillis(int leaseMillis)
+   {
+      this.leaseMillis = leaseMillis;
+      return this;
+   }
+
+   public int getMaxLeases()
+   {
+      return maxLeases;
+   }
+
+   public RedisRateLimitStore withMaxLeases(int maxLeases)
+   {
+      this.maxLeases = maxLeases;
+      return this;
+   }
+
+}
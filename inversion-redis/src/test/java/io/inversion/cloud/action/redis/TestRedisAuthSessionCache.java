@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2015-2019 Rocket Partners, LLC
+ * https://github.com/inversion-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.inversion.cloud.action.redis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.inversion.cloud.model.User;
+import junit.framework.TestCase;
+
+public class TestRedisAuthSessionCache extends TestCase
+{
+   /**
+    * Stands in for Redis and its pub/sub channel
+    */
+   static class MockRedis
+   {
+      Map<String, byte[]>             values = new HashMap();
+      List<MockRedisAuthSessionCache> nodes  = new ArrayList();
+      int                             loads  = 0;
+   }
+
+   static class MockRedisAuthSessionCache extends RedisAuthSessionCache
+   {
+      MockRedis redis = null;
+
+      MockRedisAuthSessionCache(MockRedis redis)
+      {
+         this.redis = redis;
+         redis.nodes.add(this);
+      }
+
+      @Override
+      protected User load(String sessionKey)
+      {
+         try
+         {
+            redis.loads += 1;
+            byte[] bytes = redis.values.get(sessionKey);
+            return bytes != null ? readUser(bytes) : null;
+         }
+         catch (Exception ex)
+         {
+            throw new RuntimeException(ex);
+         }
+      }
+
+      @Override
+      protected void store(String sessionKey, User user)
+      {
+         try
+         {
+            redis.values.put(sessionKey, writeUser(user));
+         }
+         catch (Exception ex)
+         {
+            throw new RuntimeException(ex);
+         }
+      }
+
+      @Override
+      protected void delete(String sessionKey)
+      {
+         redis.values.remove(sessionKey);
+         for (MockRedisAuthSessionCache node : redis.nodes)
+            node.invalidate(sessionKey);
+      }
+
+      @Override
+      protected void startSubscriber()
+      {
+      }
+   }
+
+   @Test
+   public void testUserFormat() throws Exception
+   {
+      User user = new User("bob", "admin", "read,write")//
+                                                       .withId(7)//
+                                                       .withDisplayName("Bob")//
+                                                       .withPassword("hash")//
+                                                       .withGroups("users")//
+                                                       .withTenantId(3)//
+                                                       .withTenantCode("us")//
+                                                       .withRequestAt(123456789L)//
+                                                       .withRemoteAddr("10.0.0.1");
+
+      byte[] bytes = RedisAuthSessionCache.writeUser(user);
+      User copy = new RedisAuthSessionCache().readUser(bytes);
+
+      assertEquals(7, copy.getId());
+      assertEquals("bob", copy.getUsername());
+      assertEquals("Bob", copy.getDisplayName());
+      assertNull(copy.getPassword());
+      assertEquals(user.getGroups(), copy.getGroups());
+      assertEquals(user.getRoles(), copy.getRoles());
+      assertEquals(user.getPermissions(), copy.getPermissions());
+      assertEquals(3, copy.getTenantId());
+      assertEquals("us", copy.getTenantCode());
+      assertEquals(123456789L, copy.getRequestAt());
+      assertEquals("10.0.0.1", copy.getRemoteAddr());
+      assertNull(copy.getAccessKey());
+
+      byte[] json = new RedisAuthSessionCache().om.writeValueAsBytes(user);
+      assertTrue(bytes.length < json.length / 2);
+
+      //-- sessions written as JSON by older versions
+      assertEquals("bob", new RedisAuthSessionCache().readUser(json).getUsername());
+   }
+
+   @Test
+   public void testNearCache() throws Exception
+   {
+      MockRedis redis = new MockRedis();
+      MockRedisAuthSessionCache node1 = (MockRedisAuthSessionCache) new MockRedisAuthSessionCache(redis).withL1Ttl(60000);
+      MockRedisAuthSessionCache node2 = (MockRedisAuthSessionCache) new MockRedisAuthSessionCache(redis).withL1Ttl(60000);
+
+      node1.put("session1", new User().withUsername("bob"));
+
+      //-- node1 has it locally, node2 loads it once
+      assertEquals("bob", node1.get("session1").getUsername());
+      assertEquals(0, redis.loads);
+      assertEquals("bob", node2.get("session1").getUsername());
+      assertEquals("bob", node2.get("session1").getUsername());
+      assertEquals(1, redis.loads);
+
+      //-- a logout on node1 reaches node2
+      node1.remove("session1");
+      assertNull(node2.get("session1"));
+      assertNull(node1.get("session1"));
+   }
+
+   @Test
+   public void testNearCacheEntriesDoNotSlide() throws Exception
+   {
+      MockRedis redis = new MockRedis();
+      MockRedisAuthSessionCache node = (MockRedisAuthSessionCache) new MockRedisAuthSessionCache(redis).withL1Ttl(300);
+
+      node.put("session1", new User().withUsername("bob"));
+
+      //-- an invalidation that never arrives
+      redis.values.remove("session1");
+
+      long start = System.currentTimeMillis();
+      while (System.currentTimeMillis() - start < 250)
+      {
+         assertNotNull(node.get("session1"));
+         Thread.sleep(50);
+      }
+      assertEquals(0, redis.loads);
+
+      Thread.sleep(100);
+      assertNull(node.get("session1"));
+      assertEquals(1, redis.loads);
+   }
+
+   @Test
+   public void testNearCacheDisabled() throws Exception
+   {
+      MockRedis redis = new MockRedis();
+      MockRedisAuthSessionCache node = new MockRedisAuthSessionCache(redis);
+
+      node.put("session1", new User().withUsername("bob"));
+      node.get("session1");
+      node.get("session1");
+      assertEquals(2, redis.loads);
+   }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2015-2019 Rocket Partners, LLC
+ * https://github.com/inversion-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.inversion.cloud.action.redis;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.inversion.cloud.action.misc.MockAction;
+import io.inversion.cloud.action.security.RateLimitAction;
+import io.inversion.cloud.model.Api;
+import io.inversion.cloud.service.Engine;
+import junit.framework.TestCase;
+
+public class TestRedisRateLimitStore extends TestCase
+{
+   /**
+    * Stands in for a Redis server by running the same steps as
+    * RedisRateLimitStore.LEASE_SCRIPT, one call at a time.
+    */
+   static class MockRedis
+   {
+      Map<String, Long> values  = new HashMap();
+      int               calls   = 0;
+      long              granted = 0;
+
+      synchronized long[] lease(String key, long interval, long window, long now, int count)
+      {
+         calls += 1;
+
+         Long tat = values.get(key);
+         long start = Math.max(tat == null ? 0 : tat, now);
+         long granted = Math.min(count, (now + window - start) / interval);
+         if (granted < 1)
+            return new long[]{0, start + interval - now - window};
+
+         values.put(key, start + granted * interval);
+         this.granted += granted;
+         return new long[]{granted, 0};
+      }
+   }
+
+   static class MockRedisRateLimitStore extends RedisRateLimitStore
+   {
+      MockRedis redis = null;
+
+      MockRedisRateLimitStore(MockRedis redis)
+      {
+         this.redis = redis;
+      }
+
+      @Override
+      protected long[] lease(String key, long interval, long window, long now, int count)
+      {
+         return redis.lease(key, interval, window, now, count);
+      }
+   }
+
+   @Test
+   public void testClusterLimit() throws Exception
+   {
+      MockRedis redis = new MockRedis();
+      MockRedisRateLimitStore[] nodes = new MockRedisRateLimitStore[12];
+      for (int i = 0; i < nodes.length; i++)
+         nodes[i] = new MockRedisRateLimitStore(redis);
+
+      //-- 100 hits per minute
+      long interval = 600;
+      long window = 60000;
+      long now = 1000000;
+
+      int allowed = 0;
+      int hits = 0;
+      for (int i = 0; i < 1000; i++)
+      {
+         hits += 1;
+         if (nodes[i % nodes.length].hit("a", interval, window, now) == 0)
+            allowed += 1;
+      }
+
+      //-- leases can only make the limit stricter
+      assertTrue(allowed <= 100);
+      assertTrue(allowed >= 100 - nodes.length * 5);
+      assertTrue(redis.calls < hits / 5);
+
+      //-- rejections are remembered locally
+      int calls = redis.calls;
+      for (int i = 0; i < 100; i++)
+         assertTrue(nodes[0].hit("a", interval, window, now + 1) > 0);
+      assertEquals(calls, redis.calls);
+
+      //-- other keys are not affected
+      assertEquals(0, nodes[0].hit("b", interval, window, now));
+   }
+
+   @Test
+   public void testConcurrentLeasesLoseNoPermits() throws Exception
+   {
+      final MockRedis redis = new MockRedis();
+      final MockRedisRateLimitStore store = new MockRedisRateLimitStore(redis);
+      final AtomicInteger allowed = new AtomicInteger(0);
+
+      //-- a limit that is never reached
+      final long now = 1000000;
+      Thread[] threads = new Thread[8];
+      for (int i = 0; i < threads.length; i++)
+      {
+         threads[i] = new Thread(new Runnable()
+            {
+               public void run()
+               {
+                  for (int j = 0; j < 1000; j++)
+                     if (store.hit("a", 1, 10000000, now) == 0)
+                        allowed.incrementAndGet();
+               }
+            });
+         threads[i].start();
+      }
+      for (Thread thread : threads)
+         thread.join();
+
+      assertEquals(8000, allowed.get());
+      assertEquals(redis.granted, allowed.get() + store.leases.get("a").permits.get());
+   }
+
+   @Test
+   public void testBlockedLeasesAreEvicted() throws Exception
+   {
+      MockRedis redis = new MockRedis();
+      MockRedisRateLimitStore store = new MockRedisRateLimitStore(redis);
+      store.withMaxLeases(100);
+
+      //-- every key is over its limit so every lease is blocking
+      for (int i = 0; i < 1000; i++)
+      {
+         store.hit("key" + i, 120000, 60000, 1000000);
+         assertTrue(store.leases.size() <= 100);
+      }
+   }
+
+   @Test
+   public void testRateLimitAction() throws Exception
+   {
+      MockRedis redis = new MockRedis();
+
+      Engine engine1 = new Engine(new Api("test").withEndpoint("GET", "ep/*", new RateLimitAction().withLimitUserHits(4).withStore(new MockRedisRateLimitStore(redis)).withOrder(1), new MockAction("mock")));
+      Engine engine2 = new Engine(new Api("test").withEndpoint("GET", "ep/*", new RateLimitAction().withLimitUserHits(4).withStore(new MockRedisRateLimitStore(redis)).withOrder(1), new MockAction("mock")));
+
+      engine1.get("test/ep/books").assertOk();
+      engine2.get("test/ep/books").assertOk();
+      engine1.get("test/ep/books").assertOk();
+      engine2.get("test/ep/books").assertOk();
+
+      engine1.get("test/ep/books").assertStatus(429);
+      engine2.get("test/ep/books").assertStatus(429);
+   }
+}